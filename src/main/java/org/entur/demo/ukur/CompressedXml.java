@@ -0,0 +1,133 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compressed xml, optionally with a preset dictionary. Siri payloads repeat the same namespaces, element
+ * names and stop names, so a sample of earlier payloads from the same subscription makes a good dictionary.
+ */
+public final class CompressedXml {
+
+    /**
+     * Deflate can't refer further back than its 32K window, so a larger dictionary doesn't help.
+     */
+    private static final int MAX_DICTIONARY_BYTES = 32 * 1024;
+
+    private final byte[] data;
+    private final int length;
+    private final byte[] dictionary;
+
+    private CompressedXml(byte[] data, int length, byte[] dictionary) {
+        this.data = data;
+        this.length = length;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * @param dictionary may be null, is referenced (not copied) by the result and must not be changed
+     */
+    public static CompressedXml compress(byte[] xml, byte[] dictionary) {
+        Deflater deflater = new Deflater();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(xml);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(xml.length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return new CompressedXml(out.toByteArray(), xml.length, dictionary);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param data deflated without dictionary, as returned by getData
+     */
+    public static CompressedXml of(byte[] data, int length) {
+        return new CompressedXml(data, length, null);
+    }
+
+    /**
+     * @return the last part of the sample that fits in the deflate window
+     */
+    public static byte[] dictionaryFrom(byte[] sample) {
+        return Arrays.copyOfRange(sample, Math.max(0, sample.length - MAX_DICTIONARY_BYTES), sample.length);
+    }
+
+    public String decompress() {
+        return new String(decompressBytes(), StandardCharsets.UTF_8);
+    }
+
+    public byte[] decompressBytes() {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[length];
+            int n = 0;
+            while (n < length) {
+                int inflated = inflater.inflate(result, n, length - n);
+                if (inflated == 0) {
+                    if (inflater.needsDictionary() && dictionary != null) {
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new IllegalStateException("Stored xml is truncated after " + n + " of " + length + " bytes");
+                    }
+                }
+                n += inflated;
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Could not decompress stored xml", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return bytes used by the compressed data, the dictionary is shared and not included
+     */
+    public int getCompressedSize() {
+        return data.length;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the deflated bytes, not a copy so they must not be changed
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean hasDictionary() {
+        return dictionary != null;
+    }
+}
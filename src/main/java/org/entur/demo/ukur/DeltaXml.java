@@ -0,0 +1,318 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Xml stored as the changes from an earlier keyframe. Successive updates of a journey mostly repeat the same
+ * elements, so the xml is split at each element boundary ('&lt;') and stored as ranges to copy from the keyframe
+ * and the elements that are new, which is usually just a few changed times and statuses.
+ */
+public final class DeltaXml {
+
+    private final CompressedXml keyframe;
+    private final byte[] ops;
+    private final int length;
+
+    private DeltaXml(CompressedXml keyframe, byte[] ops, int length) {
+        this.keyframe = keyframe;
+        this.ops = ops;
+        this.length = length;
+    }
+
+    public String decompress() {
+        return new String(decompressBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Ops are varints: a copy is (keyframe offset &lt;&lt; 1) followed by its length, and a literal is
+     * (length &lt;&lt; 1 | 1) followed by its bytes.
+     */
+    public byte[] decompressBytes() {
+        byte[] base = keyframe.decompressBytes();
+        byte[] result = new byte[length];
+        int n = 0;
+        int[] pos = {0};
+        while (pos[0] < ops.length) {
+            long op = readVarint(ops, pos);
+            if ((op & 1) == 0) {
+                int offset = (int) (op >>> 1);
+                int copyLength = (int) readVarint(ops, pos);
+                System.arraycopy(base, offset, result, n, copyLength);
+                n += copyLength;
+            } else {
+                int literalLength = (int) (op >>> 1);
+                System.arraycopy(ops, pos[0], result, n, literalLength);
+                pos[0] += literalLength;
+                n += literalLength;
+            }
+        }
+        if (n != length) {
+            throw new IllegalStateException("Stored delta gives " + n + " of " + length + " bytes");
+        }
+        return result;
+    }
+
+    /**
+     * @return bytes used by the delta, the keyframe is shared and not included
+     */
+    public int getDeltaSize() {
+        return ops.length;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public CompressedXml getKeyframe() {
+        return keyframe;
+    }
+
+    /**
+     * Encodes xml against one keyframe. Holds the keyframe uncompressed with an index of its elements, so it is
+     * kept only while updates are expected and not by the stored messages.
+     */
+    public static final class Encoder {
+        private final CompressedXml keyframe;
+        private final byte[] base;
+        private final int[] baseTokens;
+        private final Map<Integer, int[]> tokensByHash = new HashMap<>();
+        private int encoded;
+
+        public Encoder(byte[] xml) {
+            this.base = xml;
+            this.keyframe = CompressedXml.compress(xml, null);
+            this.baseTokens = tokens(xml);
+            for (int t = 0; t < baseTokens.length - 1; t++) {
+                tokensByHash.merge(hash(base, baseTokens[t], baseTokens[t + 1]), new int[]{t},
+                        (a, b) -> {
+                            int[] merged = Arrays.copyOf(a, a.length + 1);
+                            merged[a.length] = b[0];
+                            return merged;
+                        });
+            }
+        }
+
+        /**
+         * @return the keyframe, to be stored as the body of the message it was made from
+         */
+        public CompressedXml getKeyframe() {
+            return keyframe;
+        }
+
+        /**
+         * @return number of deltas encoded against this keyframe
+         */
+        public int getEncoded() {
+            return encoded;
+        }
+
+        public DeltaXml encode(byte[] xml) {
+            int[] tokens = tokens(xml);
+            Ops ops = new Ops(xml);
+            int expected = 0; //the keyframe token that follows the previous one
+            for (int t = 0; t < tokens.length - 1; t++) {
+                int start = tokens[t];
+                int end = tokens[t + 1];
+                boolean inKeyframe = expected < baseTokens.length - 1;
+                int match = inKeyframe && sameToken(xml, start, end, expected) ? expected : find(xml, start, end, expected);
+                if (match >= 0) {
+                    ops.copy(baseTokens[match], baseTokens[match + 1]);
+                    expected = match + 1;
+                } else if (inKeyframe) {
+                    changedInPlace(ops, xml, start, end, expected);
+                    expected++;
+                } else {
+                    ops.literal(start, end);
+                }
+            }
+            encoded++;
+            return new DeltaXml(keyframe, ops.finish(), xml.length);
+        }
+
+        /**
+         * Most changes are to an element's text, so the start and end it has in common with the keyframe token in
+         * the same place are copied and only what is between them is stored.
+         */
+        private void changedInPlace(Ops ops, byte[] xml, int start, int end, int baseToken) {
+            int baseStart = baseTokens[baseToken];
+            int baseEnd = baseTokens[baseToken + 1];
+            int max = Math.min(end - start, baseEnd - baseStart);
+            int prefix = 0;
+            while (prefix < max && xml[start + prefix] == base[baseStart + prefix]) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < max - prefix && xml[end - 1 - suffix] == base[baseEnd - 1 - suffix]) {
+                suffix++;
+            }
+            ops.copy(baseStart, baseStart + prefix);
+            ops.literal(start + prefix, end - suffix);
+            ops.copy(baseEnd - suffix, baseEnd);
+        }
+
+        /**
+         * @return the keyframe token equal to the given one, the first after expected if there are several, or -1
+         */
+        private int find(byte[] xml, int start, int end, int expected) {
+            int[] candidates = tokensByHash.get(hash(xml, start, end));
+            if (candidates == null) {
+                return -1;
+            }
+            int found = -1;
+            for (int candidate : candidates) {
+                if (sameToken(xml, start, end, candidate)) {
+                    if (candidate >= expected) {
+                        return candidate;
+                    }
+                    if (found < 0) {
+                        found = candidate;
+                    }
+                }
+            }
+            return found;
+        }
+
+        private boolean sameToken(byte[] xml, int start, int end, int baseToken) {
+            return Arrays.equals(xml, start, end, base, baseTokens[baseToken], baseTokens[baseToken + 1]);
+        }
+
+        private static int hash(byte[] bytes, int start, int end) {
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            return hash;
+        }
+
+        /**
+         * @return where each token starts, with xml.length last: a token is an element boundary and what follows
+         * up to the next one
+         */
+        private static int[] tokens(byte[] xml) {
+            int count = 1;
+            for (int i = 1; i < xml.length; i++) {
+                if (xml[i] == '<') {
+                    count++;
+                }
+            }
+            int[] starts = new int[xml.length == 0 ? 1 : count + 1];
+            int n = 0;
+            if (xml.length > 0) {
+                starts[n++] = 0;
+                for (int i = 1; i < xml.length; i++) {
+                    if (xml[i] == '<') {
+                        starts[n++] = i;
+                    }
+                }
+            }
+            starts[n] = xml.length;
+            return starts;
+        }
+
+    }
+
+    /**
+     * Collects the ops, joining a copy or literal with the one before when they are contiguous.
+     */
+    private static final class Ops {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        private final byte[] xml;
+        private int copyStart = -1;
+        private int copyEnd;
+        private int literalStart = -1;
+        private int literalEnd;
+
+        private Ops(byte[] xml) {
+            this.xml = xml;
+        }
+
+        void copy(int start, int end) {
+            if (start == end) {
+                return;
+            }
+            flushLiteral();
+            if (copyStart >= 0 && copyEnd == start) {
+                copyEnd = end;
+                return;
+            }
+            flushCopy();
+            copyStart = start;
+            copyEnd = end;
+        }
+
+        void literal(int start, int end) {
+            if (start == end) {
+                return;
+            }
+            flushCopy();
+            if (literalStart >= 0 && literalEnd == start) {
+                literalEnd = end;
+                return;
+            }
+            flushLiteral();
+            literalStart = start;
+            literalEnd = end;
+        }
+
+        byte[] finish() {
+            flushCopy();
+            flushLiteral();
+            return out.toByteArray();
+        }
+
+        private void flushCopy() {
+            if (copyStart >= 0) {
+                writeVarint(out, (long) copyStart << 1);
+                writeVarint(out, copyEnd - copyStart);
+                copyStart = -1;
+            }
+        }
+
+        private void flushLiteral() {
+            if (literalStart >= 0) {
+                writeVarint(out, ((long) (literalEnd - literalStart) << 1) | 1);
+                out.write(xml, literalStart, literalEnd - literalStart);
+                literalStart = -1;
+            }
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] bytes, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
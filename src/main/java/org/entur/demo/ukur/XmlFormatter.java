@@ -0,0 +1,70 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * Pretty prints xml for display. Only used when xml actually is shown, received payloads are stored as is.
+ */
+public final class XmlFormatter {
+
+    private static final Logger logger = LoggerFactory.getLogger(XmlFormatter.class);
+    private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+    static {
+        transformerFactory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        transformerFactory.setAttribute(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "");
+    }
+
+    private XmlFormatter() {}
+
+    public static String format(String xml) {
+        if (xml == null || isFormatted(xml)) {
+            return xml;
+        }
+        try {
+            Transformer transformer = transformerFactory.newTransformer();
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
+            StringWriter writer = new StringWriter(xml.length() * 2);
+            transformer.transform(new StreamSource(new StringReader(xml)), new StreamResult(writer));
+            return writer.toString();
+        } catch (Exception e) {
+            logger.debug("Could not format xml, returns it unformatted", e);
+            return xml;
+        }
+    }
+
+    /**
+     * Payloads that already have line breaks after the xml declaration are assumed to be formatted by the producer.
+     */
+    private static boolean isFormatted(String xml) {
+        int bodyStart = xml.indexOf('<', xml.startsWith("<?") ? xml.indexOf("?>") + 2 : 0);
+        return bodyStart >= 0 && xml.indexOf('\n', bodyStart) > 0;
+    }
+}
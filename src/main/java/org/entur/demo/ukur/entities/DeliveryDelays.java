@@ -0,0 +1,57 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.entities;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The delivery delays for a subscription in the last minute, 15 minutes and hour - for all its deliveries and for
+ * each type of message they contained.
+ */
+public class DeliveryDelays {
+
+    public static final String ALL_TYPES = "ALL";
+
+    private final String subscriptionId;
+    private final List<String> windows;
+    private final Map<String, Map<String, DelayStatistics>> types;
+
+    public DeliveryDelays(String subscriptionId, List<String> windows, Map<String, Map<String, DelayStatistics>> types) {
+        this.subscriptionId = subscriptionId;
+        this.windows = windows;
+        this.types = types;
+    }
+
+    public String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    /**
+     * @return the names of the windows, like "1m", in the order they are given for each type. A window may cover up
+     * to a sixth of its length more, as it is counted in whole time slices.
+     */
+    public List<String> getWindows() {
+        return windows;
+    }
+
+    /**
+     * @return the statistics by window for ALL and each message type that has been received
+     */
+    public Map<String, Map<String, DelayStatistics>> getTypes() {
+        return types;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.entities;
+
+/**
+ * Snapshot of the push ingest queues, used to size the worker pool.
+ */
+public class IngestStatistics {
+    private final boolean async;
+    private final int workers;
+    private final int queueCapacity;
+    private final int queueDepth;
+    private final long accepted;
+    private final long rejected;
+    private final long failed;
+    private final long queued;
+    private final double averageQueueMillis;
+    private final double maxQueueMillis;
+    private final long processed;
+    private final double averageProcessMillis;
+    private final double maxProcessMillis;
+
+    public IngestStatistics(boolean async, int workers, int queueCapacity, int queueDepth,
+                            long accepted, long rejected, long failed,
+                            long queued, double averageQueueMillis, double maxQueueMillis,
+                            long processed, double averageProcessMillis, double maxProcessMillis) {
+        this.async = async;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        this.queueDepth = queueDepth;
+        this.accepted = accepted;
+        this.rejected = rejected;
+        this.failed = failed;
+        this.queued = queued;
+        this.averageQueueMillis = averageQueueMillis;
+        this.maxQueueMillis = maxQueueMillis;
+        this.processed = processed;
+        this.averageProcessMillis = averageProcessMillis;
+        this.maxProcessMillis = maxProcessMillis;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getAccepted() {
+        return accepted;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getQueued() {
+        return queued;
+    }
+
+    public double getAverageQueueMillis() {
+        return averageQueueMillis;
+    }
+
+    public double getMaxQueueMillis() {
+        return maxQueueMillis;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public double getAverageProcessMillis() {
+        return averageProcessMillis;
+    }
+
+    public double getMaxProcessMillis() {
+        return maxProcessMillis;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.entities;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * The latest known state of a journey, merged from all estimated timetable updates received for it.
+ */
+public class JourneyStatus {
+    private final String journeyRef;
+    private final String lineRef;
+    private final boolean cancelled;
+    private final boolean complete;
+    private final LocalDateTime updated;
+    private final int updates;
+    private final List<Call> calls;
+
+    public JourneyStatus(String journeyRef, String lineRef, boolean cancelled, boolean complete, LocalDateTime updated,
+                         int updates, List<Call> calls) {
+        this.journeyRef = journeyRef;
+        this.lineRef = lineRef;
+        this.cancelled = cancelled;
+        this.complete = complete;
+        this.updated = updated;
+        this.updates = updates;
+        this.calls = calls;
+    }
+
+    public String getJourneyRef() {
+        return journeyRef;
+    }
+
+    public String getLineRef() {
+        return lineRef;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true when the journey has arrived at its last stop
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public LocalDateTime getUpdated() {
+        return updated;
+    }
+
+    /**
+     * @return number of updates merged into this state
+     */
+    public int getUpdates() {
+        return updates;
+    }
+
+    public List<Call> getCalls() {
+        return calls;
+    }
+
+    /**
+     * A stop on the journey. For recorded calls the expected times are the actual times.
+     */
+    public static class Call {
+        private final String stopPointRef;
+        private final LocalDateTime aimedArrival;
+        private final LocalDateTime expectedArrival;
+        private final LocalDateTime aimedDeparture;
+        private final LocalDateTime expectedDeparture;
+        private final boolean recorded;
+        private final boolean cancelled;
+        private final boolean delayed;
+        private final boolean trackChange;
+
+        public Call(String stopPointRef, LocalDateTime aimedArrival, LocalDateTime expectedArrival,
+                    LocalDateTime aimedDeparture, LocalDateTime expectedDeparture,
+                    boolean recorded, boolean cancelled, boolean delayed, boolean trackChange) {
+            this.stopPointRef = stopPointRef;
+            this.aimedArrival = aimedArrival;
+            this.expectedArrival = expectedArrival;
+            this.aimedDeparture = aimedDeparture;
+            this.expectedDeparture = expectedDeparture;
+            this.recorded = recorded;
+            this.cancelled = cancelled;
+            this.delayed = delayed;
+            this.trackChange = trackChange;
+        }
+
+        public String getStopPointRef() {
+            return stopPointRef;
+        }
+
+        public LocalDateTime getAimedArrival() {
+            return aimedArrival;
+        }
+
+        public LocalDateTime getExpectedArrival() {
+            return expectedArrival;
+        }
+
+        public LocalDateTime getAimedDeparture() {
+            return aimedDeparture;
+        }
+
+        public LocalDateTime getExpectedDeparture() {
+            return expectedDeparture;
+        }
+
+        public boolean isRecorded() {
+            return recorded;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDelayed() {
+            return delayed;
+        }
+
+        public boolean isTrackChange() {
+            return trackChange;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.entities;
+
+import java.util.List;
+
+/**
+ * One page of stored messages for a subscription. Use older as the before cursor to get the next page, and latest
+ * as the since token to later only get what has been received after this page was read.
+ */
+public class MessagePage {
+    private final List<ReceivedMessage> messages;
+    private final int total;
+    private final Long older;
+    private final long latest;
+
+    public MessagePage(List<ReceivedMessage> messages, int total, Long older, long latest) {
+        this.messages = messages;
+        this.total = total;
+        this.older = older;
+        this.latest = latest;
+    }
+
+    public List<ReceivedMessage> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return number of messages stored for the subscription
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return cursor for the page with older messages, null when there are none
+     */
+    public Long getOlder() {
+        return older;
+    }
+
+    /**
+     * @return sequence number of the last stored message when the page was read, -1 if there are none
+     */
+    public long getLatest() {
+        return latest;
+    }
+}
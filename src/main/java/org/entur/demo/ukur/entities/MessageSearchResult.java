@@ -0,0 +1,69 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.entities;
+
+import java.util.List;
+
+/**
+ * The stored messages matching a search, newest first.
+ */
+public class MessageSearchResult {
+    private final int total;
+    private final List<Hit> hits;
+    private final long tookMicros;
+
+    public MessageSearchResult(int total, List<Hit> hits, long tookMicros) {
+        this.total = total;
+        this.hits = hits;
+        this.tookMicros = tookMicros;
+    }
+
+    /**
+     * @return number of matching messages, there may be more than the hits returned
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    public List<Hit> getHits() {
+        return hits;
+    }
+
+    /**
+     * @return time spent finding the matches in the index
+     */
+    public long getTookMicros() {
+        return tookMicros;
+    }
+
+    public static class Hit {
+        private final String subscriptionId;
+        private final ReceivedMessage message;
+
+        public Hit(String subscriptionId, ReceivedMessage message) {
+            this.subscriptionId = subscriptionId;
+            this.message = message;
+        }
+
+        public String getSubscriptionId() {
+            return subscriptionId;
+        }
+
+        public ReceivedMessage getMessage() {
+            return message;
+        }
+    }
+}
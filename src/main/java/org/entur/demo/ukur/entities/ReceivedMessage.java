@@ -15,63 +15,196 @@
 
 package org.entur.demo.ukur.entities;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.entur.demo.ukur.CompressedXml;
+import org.entur.demo.ukur.DeltaXml;
+import org.entur.demo.ukur.XmlFormatter;
+
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.function.Supplier;
 
+/**
+ * A stored message, kept compact as there may be a great many of them: times and the delay are primitives and the
+ * type is an ordinal. Everything shown to users is formatted when it is asked for, and the human readable text is
+ * built from its source the first time and then kept.
+ */
 public class ReceivedMessage {
-    private String xmlString;
-    private MessageTypeEnum type;
-    private LocalDateTime received = LocalDateTime.now();
-    private String humanReadable;
-    private String delay = null;
+    private static final MessageTypeEnum[] TYPES = MessageTypeEnum.values();
+    private static final long NO_DELAY = Long.MIN_VALUE;
+
+    private Object body;
+    private Object humanReadable;
+    private long receivedMillis = System.currentTimeMillis();
+    private long delayMillis = NO_DELAY;
+    private long sequence;
+    private int footprint;
+    private int deliveryIndex;
+    private byte type = -1;
 
     public ReceivedMessage(String xmlString) {
-        this.xmlString = xmlString;
+        this.body = xmlString;
+    }
+
+    public ReceivedMessage(CompressedXml compressedXml) {
+        this.body = compressedXml;
+    }
+
+    public ReceivedMessage(DeltaXml deltaXml) {
+        this.body = deltaXml;
     }
 
     public ReceivedMessage() {
     }
 
+    /**
+     * @return the received xml, formatted for display
+     */
+    @JsonIgnore
     public String getXmlString() {
-        return xmlString;
+        return XmlFormatter.format(getRawXmlString());
+    }
+
+    /**
+     * @return the received xml, decompressed or rebuilt from its keyframe if it is stored compressed or as a delta.
+     * It is the whole delivery, shared by all messages made from it, so it is left out of the json
+     */
+    @JsonIgnore
+    public String getRawXmlString() {
+        if (body instanceof CompressedXml) {
+            return ((CompressedXml) body).decompress();
+        }
+        if (body instanceof DeltaXml) {
+            return ((DeltaXml) body).decompress();
+        }
+        return (String) body;
+    }
+
+    /**
+     * @return the stored body if it is compressed, otherwise null
+     */
+    @JsonIgnore
+    public CompressedXml getCompressedXml() {
+        return body instanceof CompressedXml ? (CompressedXml) body : null;
     }
 
     public void setXmlString(String xmlString) {
-        this.xmlString = xmlString;
+        this.body = xmlString;
     }
 
     public MessageTypeEnum getType() {
-        return type;
+        return type < 0 ? null : TYPES[type];
     }
 
     public void setType(MessageTypeEnum type) {
-        this.type = type;
+        this.type = type == null ? -1 : (byte) type.ordinal();
     }
 
     public LocalDateTime getReceived() {
-        return received;
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(receivedMillis), ZoneId.systemDefault());
     }
 
     public void setReceived(LocalDateTime received) {
-        this.received = received;
+        this.receivedMillis = received.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    public long getReceivedMillis() {
+        return receivedMillis;
     }
 
+    public void setReceivedMillis(long receivedMillis) {
+        this.receivedMillis = receivedMillis;
+    }
+
+    /**
+     * @return the human readable text, built (once) from its source if that hasn't happened yet
+     */
     public String getHumanReadable() {
-        return humanReadable;
+        Object text = humanReadable;
+        if (text instanceof Supplier) {
+            text = ((Supplier<?>) text).get();
+            humanReadable = text; //Strings are immutable, so it is safe for others to see this without locking
+        }
+        return (String) text;
     }
 
     public void setHumanReadable(String humanReadable) {
         this.humanReadable = humanReadable;
     }
 
+    /**
+     * @param source builds the human readable text the first time it is asked for
+     */
+    public void setHumanReadableSource(Supplier<String> source) {
+        this.humanReadable = source;
+    }
+
+    /**
+     * @return true if the human readable text is built or given
+     */
+    @JsonIgnore
+    public boolean isHumanReadableBuilt() {
+        return !(humanReadable instanceof Supplier);
+    }
+
     public void setDeliveryDelay(long milliseconds) {
-        long millis = milliseconds % 1000;
-        long seconds = (milliseconds / 1000) % 60;
-        long minutes = (milliseconds / 1000) / 60;
-        delay = String.format("%d:%d,%03d", minutes, seconds, millis);
+        this.delayMillis = milliseconds;
     }
 
+    /**
+     * @return the delivery delay formatted as minutes:seconds,millis - or null if not known
+     */
     public String getDeliveryDelay() {
-        return delay;
+        if (delayMillis == NO_DELAY) {
+            return null;
+        }
+        long millis = delayMillis % 1000;
+        long seconds = (delayMillis / 1000) % 60;
+        long minutes = (delayMillis / 1000) / 60;
+        return String.format("%d:%d,%03d", minutes, seconds, millis);
+    }
+
+    /**
+     * @return the delivery delay in milliseconds, null if not known
+     */
+    public Long getDeliveryDelayMillis() {
+        return delayMillis == NO_DELAY ? null : delayMillis;
+    }
+
+    /**
+     * @return the order this message was stored in for its subscription, used as cursor when reading messages
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return estimated bytes of heap this message holds on to, used to enforce the retention limits
+     */
+    @JsonIgnore
+    public int getFootprint() {
+        return footprint;
+    }
+
+    public void setFootprint(int footprint) {
+        this.footprint = footprint;
+    }
+
+    /**
+     * @return which of the situations and journeys in the received delivery this message is
+     */
+    @JsonIgnore
+    public int getDeliveryIndex() {
+        return deliveryIndex;
+    }
+
+    public void setDeliveryIndex(int deliveryIndex) {
+        this.deliveryIndex = deliveryIndex;
     }
 
 }
@@ -0,0 +1,145 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.entities;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * The latest version of a situation and the versions it has superseded, newest first.
+ */
+public class SituationStatus {
+    private final String participant;
+    private final String situationNumber;
+    private final long version;
+    private final String progress;
+    private final boolean active;
+    private final String summary;
+    private final String description;
+    private final List<Period> validityPeriods;
+    private final List<String> lineRefs;
+    private final List<String> stopPointRefs;
+    private final LocalDateTime updated;
+    private final List<Version> previousVersions;
+
+    public SituationStatus(String participant, String situationNumber, long version, String progress, boolean active,
+                           String summary, String description, List<Period> validityPeriods,
+                           List<String> lineRefs, List<String> stopPointRefs, LocalDateTime updated,
+                           List<Version> previousVersions) {
+        this.participant = participant;
+        this.situationNumber = situationNumber;
+        this.version = version;
+        this.progress = progress;
+        this.active = active;
+        this.summary = summary;
+        this.description = description;
+        this.validityPeriods = validityPeriods;
+        this.lineRefs = lineRefs;
+        this.stopPointRefs = stopPointRefs;
+        this.updated = updated;
+        this.previousVersions = previousVersions;
+    }
+
+    public String getParticipant() {
+        return participant;
+    }
+
+    public String getSituationNumber() {
+        return situationNumber;
+    }
+
+    /**
+     * @return the situation's Version, 0 when not given
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public String getProgress() {
+        return progress;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public String getSummary() {
+        return summary;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public List<Period> getValidityPeriods() {
+        return validityPeriods;
+    }
+
+    public List<String> getLineRefs() {
+        return lineRefs;
+    }
+
+    public List<String> getStopPointRefs() {
+        return stopPointRefs;
+    }
+
+    public LocalDateTime getUpdated() {
+        return updated;
+    }
+
+    public List<Version> getPreviousVersions() {
+        return previousVersions;
+    }
+
+    /**
+     * A validity period, start or end is null when open.
+     */
+    public static class Period {
+        private final LocalDateTime start;
+        private final LocalDateTime end;
+
+        public Period(LocalDateTime start, LocalDateTime end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public LocalDateTime getStart() {
+            return start;
+        }
+
+        public LocalDateTime getEnd() {
+            return end;
+        }
+    }
+
+    public static class Version {
+        private final long version;
+        private final LocalDateTime received;
+
+        public Version(long version, LocalDateTime received) {
+            this.version = version;
+            this.received = received;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public LocalDateTime getReceived() {
+            return received;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.DelayStatistics;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Delivery delays in log-linear buckets like an HdrHistogram: exact up to 32 ms and then 16 buckets for each power
+ * of two, so a percentile is never more than 1/16 (about 6%) above the real value. The max is exact, but delays
+ * longer than MAX_DELAY are counted as that.
+ * <p>
+ * Delays are counted in time slices kept in three rings: ten second slices for the 1 minute window, one minute
+ * slices for the 15 minute window and five minute slices for the hour. A window is its whole slices plus the
+ * current one, so it covers up to one slice more than its length: 60-70 seconds, 15-16 minutes and 60-65 minutes.
+ * <p>
+ * A slice only allocates the counts for the powers of two it has seen, as the delays of a subscription are usually
+ * within a few of them, which keeps a slice at a few hundred bytes. Recording never locks: a slice that has rolled
+ * over and a missing power of two are replaced with a compare-and-set, and the counts are atomic increments.
+ */
+class DelayHistogram {
+
+    static final long MINUTE = 60_000;
+    /**
+     * The shortest time slice, the statistics of all windows can only change when a new one starts.
+     */
+    static final long SLICE_MILLIS = MINUTE / 6;
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    /**
+     * Longer delays (about 70 minutes) are counted as this.
+     */
+    static final long MAX_DELAY = (1L << 22) - 1;
+    static final int BUCKETS = bucket(MAX_DELAY) + 1;
+    private static final int CHUNKS = BUCKETS / HALF_SUB_BUCKETS;
+
+    private final Ring tenSeconds = new Ring(SLICE_MILLIS, 7);
+    private final Ring minutes = new Ring(MINUTE, 16);
+    private final Ring fiveMinutes = new Ring(5 * MINUTE, 13);
+    private volatile long lastRecordedMillis;
+
+    /**
+     * @param receivedMillis when the delivery was received, decides the time slice it is counted in
+     */
+    void record(long delayMillis, long receivedMillis) {
+        long delay = Math.max(0, Math.min(delayMillis, MAX_DELAY)); //clocks may be off a little
+        int bucket = bucket(delay);
+        tenSeconds.record(receivedMillis, bucket, delay);
+        minutes.record(receivedMillis, bucket, delay);
+        fiveMinutes.record(receivedMillis, bucket, delay);
+        if (receivedMillis > lastRecordedMillis) {
+            lastRecordedMillis = receivedMillis;
+        }
+    }
+
+    long lastRecordedMillis() {
+        return lastRecordedMillis;
+    }
+
+    /**
+     * Adds the counts of the delays received in the last windowMinutes (1, 15 or 60) to counts, which has BUCKETS
+     * elements.
+     *
+     * @return the longest of the added delays, -1 if none
+     */
+    long addTo(long[] counts, int windowMinutes, long nowMillis) {
+        if (windowMinutes <= 1) {
+            return tenSeconds.addTo(counts, 6, nowMillis);
+        }
+        if (windowMinutes <= 15) {
+            return minutes.addTo(counts, windowMinutes, nowMillis);
+        }
+        return fiveMinutes.addTo(counts, windowMinutes / 5, nowMillis);
+    }
+
+    /**
+     * @param counts as added to by addTo
+     */
+    static DelayStatistics statistics(long[] counts, long max) {
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        if (count == 0) {
+            return new DelayStatistics(0, 0, 0, 0, 0);
+        }
+        return new DelayStatistics(count, percentile(counts, count, 50, max), percentile(counts, count, 95, max),
+                percentile(counts, count, 99, max), max);
+    }
+
+    private static long percentile(long[] counts, long count, double percentile, long max) {
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(highestEquivalent(bucket), max);
+            }
+        }
+        return max;
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKETS + (int) (value >> shift);
+    }
+
+    /**
+     * @return the highest value counted in the bucket
+     */
+    static long highestEquivalent(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / HALF_SUB_BUCKETS - 1;
+        long subBucket = bucket % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    private static final class Ring {
+        private final long sliceMillis;
+        private final AtomicReferenceArray<Slice> slices;
+
+        Ring(long sliceMillis, int length) {
+            this.sliceMillis = sliceMillis;
+            this.slices = new AtomicReferenceArray<>(length);
+        }
+
+        void record(long millis, int bucket, long delay) {
+            long epoch = millis / sliceMillis;
+            int index = (int) Math.floorMod(epoch, (long) slices.length());
+            while (true) {
+                Slice slice = slices.get(index);
+                if (slice != null && slice.epoch == epoch) {
+                    slice.record(bucket, delay);
+                    return;
+                }
+                if (slice != null && slice.epoch > epoch) {
+                    return; //too old for any window
+                }
+                slices.compareAndSet(index, slice, new Slice(epoch));
+            }
+        }
+
+        long addTo(long[] counts, int wholeSlices, long nowMillis) {
+            long current = nowMillis / sliceMillis;
+            long max = -1;
+            for (long epoch = current - wholeSlices; epoch <= current; epoch++) {
+                Slice slice = slices.get((int) Math.floorMod(epoch, (long) slices.length()));
+                if (slice != null && slice.epoch == epoch) {
+                    slice.addTo(counts);
+                    max = Math.max(max, slice.max.get());
+                }
+            }
+            return max;
+        }
+    }
+
+    /**
+     * The counts in chunks of HALF_SUB_BUCKETS buckets, one for each power of two above the exact ones.
+     */
+    private static final class Slice {
+        private final long epoch;
+        private final AtomicReferenceArray<AtomicIntegerArray> chunks = new AtomicReferenceArray<>(CHUNKS);
+        private final AtomicLong max = new AtomicLong(-1);
+
+        Slice(long epoch) {
+            this.epoch = epoch;
+        }
+
+        void record(int bucket, long delay) {
+            int chunk = bucket / HALF_SUB_BUCKETS;
+            AtomicIntegerArray counts = chunks.get(chunk);
+            if (counts == null) {
+                chunks.compareAndSet(chunk, null, new AtomicIntegerArray(HALF_SUB_BUCKETS));
+                counts = chunks.get(chunk);
+            }
+            counts.incrementAndGet(bucket % HALF_SUB_BUCKETS);
+            max.accumulateAndGet(delay, Math::max);
+        }
+
+        void addTo(long[] counts) {
+            for (int chunk = 0; chunk < CHUNKS; chunk++) {
+                AtomicIntegerArray chunkCounts = chunks.get(chunk);
+                if (chunkCounts != null) {
+                    for (int i = 0; i < HALF_SUB_BUCKETS; i++) {
+                        counts[chunk * HALF_SUB_BUCKETS + i] += chunkCounts.get(i);
+                    }
+                }
+            }
+        }
+    }
+}
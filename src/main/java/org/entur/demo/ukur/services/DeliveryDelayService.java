@@ -0,0 +1,168 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import jakarta.annotation.PostConstruct;
+import org.entur.demo.ukur.entities.DelayStatistics;
+import org.entur.demo.ukur.entities.DeliveryDelays;
+import org.entur.demo.ukur.entities.MessageTypeEnum;
+import org.entur.demo.ukur.entities.ReceivedMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.entur.demo.ukur.entities.DeliveryDelays.ALL_TYPES;
+
+/**
+ * Keeps the distribution of the delivery delays for each subscription and type of message, so the end-to-end
+ * latency from Ukur can be followed over the last minute, 15 minutes and hour. A delivery is counted once for each
+ * type of message it contained, no matter how many messages there were.
+ */
+@Service
+public class DeliveryDelayService {
+
+    private static final MessageTypeEnum[] TYPES = MessageTypeEnum.values();
+    private static final List<String> WINDOWS = List.of("1m", "15m", "1h");
+    private static final int[] WINDOW_MINUTES = {1, 15, 60};
+
+    private final Map<String, AtomicReferenceArray<DelayHistogram>> histograms = new ConcurrentHashMap<>();
+    private final MessageService messageService;
+
+    @Autowired
+    public DeliveryDelayService(MessageService messageService) {
+        this.messageService = messageService;
+    }
+
+    @PostConstruct
+    void start() {
+        messageService.addStoredMessageListener((subscriptionId, messages, pushMessages, described) -> record(subscriptionId, messages));
+    }
+
+    void record(String subscriptionId, List<ReceivedMessage> messages) {
+        int recordedTypes = 0;
+        for (ReceivedMessage message : messages) {
+            Long delay = message.getDeliveryDelayMillis();
+            MessageTypeEnum type = message.getType();
+            if (delay == null || type == null || (recordedTypes & (1 << type.ordinal())) != 0) {
+                continue;
+            }
+            recordedTypes |= 1 << type.ordinal();
+            histogram(subscriptionId, type).record(delay, message.getReceivedMillis());
+        }
+    }
+
+    public DeliveryDelays getDeliveryDelays(String subscriptionId) {
+        return getDeliveryDelays(subscriptionId, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the delays for the subscriptions with deliveries the last hour
+     */
+    public List<DeliveryDelays> getAllDeliveryDelays() {
+        long now = System.currentTimeMillis();
+        List<DeliveryDelays> result = new ArrayList<>();
+        for (String subscriptionId : histograms.keySet()) {
+            result.add(getDeliveryDelays(subscriptionId, now));
+        }
+        return result;
+    }
+
+    DeliveryDelays getDeliveryDelays(String subscriptionId, long nowMillis) {
+        AtomicReferenceArray<DelayHistogram> byType = histograms.get(subscriptionId);
+        Map<String, Map<String, DelayStatistics>> types = new LinkedHashMap<>();
+        Map<String, DelayStatistics> all = new LinkedHashMap<>();
+        types.put(ALL_TYPES, all);
+        for (int w = 0; w < WINDOWS.size(); w++) {
+            long[] allCounts = new long[DelayHistogram.BUCKETS];
+            long allMax = -1;
+            for (int t = 0; byType != null && t < TYPES.length; t++) {
+                DelayHistogram histogram = byType.get(t);
+                if (histogram == null) {
+                    continue;
+                }
+                long[] counts = new long[DelayHistogram.BUCKETS];
+                long max = histogram.addTo(counts, WINDOW_MINUTES[w], nowMillis);
+                types.computeIfAbsent(TYPES[t].name(), name -> new LinkedHashMap<>())
+                        .put(WINDOWS.get(w), DelayHistogram.statistics(counts, max));
+                for (int bucket = 0; bucket < counts.length; bucket++) {
+                    allCounts[bucket] += counts[bucket];
+                }
+                allMax = Math.max(allMax, max);
+            }
+            all.put(WINDOWS.get(w), DelayHistogram.statistics(allCounts, allMax));
+        }
+        return new DeliveryDelays(subscriptionId, WINDOWS, types);
+    }
+
+    /**
+     * @return a stamp that changes whenever the subscription's delays could have changed, apart from new deliveries:
+     * the current ten second slice while there are deliveries in the windows, as they move with time, otherwise 0
+     */
+    public long getStamp(String subscriptionId) {
+        return getStamp(subscriptionId, System.currentTimeMillis());
+    }
+
+    long getStamp(String subscriptionId, long nowMillis) {
+        AtomicReferenceArray<DelayHistogram> byType = histograms.get(subscriptionId);
+        long cutoff = nowMillis - (WINDOW_MINUTES[WINDOW_MINUTES.length - 1] + 5) * DelayHistogram.MINUTE;
+        for (int t = 0; byType != null && t < byType.length(); t++) {
+            DelayHistogram histogram = byType.get(t);
+            if (histogram != null && histogram.lastRecordedMillis() >= cutoff) {
+                return nowMillis / DelayHistogram.SLICE_MILLIS;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Forgets the subscriptions without deliveries the last hour.
+     */
+    @Scheduled(fixedDelay = 60_000)
+    void removeIdle() {
+        removeIdle(System.currentTimeMillis());
+    }
+
+    void removeIdle(long nowMillis) {
+        long cutoff = nowMillis - (WINDOW_MINUTES[WINDOW_MINUTES.length - 1] + 5) * DelayHistogram.MINUTE;
+        histograms.values().removeIf(byType -> {
+            for (int t = 0; t < byType.length(); t++) {
+                DelayHistogram histogram = byType.get(t);
+                if (histogram != null && histogram.lastRecordedMillis() >= cutoff) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    private DelayHistogram histogram(String subscriptionId, MessageTypeEnum type) {
+        AtomicReferenceArray<DelayHistogram> byType = histograms.computeIfAbsent(subscriptionId,
+                id -> new AtomicReferenceArray<>(TYPES.length));
+        DelayHistogram histogram = byType.get(type.ordinal());
+        if (histogram == null) {
+            byType.compareAndSet(type.ordinal(), null, new DelayHistogram());
+            histogram = byType.get(type.ordinal());
+        }
+        return histogram;
+    }
+}
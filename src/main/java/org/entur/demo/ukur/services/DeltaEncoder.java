@@ -0,0 +1,60 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.DeltaXml;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps a keyframe for each of a subscription's most recently updated journeys and encodes new payloads for the
+ * same journey as deltas from it. A new keyframe is made when the delta would not be much smaller than the
+ * compressed keyframe, and after a number of deltas, so a message never depends on a keyframe that is very old.
+ * The encoders hold their keyframes uncompressed, which is heap the stored messages' footprint does not count.
+ */
+class DeltaEncoder {
+
+    static final int MAX_JOURNEYS = 256;
+    static final int MAX_DELTAS_PER_KEYFRAME = 100;
+
+    private final Map<String, DeltaXml.Encoder> encoders = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DeltaXml.Encoder> eldest) {
+            return size() > MAX_JOURNEYS;
+        }
+    };
+
+    /**
+     * @return a DeltaXml, or the CompressedXml of a new keyframe
+     */
+    synchronized Object encode(String journeyRef, byte[] xml) {
+        DeltaXml.Encoder encoder = encoders.get(journeyRef);
+        if (encoder != null && encoder.getEncoded() < MAX_DELTAS_PER_KEYFRAME) {
+            DeltaXml delta = encoder.encode(xml);
+            if (delta.getDeltaSize() * 2 < encoder.getKeyframe().getCompressedSize()) {
+                return delta;
+            }
+        }
+        encoder = new DeltaXml.Encoder(xml);
+        encoders.put(journeyRef, encoder);
+        return encoder.getKeyframe();
+    }
+
+    synchronized int size() {
+        return encoders.size();
+    }
+}
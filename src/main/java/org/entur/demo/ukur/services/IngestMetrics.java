@@ -0,0 +1,195 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.entur.demo.ukur.entities.MessageTypeEnum;
+import org.entur.demo.ukur.entities.Subscription;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Meters for the ingest path, scraped from /actuator/prometheus. The meters used for every push are looked up
+ * once and kept, so recording is only a few atomic updates.
+ * <p>
+ * The meters tagged with a subscription or push id are removed with the subscription. At most
+ * metrics.subscription-tags.max subscriptions and push ids are tagged at a time, the rest are counted as "other",
+ * and 0 turns the tags off.
+ */
+@Component
+public class IngestMetrics {
+
+    public enum Stage {
+        UNMARSHAL, MARSHAL, COMPRESS, HUMANIZE, LISTENERS, STORE
+    }
+
+    private static final MessageTypeEnum[] TYPES = MessageTypeEnum.values();
+    private static final double KB = 1024;
+    private static final String OTHER = "other";
+
+    private final MeterRegistry registry;
+    private final SubscriptionService subscriptionService;
+    private final int maxTagged;
+    private final Timer[] stages = new Timer[Stage.values().length];
+    private final Timer deliveryDelay;
+    private final DistributionSummary payloadSize;
+    private final Map<String, Counter[]> receivedMessages = new ConcurrentHashMap<>();
+    private final Map<String, Counter> pushes = new ConcurrentHashMap<>();
+    private final Set<String> taggedPushIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Meters that are not published anywhere.
+     */
+    public IngestMetrics() {
+        this(new CompositeMeterRegistry());
+    }
+
+    public IngestMetrics(MeterRegistry registry) {
+        this(registry, null, Integer.MAX_VALUE);
+    }
+
+    @Autowired
+    public IngestMetrics(MeterRegistry registry, SubscriptionService subscriptionService,
+                         @Value("${metrics.subscription-tags.max:1000}") int maxTagged) {
+        this.registry = registry;
+        this.subscriptionService = subscriptionService;
+        this.maxTagged = maxTagged;
+        for (Stage stage : Stage.values()) {
+            stages[stage.ordinal()] = Timer.builder("ukur.ingest.stage")
+                    .description("Time spent in each stage of handling a push")
+                    .tag("stage", stage.name().toLowerCase(Locale.ROOT))
+                    .publishPercentileHistogram()
+                    .register(registry);
+        }
+        deliveryDelay = Timer.builder("ukur.push.delay")
+                .description("Time from the ResponseTimestamp of a delivery until it is received")
+                .publishPercentileHistogram()
+                .register(registry);
+        payloadSize = DistributionSummary.builder("ukur.push.payload.size")
+                .description("Size of received push payloads")
+                .baseUnit("bytes")
+                .serviceLevelObjectives(KB, 4 * KB, 16 * KB, 64 * KB, 256 * KB, 1024 * KB, 4096 * KB)
+                .register(registry);
+    }
+
+    @PostConstruct
+    void start() {
+        if (subscriptionService != null) {
+            subscriptionService.addRemovedSubscriptionListener(this::removeSubscription);
+        }
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when the stage started
+     */
+    public void record(Stage stage, long startNanos) {
+        stages[stage.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void deliveryDelay(long millis) {
+        deliveryDelay.record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param outcome what the push was answered with: accepted, rejected (ingest queue full), unknown (push id),
+     *                too_large (batch) or invalid
+     */
+    public void pushReceived(String pushId, String outcome, int bytes) {
+        String tag = pushTag(pushId);
+        pushes.computeIfAbsent(tag + '/' + outcome, key -> Counter.builder("ukur.push.received")
+                .description("Received pushes")
+                .tag("pushId", tag)
+                .tag("outcome", outcome)
+                .register(registry)).increment();
+        payloadSize.record(bytes);
+    }
+
+    private String pushTag(String pushId) {
+        if (taggedPushIds.contains(pushId)) {
+            return pushId;
+        }
+        if (taggedPushIds.size() >= maxTagged) {
+            return OTHER;
+        }
+        taggedPushIds.add(pushId);
+        return pushId;
+    }
+
+    public void messageStored(String subscriptionId, MessageTypeEnum type) {
+        if (type == null) {
+            return;
+        }
+        int tagged = receivedMessages.size() - (receivedMessages.containsKey(OTHER) ? 1 : 0);
+        String tag = receivedMessages.containsKey(subscriptionId) || tagged < maxTagged ? subscriptionId : OTHER;
+        Counter[] counters = receivedMessages.computeIfAbsent(tag, id -> {
+            Counter[] byType = new Counter[TYPES.length];
+            for (MessageTypeEnum messageType : TYPES) {
+                byType[messageType.ordinal()] = Counter.builder("ukur.messages.stored")
+                        .description("Stored messages (situations, journeys or notifications)")
+                        .tag("subscription", id)
+                        .tag("type", messageType.name())
+                        .register(registry);
+            }
+            return byType;
+        });
+        counters[type.ordinal()].increment();
+    }
+
+    /**
+     * Removes the meters tagged with the subscription's id or push id.
+     */
+    void removeSubscription(Subscription subscription) {
+        Counter[] counters = receivedMessages.remove(subscription.getId());
+        if (counters != null) {
+            for (Counter counter : counters) {
+                registry.remove(counter);
+            }
+        }
+        String pushId = subscription.getPushId();
+        if (pushId != null && taggedPushIds.remove(pushId)) {
+            pushes.entrySet().removeIf(entry -> {
+                if (entry.getKey().startsWith(pushId + '/')) {
+                    registry.remove(entry.getValue());
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+
+    public <T> void counter(String name, String description, T obj, ToDoubleFunction<T> count) {
+        FunctionCounter.builder(name, obj, count).description(description).register(registry);
+    }
+
+    public <T> void gauge(String name, String description, T obj, ToDoubleFunction<T> value) {
+        Gauge.builder(name, obj, value).description(description).register(registry);
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.JourneyStatus;
+import uk.org.siri.siri20.EstimatedCall;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.RecordedCall;
+import uk.org.siri.siri20.StopAssignmentStructure;
+import uk.org.siri.siri20.StopPointRef;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static uk.org.siri.siri20.CallStatusEnumeration.CANCELLED;
+import static uk.org.siri.siri20.CallStatusEnumeration.DELAYED;
+
+/**
+ * The latest known state of one journey, merged from all EstimatedVehicleJourneys received for it. Immutable, a
+ * merge gives a new state. The calls are held in parallel arrays: four times per call as seconds from a base time
+ * (aimed and expected arrival, aimed and expected departure) and one byte of flags per call.
+ */
+final class JourneyState {
+
+    static final byte RECORDED = 1;
+    static final byte CANCELLED_CALL = 2;
+    static final byte DELAYED_CALL = 4;
+    static final byte TRACK_CHANGE = 8;
+    private static final int NONE = Integer.MIN_VALUE;
+    private static final int TIMES_PER_CALL = 4;
+    private static final int AIMED_ARRIVAL = 0;
+    private static final int EXPECTED_ARRIVAL = 1;
+    private static final int AIMED_DEPARTURE = 2;
+    private static final int EXPECTED_DEPARTURE = 3;
+
+    private final String journeyRef;
+    private final String lineRef;
+    private final boolean cancelled;
+    private final long baseEpochSecond;
+    private final String[] stopPointRefs;
+    private final int[] times;
+    private final byte[] flags;
+    private final long updatedMillis;
+    private final int updates;
+    private final long expiresMillis;
+
+    private JourneyState(String journeyRef, String lineRef, boolean cancelled, List<Call> calls, long updatedMillis,
+                         int updates, long expireAfterMillis, long completedRetentionMillis) {
+        this.journeyRef = journeyRef;
+        this.lineRef = lineRef;
+        this.cancelled = cancelled;
+        this.updatedMillis = updatedMillis;
+        this.updates = updates;
+        long base = Long.MAX_VALUE;
+        for (Call call : calls) {
+            for (long time : call.times) {
+                if (time != Long.MIN_VALUE) {
+                    base = Math.min(base, time);
+                }
+            }
+        }
+        this.baseEpochSecond = base == Long.MAX_VALUE ? 0 : base;
+        this.stopPointRefs = new String[calls.size()];
+        this.times = new int[calls.size() * TIMES_PER_CALL];
+        this.flags = new byte[calls.size()];
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < calls.size(); i++) {
+            Call call = calls.get(i);
+            stopPointRefs[i] = call.stopPointRef;
+            flags[i] = call.flags;
+            for (int t = 0; t < TIMES_PER_CALL; t++) {
+                times[i * TIMES_PER_CALL + t] = call.times[t] == Long.MIN_VALUE ? NONE : (int) (call.times[t] - baseEpochSecond);
+                last = Math.max(last, call.times[t]);
+            }
+        }
+        if (isComplete()) {
+            this.expiresMillis = updatedMillis + completedRetentionMillis;
+        } else {
+            long lastMillis = last == Long.MIN_VALUE ? updatedMillis : Math.max(updatedMillis, last * 1000);
+            this.expiresMillis = lastMillis + expireAfterMillis;
+        }
+    }
+
+    /**
+     * Merges the journey's calls into the current state, matching them on StopPointRef. Times and flags that are
+     * given replace the known ones, calls not seen before are inserted after the previous matched call, or by time
+     * when no earlier call in the update is known.
+     *
+     * @param current null for a journey not seen before
+     */
+    static JourneyState merge(JourneyState current, String journeyRef, EstimatedVehicleJourney journey, long nowMillis,
+                              long expireAfterMillis, long completedRetentionMillis) {
+        List<Call> calls = current == null ? new ArrayList<>() : current.calls();
+        int cursor = 0;
+        for (Call received : calls(journey)) {
+            int index = indexOf(calls, received.stopPointRef, cursor);
+            if (index < 0) {
+                index = indexOf(calls, received.stopPointRef, 0);
+            }
+            if (index < 0) {
+                index = cursor > 0 ? cursor : insertionPoint(calls, received.firstTime());
+                calls.add(index, received);
+            } else {
+                calls.get(index).update(received);
+            }
+            cursor = index + 1;
+        }
+        String lineRef = journey.getLineRef() != null ? journey.getLineRef().getValue() : current == null ? null : current.lineRef;
+        boolean cancelled = journey.isCancellation() != null ? journey.isCancellation() : current != null && current.cancelled;
+        return new JourneyState(journeyRef, lineRef, cancelled, calls, nowMillis, current == null ? 1 : current.updates + 1,
+                expireAfterMillis, completedRetentionMillis);
+    }
+
+    private static int indexOf(List<Call> calls, String stopPointRef, int start) {
+        for (int i = start; i < calls.size(); i++) {
+            if (calls.get(i).stopPointRef.equals(stopPointRef)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int insertionPoint(List<Call> calls, long epochSecond) {
+        if (epochSecond != Long.MIN_VALUE) {
+            for (int i = 0; i < calls.size(); i++) {
+                long time = calls.get(i).firstTime();
+                if (time != Long.MIN_VALUE && time > epochSecond) {
+                    return i;
+                }
+            }
+        }
+        return calls.size();
+    }
+
+    private static List<Call> calls(EstimatedVehicleJourney journey) {
+        List<Call> calls = new ArrayList<>();
+        if (journey.getRecordedCalls() != null) {
+            for (RecordedCall call : journey.getRecordedCalls().getRecordedCalls()) {
+                String stopPointRef = ref(call.getStopPointRef());
+                if (stopPointRef != null) {
+                    byte flags = RECORDED;
+                    if (Boolean.TRUE.equals(call.isCancellation())) {
+                        flags |= CANCELLED_CALL;
+                    }
+                    calls.add(new Call(stopPointRef, call.getAimedArrivalTime(), call.getActualArrivalTime(),
+                            call.getAimedDepartureTime(), call.getActualDepartureTime(), flags));
+                }
+            }
+        }
+        if (journey.getEstimatedCalls() != null) {
+            for (EstimatedCall call : journey.getEstimatedCalls().getEstimatedCalls()) {
+                String stopPointRef = ref(call.getStopPointRef());
+                if (stopPointRef != null) {
+                    byte flags = 0;
+                    if (Boolean.TRUE.equals(call.isCancellation()) || call.getArrivalStatus() == CANCELLED || call.getDepartureStatus() == CANCELLED) {
+                        flags |= CANCELLED_CALL;
+                    }
+                    if (call.getArrivalStatus() == DELAYED || call.getDepartureStatus() == DELAYED) {
+                        flags |= DELAYED_CALL;
+                    }
+                    if (trackChange(call.getArrivalStopAssignment()) || trackChange(call.getDepartureStopAssignment())) {
+                        flags |= TRACK_CHANGE;
+                    }
+                    calls.add(new Call(stopPointRef, call.getAimedArrivalTime(), call.getExpectedArrivalTime(),
+                            call.getAimedDepartureTime(), call.getExpectedDepartureTime(), flags));
+                }
+            }
+        }
+        return calls;
+    }
+
+    private static String ref(StopPointRef stopPointRef) {
+        return stopPointRef == null ? null : stopPointRef.getValue();
+    }
+
+    private static boolean trackChange(StopAssignmentStructure stopAssignment) {
+        return stopAssignment != null && stopAssignment.getAimedQuayRef() != null && stopAssignment.getExpectedQuayRef() != null
+                && !stopAssignment.getAimedQuayRef().getValue().equals(stopAssignment.getExpectedQuayRef().getValue());
+    }
+
+    private List<Call> calls() {
+        List<Call> calls = new ArrayList<>(stopPointRefs.length + 4);
+        for (int i = 0; i < stopPointRefs.length; i++) {
+            long[] callTimes = new long[TIMES_PER_CALL];
+            for (int t = 0; t < TIMES_PER_CALL; t++) {
+                callTimes[t] = epochSecond(i, t);
+            }
+            calls.add(new Call(stopPointRefs[i], callTimes, flags[i]));
+        }
+        return calls;
+    }
+
+    private long epochSecond(int call, int time) {
+        int value = times[call * TIMES_PER_CALL + time];
+        return value == NONE ? Long.MIN_VALUE : baseEpochSecond + value;
+    }
+
+    /**
+     * @return true when the last call has been recorded, that is the journey has arrived at its last stop
+     */
+    boolean isComplete() {
+        return flags.length > 0 && (flags[flags.length - 1] & RECORDED) != 0;
+    }
+
+    long getExpiresMillis() {
+        return expiresMillis;
+    }
+
+    String getLineRef() {
+        return lineRef;
+    }
+
+    JourneyStatus toStatus() {
+        List<JourneyStatus.Call> calls = new ArrayList<>(stopPointRefs.length);
+        for (int i = 0; i < stopPointRefs.length; i++) {
+            calls.add(new JourneyStatus.Call(stopPointRefs[i],
+                    time(epochSecond(i, AIMED_ARRIVAL)), time(epochSecond(i, EXPECTED_ARRIVAL)),
+                    time(epochSecond(i, AIMED_DEPARTURE)), time(epochSecond(i, EXPECTED_DEPARTURE)),
+                    (flags[i] & RECORDED) != 0, (flags[i] & CANCELLED_CALL) != 0,
+                    (flags[i] & DELAYED_CALL) != 0, (flags[i] & TRACK_CHANGE) != 0));
+        }
+        return new JourneyStatus(journeyRef, lineRef, cancelled, isComplete(),
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(updatedMillis), ZoneId.systemDefault()), updates, calls);
+    }
+
+    private static LocalDateTime time(long epochSecond) {
+        return epochSecond == Long.MIN_VALUE ? null : LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), ZoneId.systemDefault());
+    }
+
+    /**
+     * A call while merging, with times as epoch seconds and Long.MIN_VALUE where unknown.
+     */
+    private static final class Call {
+        private final String stopPointRef;
+        private final long[] times;
+        private byte flags;
+
+        private Call(String stopPointRef, long[] times, byte flags) {
+            this.stopPointRef = stopPointRef;
+            this.times = times;
+            this.flags = flags;
+        }
+
+        private Call(String stopPointRef, ZonedDateTime aimedArrival, ZonedDateTime expectedArrival,
+                     ZonedDateTime aimedDeparture, ZonedDateTime expectedDeparture, byte flags) {
+            this(stopPointRef.intern(), new long[]{seconds(aimedArrival), seconds(expectedArrival), seconds(aimedDeparture), seconds(expectedDeparture)}, flags);
+        }
+
+        private static long seconds(ZonedDateTime time) {
+            return time == null ? Long.MIN_VALUE : time.toEpochSecond();
+        }
+
+        /**
+         * @return the first known aimed time, else the first known expected time
+         */
+        private long firstTime() {
+            for (int t : new int[]{AIMED_ARRIVAL, AIMED_DEPARTURE, EXPECTED_ARRIVAL, EXPECTED_DEPARTURE}) {
+                if (times[t] != Long.MIN_VALUE) {
+                    return times[t];
+                }
+            }
+            return Long.MIN_VALUE;
+        }
+
+        /**
+         * The received call knows best, except that a call once recorded stays recorded.
+         */
+        private void update(Call received) {
+            for (int t = 0; t < TIMES_PER_CALL; t++) {
+                if (received.times[t] != Long.MIN_VALUE) {
+                    times[t] = received.times[t];
+                }
+            }
+            flags = (byte) (received.flags | (flags & RECORDED));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import jakarta.annotation.PostConstruct;
+import org.entur.demo.ukur.entities.JourneyStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.FramedVehicleJourneyRefStructure;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The current state of each active journey, updated with every received EstimatedVehicleJourney instead of having
+ * to read through the stored messages. Journeys are keyed by DatedVehicleJourneyRef, or DataFrameRef and
+ * DatedVehicleJourneyRef from FramedVehicleJourneyRef, and removed a while after they complete or are due.
+ */
+@Service
+public class JourneyStateView {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Map<String, JourneyState> journeys = new ConcurrentHashMap<>();
+    private final MessageService messageService;
+    private final long expireAfterMillis;
+    private final long completedRetentionMillis;
+
+    @Autowired
+    public JourneyStateView(MessageService messageService,
+                            @Value("${journeys.state.expire-after-minutes:60}") long expireAfterMinutes,
+                            @Value("${journeys.state.completed-retention-minutes:5}") long completedRetentionMinutes) {
+        this.messageService = messageService;
+        this.expireAfterMillis = TimeUnit.MINUTES.toMillis(expireAfterMinutes);
+        this.completedRetentionMillis = TimeUnit.MINUTES.toMillis(completedRetentionMinutes);
+    }
+
+    @PostConstruct
+    void start() {
+        messageService.addPushMessageListener(pushMessage -> {
+            if (pushMessage instanceof EstimatedVehicleJourney) {
+                update((EstimatedVehicleJourney) pushMessage);
+            }
+        });
+    }
+
+    void update(EstimatedVehicleJourney journey) {
+        String journeyRef = journeyRef(journey);
+        if (journeyRef != null) {
+            long now = System.currentTimeMillis();
+            journeys.compute(journeyRef, (ref, current) ->
+                    JourneyState.merge(current, ref, journey, now, expireAfterMillis, completedRetentionMillis));
+        }
+    }
+
+    static String journeyRef(EstimatedVehicleJourney journey) {
+        if (journey.getDatedVehicleJourneyRef() != null) {
+            return journey.getDatedVehicleJourneyRef().getValue();
+        }
+        FramedVehicleJourneyRefStructure framed = journey.getFramedVehicleJourneyRef();
+        if (framed != null && framed.getDatedVehicleJourneyRef() != null) {
+            return framed.getDataFrameRef() == null ? framed.getDatedVehicleJourneyRef()
+                    : framed.getDataFrameRef().getValue() + ":" + framed.getDatedVehicleJourneyRef();
+        }
+        return null;
+    }
+
+    /**
+     * @return the current state of the journey, null if it is unknown or expired, also before removeExpired has run
+     */
+    public JourneyStatus get(String journeyRef) {
+        JourneyState state = journeyRef == null ? null : journeys.get(journeyRef);
+        return state == null || state.getExpiresMillis() <= System.currentTimeMillis() ? null : state.toStatus();
+    }
+
+    /**
+     * Looks through all active journeys, there are seldom more than a few thousand. Expired journeys are left out.
+     */
+    public List<JourneyStatus> getByLineRef(String lineRef) {
+        long now = System.currentTimeMillis();
+        return journeys.values().stream()
+                .filter(state -> state.getExpiresMillis() > now && lineRef.equals(state.getLineRef()))
+                .map(JourneyState::toStatus)
+                .toList();
+    }
+
+    public int size() {
+        return journeys.size();
+    }
+
+    @Scheduled(fixedDelay = 60_000)
+    public void removeExpired() {
+        long now = System.currentTimeMillis();
+        int before = journeys.size();
+        journeys.values().removeIf(state -> state.getExpiresMillis() <= now);
+        if (before != journeys.size()) {
+            logger.debug("Removed {} completed or expired journeys, keeps {}", before - journeys.size(), journeys.size());
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.apache.commons.lang3.StringUtils;
+import uk.org.siri.siri20.*;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static uk.org.siri.siri20.CallStatusEnumeration.CANCELLED;
+import static uk.org.siri.siri20.CallStatusEnumeration.DELAYED;
+
+/**
+ * The few fields of an EstimatedVehicleJourney needed to describe it, taken out when the message is received.
+ * The text itself is only built when someone asks for it.
+ */
+final class JourneySummary implements Supplier<String> {
+
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    private final String lineRef;
+    private final String direction;
+    private final Call recordedCall;
+    private final Call fromCall;
+    private final Call toCall;
+
+    private JourneySummary(String lineRef, String direction, Call recordedCall, Call fromCall, Call toCall) {
+        this.lineRef = lineRef;
+        this.direction = direction;
+        this.recordedCall = recordedCall;
+        this.fromCall = fromCall;
+        this.toCall = toCall;
+    }
+
+    static JourneySummary of(EstimatedVehicleJourney estimatedVehicleJourney) {
+        LineRef lineRef = estimatedVehicleJourney.getLineRef();
+        DirectionRefStructure directionRef = estimatedVehicleJourney.getDirectionRef();
+        String direction = null;
+        if (directionRef != null && StringUtils.isAlphaSpace(directionRef.getValue())) { //Sometimes direction is only a number and pointless to show
+            direction = directionRef.getValue();
+        }
+
+        Call recordedCall = null;
+        if (estimatedVehicleJourney.getRecordedCalls() != null && estimatedVehicleJourney.getRecordedCalls().getRecordedCalls() != null) {
+            List<RecordedCall> recordedCalls = estimatedVehicleJourney.getRecordedCalls().getRecordedCalls();
+            if (recordedCalls.size() == 1) {
+                recordedCall = Call.of(recordedCalls.get(0));
+            }
+        }
+        Call fromCall = null;
+        Call toCall = null;
+        if (estimatedVehicleJourney.getEstimatedCalls() != null && estimatedVehicleJourney.getEstimatedCalls().getEstimatedCalls() != null) {
+            List<EstimatedCall> estimatedCalls = estimatedVehicleJourney.getEstimatedCalls().getEstimatedCalls();
+            if (estimatedCalls.size() == 2) {
+                fromCall = Call.departure(estimatedCalls.get(0));
+                toCall = Call.arrival(estimatedCalls.get(1));
+            } else if (estimatedCalls.size() == 1) {
+                toCall = Call.arrival(estimatedCalls.get(0));
+            }
+        }
+        return new JourneySummary(lineRef == null ? null : lineRef.getValue(), direction, recordedCall, fromCall, toCall);
+    }
+
+    @Override
+    public String get() {
+        StringBuilder result = new StringBuilder();
+        result.append((lineRef == null) ? "Line NULL" : lineRef);
+        if (direction != null) {
+            result.append(" towards ").append(direction);
+        }
+        if (toCall != null) {
+            appendFromToText(result);
+        } else {
+            result.append(" has deviations");
+        }
+        return result.toString();
+    }
+
+    private void appendFromToText(StringBuilder result) {
+        //This logic is somewhat naive and not very robust for future changes...
+        if (recordedCall != null) {
+            result.append(" from ").append(recordedCall.name);
+            String aimedDeparture = recordedCall.aimed != null ? recordedCall.aimed.format(formatter) : null;
+            if (aimedDeparture != null) {
+                result.append(" ").append(aimedDeparture);
+            }
+            if (recordedCall.cancelled) {
+                result.append(" was cancelled");
+            } else {
+                String actualDeparture = recordedCall.expected != null ? recordedCall.expected.format(formatter) : null;
+                if (actualDeparture != null && !actualDeparture.equals(aimedDeparture)) {
+                    result.append(" departed ").append(actualDeparture);
+                }
+            }
+
+        } else if (fromCall != null) {
+            result.append(" from ").append(fromCall.name);
+            if (fromCall.aimed != null) {
+                result.append(" ").append(fromCall.aimed.format(formatter));
+            }
+            if (fromCall.cancelled) {
+                result.append(" is cancelled");
+            } else if (fromCall.isDelayed()) {
+                result.append(" is delayed");
+                if (fromCall.expected != null) {
+                    result.append(" and expected to depart ").append(fromCall.expected.format(formatter));
+                }
+            } else {
+                result.append(" is on time");
+            }
+            fromCall.appendAnyTrackChange(result);
+        }
+
+        result.append(" to ").append(toCall.name);
+        if (toCall.aimed != null) {
+            result.append(" with aimed arrival ").append(toCall.aimed.format(formatter));
+        }
+        if (toCall.cancelled) {
+            result.append(" is cancelled");
+        } else if (toCall.isDelayed()) {
+            result.append(" is delayed");
+            if (toCall.expected != null) {
+                result.append(" and expected to arrive ").append(toCall.expected.format(formatter));
+            }
+        }
+        toCall.appendAnyTrackChange(result);
+    }
+
+    /**
+     * Departure or arrival at a stop. For recorded calls expected holds the actual departure time.
+     */
+    private static final class Call {
+        private final String name;
+        private final ZonedDateTime aimed;
+        private final ZonedDateTime expected;
+        private final boolean cancelled;
+        private final boolean delayed;
+        private final String aimedQuayRef;
+        private final String expectedQuayRef;
+        private final String platformName;
+
+        private Call(String name, ZonedDateTime aimed, ZonedDateTime expected, boolean cancelled, boolean delayed,
+                     StopAssignmentStructure stopAssignment, String platformName) {
+            this.name = name;
+            this.aimed = aimed;
+            this.expected = expected;
+            this.cancelled = cancelled;
+            this.delayed = delayed;
+            this.aimedQuayRef = stopAssignment == null || stopAssignment.getAimedQuayRef() == null ? null : stopAssignment.getAimedQuayRef().getValue();
+            this.expectedQuayRef = stopAssignment == null || stopAssignment.getExpectedQuayRef() == null ? null : stopAssignment.getExpectedQuayRef().getValue();
+            this.platformName = platformName;
+        }
+
+        static Call of(RecordedCall call) {
+            return new Call(getName(call.getStopPointNames()), call.getAimedDepartureTime(), call.getActualDepartureTime(),
+                    Boolean.TRUE.equals(call.isCancellation()), false, null, null);
+        }
+
+        static Call departure(EstimatedCall call) {
+            return new Call(getName(call.getStopPointNames()), call.getAimedDepartureTime(), call.getExpectedDepartureTime(),
+                    Boolean.TRUE.equals(call.isCancellation()) || call.getDepartureStatus() == CANCELLED,
+                    call.getDepartureStatus() == DELAYED, stopAssignment(call), getPlatformName(call));
+        }
+
+        static Call arrival(EstimatedCall call) {
+            return new Call(getName(call.getStopPointNames()), call.getAimedArrivalTime(), call.getExpectedArrivalTime(),
+                    Boolean.TRUE.equals(call.isCancellation()) || call.getArrivalStatus() == CANCELLED,
+                    call.getArrivalStatus() == DELAYED, stopAssignment(call), getPlatformName(call));
+        }
+
+        boolean isDelayed() {
+            return delayed || (aimed != null && expected != null && expected.isAfter(aimed));
+        }
+
+        void appendAnyTrackChange(StringBuilder result) {
+            if (StringUtils.isNotBlank(aimedQuayRef) && expectedQuayRef != null && !StringUtils.equals(aimedQuayRef, expectedQuayRef)) {
+                result.append(" with new track ");
+                if (StringUtils.isNotBlank(platformName)) {
+                    result.append("platform ").append(platformName);
+                } else {
+                    result.append(expectedQuayRef);
+                }
+            }
+        }
+
+        private static StopAssignmentStructure stopAssignment(EstimatedCall call) {
+            StopAssignmentStructure stopAssignment = call.getArrivalStopAssignment();
+            return stopAssignment == null ? call.getDepartureStopAssignment() : stopAssignment;
+        }
+
+        private static String getPlatformName(EstimatedCall call) {
+            if (call.getArrivalPlatformName() != null) return call.getArrivalPlatformName().getValue();
+            if (call.getDeparturePlatformName() != null) return call.getDeparturePlatformName().getValue();
+            return null;
+        }
+
+        private static String getName(List<NaturalLanguageStringStructure> stopPointNames) {
+            return (stopPointNames == null || stopPointNames.isEmpty()) ? "?" : stopPointNames.get(0).getValue();
+        }
+    }
+}
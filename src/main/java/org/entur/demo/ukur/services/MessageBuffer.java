@@ -0,0 +1,309 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.ReceivedMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Fixed size ring buffer with the received messages for one subscription, the oldest are overwritten when full
+ * and may also be removed earlier to keep within the retention limits.
+ * <p>
+ * There is a single writer at a time (PushIngestService always uses the same worker for a subscription, so the
+ * write lock is normally uncontended), while readers never lock. A writer first claims a sequence number, then
+ * writes the slot and last publishes it. Readers copy the published range and afterwards drop whatever a writer
+ * may have overwritten or removed while they were copying.
+ */
+class MessageBuffer {
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final AtomicReferenceArray<ReceivedMessage> slots;
+    private final int capacity;
+    private volatile long claimed;
+    private volatile long published;
+    private volatile long first;
+    private volatile long bytes;
+    private volatile long lastViewed;
+    private volatile long version = nextVersion();
+    private volatile long modifiedMillis = System.currentTimeMillis();
+    private volatile byte[] dictionary;
+    private volatile DeltaEncoder deltaEncoder;
+    private final Consumer<ReceivedMessage> onRemoved;
+
+    MessageBuffer(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param onRemoved called with each message that is overwritten or removed, may be null
+     */
+    MessageBuffer(int capacity, Consumer<ReceivedMessage> onRemoved) {
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.onRemoved = onRemoved;
+    }
+
+    /**
+     * @return change in estimated bytes held by this buffer, the new message minus the one it replaced
+     */
+    long add(ReceivedMessage message) {
+        writeLock.lock();
+        try {
+            long sequence = published;
+            long freed = 0;
+            ReceivedMessage overwritten = null;
+            if (sequence - first >= capacity) {
+                overwritten = slots.get(index(first));
+                freed = overwritten.getFootprint();
+                first = sequence - capacity + 1;
+            }
+            claimed = sequence + 1;
+            message.setSequence(sequence);
+            slots.set(index(sequence), message);
+            bytes += message.getFootprint() - freed;
+            published = sequence + 1;
+            changed();
+            if (overwritten != null && onRemoved != null) {
+                onRemoved.accept(overwritten);
+            }
+            return message.getFootprint() - freed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return estimated bytes freed, 0 if the buffer is empty
+     */
+    long removeOldest() {
+        writeLock.lock();
+        try {
+            return first < published ? removeFirst() : 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return estimated bytes freed by removing the messages received before the cutoff
+     */
+    long removeReceivedBefore(long cutoffMillis) {
+        writeLock.lock();
+        try {
+            long freed = 0;
+            while (first < published && slots.get(index(first)).getReceivedMillis() < cutoffMillis) {
+                freed += removeFirst();
+            }
+            return freed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest messages until the buffer holds at most maxBytes, but always keeps the newest message.
+     *
+     * @return estimated bytes freed
+     */
+    long removeToBytes(long maxBytes) {
+        writeLock.lock();
+        try {
+            long freed = 0;
+            while (bytes > maxBytes && published - first > 1) {
+                freed += removeFirst();
+            }
+            return freed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private long removeFirst() {
+        ReceivedMessage removed = slots.get(index(first));
+        slots.set(index(first), null);
+        first = first + 1;
+        bytes -= removed.getFootprint();
+        changed();
+        if (onRemoved != null) {
+            onRemoved.accept(removed);
+        }
+        return removed.getFootprint();
+    }
+
+    private void changed() {
+        version = nextVersion();
+        modifiedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @return a version that is higher than any handed out before, shared by all buffers so a subscription's
+     * version keeps increasing also when its buffer is removed and created again
+     */
+    static long nextVersion() {
+        return VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * @return changes each time a message is added or removed
+     */
+    long version() {
+        return version;
+    }
+
+    long modifiedMillis() {
+        return modifiedMillis;
+    }
+
+    int size() {
+        return (int) Math.max(0, Math.min(published - first, capacity));
+    }
+
+    /**
+     * @return estimated bytes held by the retained messages
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return sequence number of the last added message, -1 if empty
+     */
+    long latest() {
+        return published - 1;
+    }
+
+    /**
+     * @return sequence number of the oldest retained message
+     */
+    long oldest() {
+        return first;
+    }
+
+    /**
+     * @return when the oldest retained message was received, Long.MAX_VALUE if empty
+     */
+    long oldestReceivedMillis() {
+        ReceivedMessage oldest = first < published ? slots.get(index(first)) : null;
+        return oldest == null ? Long.MAX_VALUE : oldest.getReceivedMillis();
+    }
+
+    /**
+     * @return the dictionary the subscription's xml is compressed with, null until one is trained
+     */
+    byte[] getDictionary() {
+        return dictionary;
+    }
+
+    void setDictionary(byte[] dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * @return the keyframes the subscription's journeys are delta encoded against, created when first asked for
+     */
+    DeltaEncoder getDeltaEncoder() {
+        DeltaEncoder encoder = deltaEncoder;
+        if (encoder == null) {
+            writeLock.lock();
+            try {
+                encoder = deltaEncoder;
+                if (encoder == null) {
+                    encoder = new DeltaEncoder();
+                    deltaEncoder = encoder;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        return encoder;
+    }
+
+    void viewed() {
+        lastViewed = System.currentTimeMillis();
+    }
+
+    long lastViewed() {
+        return lastViewed;
+    }
+
+    /**
+     * @return the messages in the order they were added
+     */
+    List<ReceivedMessage> snapshot() {
+        return after(-1, capacity);
+    }
+
+    /**
+     * @return the messages with the last added first
+     */
+    List<ReceivedMessage> newestFirst() {
+        return before(Long.MAX_VALUE, capacity);
+    }
+
+    /**
+     * @return up to limit messages added after the given sequence number, in the order they were added
+     */
+    List<ReceivedMessage> after(long sequence, int limit) {
+        long end = published;
+        long start = Math.max(first, sequence + 1);
+        end = Math.min(end, start + limit);
+        List<ReceivedMessage> result = new ArrayList<>((int) Math.max(0, end - start));
+        for (long s = start; s < end; s++) {
+            result.add(slots.get(index(s)));
+        }
+        int overwritten = overwrittenSince(start, result.size());
+        result.subList(0, overwritten).clear();
+        result.removeIf(Objects::isNull);
+        return result;
+    }
+
+    /**
+     * @return up to limit messages added before the given sequence number, with the last added first
+     */
+    List<ReceivedMessage> before(long sequence, int limit) {
+        long end = Math.min(published, sequence);
+        long start = Math.max(first, end - limit);
+        List<ReceivedMessage> result = new ArrayList<>((int) Math.max(0, end - start));
+        for (long s = end - 1; s >= start; s--) {
+            result.add(slots.get(index(s)));
+        }
+        int overwritten = overwrittenSince(start, result.size());
+        result.subList(result.size() - overwritten, result.size()).clear();
+        result.removeIf(Objects::isNull);
+        return result;
+    }
+
+    /**
+     * @return how many of the copied messages, counted from start, a writer may have replaced during the copy
+     */
+    private int overwrittenSince(long start, int copied) {
+        long overwritten = claimed - capacity - start;
+        return (int) Math.max(0, Math.min(overwritten, copied));
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % capacity);
+    }
+}
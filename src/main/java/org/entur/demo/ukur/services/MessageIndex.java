@@ -0,0 +1,394 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import jakarta.annotation.PostConstruct;
+import org.entur.demo.ukur.entities.MessageSearchResult;
+import org.entur.demo.ukur.entities.ReceivedMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.PtSituationElement;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over the stored messages, so messages can be found by line, stop, situation, codespace and type
+ * without reading through them. Each stored message gets an id when it is indexed, and each term has a posting
+ * list with the ids of the messages that contain it in a sorted long array. A search intersects the lists of its
+ * terms, starting with the shortest.
+ * <p>
+ * Messages are taken out of the index when they are removed from the store. As the oldest are normally removed
+ * first, a list just moves its start past them. Other removed ids are marked in a bitmap, and the list is compacted
+ * when half of it is removed. A search only has to look up the messages it returns, or all matches when it
+ * filters on time. Messages read back from the journal on startup are indexed as they are restored.
+ */
+@Service
+public class MessageIndex {
+
+    public enum Field {
+        LINE_REF, STOP_REF, SITUATION_NUMBER, CODESPACE, TYPE
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Term, Postings> postings = new HashMap<>();
+    private final Map<Long, Doc> docs = new HashMap<>();
+    private final Map<ReceivedMessage, Doc> docsByMessage = new IdentityHashMap<>();
+    private final MessageService messageService;
+    private final StopPlaceService stopPlaces;
+    private final boolean enabled;
+    private long nextId;
+
+    @Autowired
+    public MessageIndex(MessageService messageService, StopPlaceService stopPlaces,
+                        @Value("${messages.index.enabled:true}") boolean enabled) {
+        this.messageService = messageService;
+        this.stopPlaces = stopPlaces;
+        this.enabled = enabled;
+    }
+
+    @PostConstruct
+    void start() {
+        if (enabled) {
+            messageService.addStoredMessageListener(this::index);
+            messageService.addRemovedMessageListener(this::remove);
+        }
+        logger.info("Started with enabled={}", enabled);
+    }
+
+    void index(String subscriptionId, List<ReceivedMessage> messages, List<Object> pushMessages, List<ReceivedMessage> described) {
+        List<Set<Term>> messageTerms = pushMessages == null && described != null ? describedTerms(described) : null;
+        if (messageTerms == null) {
+            if (pushMessages == null) {
+                pushMessages = readPushMessages(messages);
+            }
+            messageTerms = new ArrayList<>(messages.size());
+            for (ReceivedMessage message : messages) {
+                int deliveryIndex = message.getDeliveryIndex();
+                messageTerms.add(terms(message, deliveryIndex < pushMessages.size() ? pushMessages.get(deliveryIndex) : null, stopPlaces));
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                ReceivedMessage message = messages.get(i);
+                //removals wait for the lock, so a message still stored now is taken out of the index again later
+                if (!messageService.isStored(subscriptionId, message)) {
+                    continue;
+                }
+                long id = nextId++;
+                Postings[] lists = new Postings[messageTerms.get(i).size()];
+                int n = 0;
+                for (Term term : messageTerms.get(i)) {
+                    Postings list = postings.computeIfAbsent(term, Postings::new);
+                    list.add(id);
+                    lists[n++] = list;
+                }
+                Doc doc = new Doc(id, subscriptionId, message, lists);
+                docs.put(id, doc);
+                docsByMessage.put(message, doc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(ReceivedMessage message) {
+        lock.writeLock().lock();
+        try {
+            Doc doc = docsByMessage.remove(message);
+            if (doc == null) {
+                return;
+            }
+            docs.remove(doc.id);
+            for (Postings list : doc.postings) {
+                list.remove(doc.id);
+                if (list.size() == 0) {
+                    postings.remove(list.term);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param criteria   the messages must contain all of these, at least one is required
+     * @param fromMillis only messages received at or after this time
+     * @param toMillis   only messages received before this time
+     * @param limit      max number of hits to return
+     */
+    public MessageSearchResult search(Map<Field, String> criteria, long fromMillis, long toMillis, int limit) {
+        if (criteria.isEmpty()) {
+            throw new IllegalArgumentException("Requires at least one of " + Arrays.toString(Field.values()));
+        }
+        long start = System.nanoTime();
+        boolean timeFiltered = fromMillis != Long.MIN_VALUE || toMillis != Long.MAX_VALUE;
+        int total = 0;
+        List<MessageSearchResult.Hit> hits = new ArrayList<>(Math.min(limit, 100));
+        lock.readLock().lock();
+        try {
+            Postings[] lists = new Postings[criteria.size()];
+            int n = 0;
+            for (Map.Entry<Field, String> criterion : criteria.entrySet()) {
+                Postings list = postings.get(new Term(criterion.getKey(), criterion.getValue()));
+                if (list == null) {
+                    return new MessageSearchResult(0, hits, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                }
+                lists[n++] = list;
+            }
+            Arrays.sort(lists, Comparator.comparingInt(Postings::size));
+            //going from the newest, the matches in the other lists can only be before the ones already found
+            int[] ends = new int[lists.length];
+            for (int i = 0; i < lists.length; i++) {
+                ends[i] = lists[i].end;
+            }
+            Postings shortest = lists[0];
+            for (int k = shortest.end - 1; k >= shortest.start; k--) {
+                //a removed message is removed from all its lists at once, so checking one of them is enough
+                if (shortest.isRemoved(k)) {
+                    continue;
+                }
+                long id = shortest.ids[k];
+                if (!inAll(lists, ends, id)) {
+                    continue;
+                }
+                if (timeFiltered || hits.size() < limit) {
+                    Doc doc = docs.get(id);
+                    long received = doc.message.getReceivedMillis();
+                    if (received < fromMillis || received >= toMillis) {
+                        continue;
+                    }
+                    if (hits.size() < limit) {
+                        hits.add(new MessageSearchResult.Hit(doc.subscriptionId, doc.message));
+                    }
+                }
+                total++;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new MessageSearchResult(total, hits, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    private static boolean inAll(Postings[] lists, int[] ends, long id) {
+        for (int i = 1; i < lists.length; i++) {
+            int found = Arrays.binarySearch(lists[i].ids, lists[i].start, ends[i], id);
+            if (found < 0) {
+                ends[i] = -(found + 1);
+                return false;
+            }
+            ends[i] = found;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of indexed messages
+     */
+    int size() {
+        lock.readLock().lock();
+        try {
+            return docs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of distinct terms in the index
+     */
+    int termCount() {
+        lock.readLock().lock();
+        try {
+            return postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the terms of the messages first stored for a payload that is stored again, null if any of them is no
+     * longer indexed
+     */
+    private List<Set<Term>> describedTerms(List<ReceivedMessage> described) {
+        List<Set<Term>> messageTerms = new ArrayList<>(described.size());
+        lock.readLock().lock();
+        try {
+            for (ReceivedMessage message : described) {
+                Doc doc = docsByMessage.get(message);
+                if (doc == null) {
+                    return null;
+                }
+                Set<Term> terms = new HashSet<>();
+                for (Postings list : doc.postings) {
+                    terms.add(list.term);
+                }
+                messageTerms.add(terms);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return messageTerms;
+    }
+
+    /**
+     * The messages were stored from a payload that was not parsed again, and the messages first stored for it are
+     * no longer indexed, so it is parsed here.
+     */
+    private List<Object> readPushMessages(List<ReceivedMessage> messages) {
+        String xml = messages.isEmpty() ? null : messages.get(0).getRawXmlString();
+        if (xml != null) {
+            try {
+                return messageService.readPushMessages(xml.getBytes(StandardCharsets.UTF_8));
+            } catch (RuntimeException e) {
+                logger.warn("Could not read stored payload to index it, indexes only the type", e);
+            }
+        }
+        return List.of();
+    }
+
+    /**
+     * @param stopPlaces gives the StopPlace of the quays, so messages are found both by quay and by stop place
+     */
+    static Set<Term> terms(ReceivedMessage message, Object pushMessage, StopPlaceService stopPlaces) {
+        Set<Term> terms = new HashSet<>();
+        if (message.getType() != null) {
+            terms.add(new Term(Field.TYPE, message.getType().name()));
+        }
+        if (pushMessage instanceof EstimatedVehicleJourney) {
+            SubscriptionMatcher.Journey journey = SubscriptionMatcher.Journey.of((EstimatedVehicleJourney) pushMessage, stopPlaces);
+            add(terms, Field.LINE_REF, journey.lineRef());
+            add(terms, Field.CODESPACE, journey.codespace());
+            for (SubscriptionMatcher.Call call : journey.calls()) {
+                add(terms, Field.STOP_REF, call.stopPointRef());
+                add(terms, Field.STOP_REF, call.stopPlaceRef());
+            }
+        } else if (pushMessage instanceof PtSituationElement) {
+            PtSituationElement element = (PtSituationElement) pushMessage;
+            SubscriptionMatcher.Situation situation = SubscriptionMatcher.Situation.of(element, stopPlaces);
+            add(terms, Field.CODESPACE, situation.participant());
+            situation.lineRefs().forEach(lineRef -> add(terms, Field.LINE_REF, lineRef));
+            situation.stopPointRefs().forEach(stopPointRef -> add(terms, Field.STOP_REF, stopPointRef));
+            if (element.getSituationNumber() != null) {
+                add(terms, Field.SITUATION_NUMBER, element.getSituationNumber().getValue());
+            }
+        }
+        return terms;
+    }
+
+    private static void add(Set<Term> terms, Field field, String value) {
+        if (value != null) {
+            terms.add(new Term(field, value));
+        }
+    }
+
+    record Term(Field field, String value) {
+    }
+
+    private record Doc(long id, String subscriptionId, ReceivedMessage message, Postings[] postings) {
+    }
+
+    /**
+     * The ids of the messages with a term, in the order they were indexed, from start to end in the array.
+     */
+    private static final class Postings {
+        private final Term term;
+        private long[] ids = new long[4];
+        private int start;
+        private int end;
+        private BitSet removed;
+        private int removedCount;
+
+        Postings(Term term) {
+            this.term = term;
+        }
+
+        int size() {
+            return end - start - removedCount;
+        }
+
+        boolean isRemoved(int index) {
+            return removed != null && removed.get(index);
+        }
+
+        void add(long id) {
+            if (end == ids.length) {
+                compact(size() * 2 <= ids.length ? ids.length : ids.length * 2);
+            }
+            ids[end++] = id;
+        }
+
+        void remove(long id) {
+            int index = Arrays.binarySearch(ids, start, end, id);
+            if (index < 0 || isRemoved(index)) {
+                return;
+            }
+            if (index > start) {
+                if (removed == null) {
+                    removed = new BitSet();
+                }
+                removed.set(index);
+                removedCount++;
+                if (removedCount * 2 > size()) {
+                    compact(ids.length > 16 && size() < ids.length / 4 ? Math.max(16, size() * 2) : ids.length);
+                }
+                return;
+            }
+            start++;
+            while (start < end && isRemoved(start)) {
+                removed.clear(start);
+                removedCount--;
+                start++;
+            }
+        }
+
+        /**
+         * Moves the ids that are not removed to the beginning of an array with the given capacity.
+         */
+        private void compact(int capacity) {
+            long[] target = capacity == ids.length ? ids : new long[capacity];
+            int kept = 0;
+            for (int i = start; i < end; i++) {
+                if (!isRemoved(i)) {
+                    target[kept++] = ids[i];
+                }
+            }
+            ids = target;
+            start = 0;
+            end = kept;
+            removed = null;
+            removedCount = 0;
+        }
+    }
+}
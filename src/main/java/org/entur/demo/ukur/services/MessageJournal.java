@@ -0,0 +1,538 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import jakarta.annotation.PreDestroy;
+import org.entur.demo.ukur.CompressedXml;
+import org.entur.demo.ukur.entities.MessageTypeEnum;
+import org.entur.demo.ukur.entities.ReceivedMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Optional append-only journal on local disk, so received messages survive a restart.
+ * <p>
+ * Each delivery is appended as one record (length, crc and the deflated xml with the type of each message) to the
+ * current segment file, and removals are appended as tombstones. Appends are buffered and a background thread
+ * writes and fsyncs them every fsync interval, so a crash loses at most that much. Snapshots write what is
+ * currently stored, in the same record format, after which all older segments are deleted. As the store only
+ * holds what the retention limits allow, this keeps the disk use bounded: a snapshot is also taken early when the
+ * segments grow larger than the global memory budget. On startup the latest snapshot and the segments after it are
+ * read back through memory mapped files. Replaying parses every delivery again to rebuild the message index, which
+ * dominates the startup time: 1M messages in 100k deliveries take about 11 s on one core.
+ */
+@Service
+public class MessageJournal implements SmartInitializingSingleton {
+
+    private static final byte DELIVERY = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR_ALL = 3;
+    private static final long NO_DELAY = Long.MIN_VALUE;
+    private static final String SEGMENT = "segment-";
+    private static final String SNAPSHOT = "snapshot-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final int WRITE_BUFFER_BYTES = 256 * 1024;
+    private static final MessageTypeEnum[] TYPES = MessageTypeEnum.values();
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final MessageService messageService;
+    private final boolean enabled;
+    private final Path directory;
+    private final long segmentBytes;
+    private final long maxSegmentsBytes;
+    private final long fsyncIntervalMillis;
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+    /**
+     * Guards the write buffer and the segment. A lock rather than a monitor, so an ingest thread that is virtual is
+     * not pinned to its carrier while it waits for the file I/O.
+     */
+    private final ReentrantLock bufferLock = new ReentrantLock();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+    private final CRC32 crc = new CRC32();
+    private ScheduledExecutorService flusher;
+    private FileChannel segment;
+    private long segmentNumber;
+    private long segmentSize;
+    private boolean unsynced;
+    private boolean closed;
+
+    @Autowired
+    public MessageJournal(MessageService messageService, RetentionPolicy retention,
+                          @Value("${messages.journal.enabled:false}") boolean enabled,
+                          @Value("${messages.journal.directory:journal}") String directory,
+                          @Value("${messages.journal.segment-bytes:67108864}") long segmentBytes,
+                          @Value("${messages.journal.fsync-interval-millis:200}") long fsyncIntervalMillis) {
+        this.messageService = messageService;
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.segmentBytes = segmentBytes;
+        this.maxSegmentsBytes = retention.getMaxTotalBytes();
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+    }
+
+    /**
+     * Starts once all beans are created, so the views and the index have registered their listeners before the
+     * messages are read back, and before the web server accepts pushes.
+     */
+    @Override
+    public void afterSingletonsInstantiated() {
+        try {
+            start();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads back what is journaled into the message store, before it starts to journal new messages.
+     */
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(directory);
+        long next = replay();
+        openSegment(next);
+        flusher = Executors.newScheduledThreadPool(2, runnable -> { //one for flushing and one for early snapshots
+            Thread thread = new Thread(runnable, "journal-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        messageService.setJournal(this);
+        logger.info("Journals messages to {} from segment {}", directory.toAbsolutePath(), next);
+    }
+
+    /**
+     * The push ingest workers are drained before this is called (PushIngestService depends on the journal), but a
+     * change made after the segment is closed is not appended and is logged instead of failing.
+     */
+    @PreDestroy
+    public void stop() {
+        if (flusher == null) {
+            return;
+        }
+        messageService.setJournal(null);
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Journal flush or snapshot still running when closing the journal");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshotLock.writeLock().lock(); //waits for changes that are being appended
+        try {
+            bufferLock.lock();
+            try {
+                flush();
+                closed = true;
+                segment.close();
+            } finally {
+                bufferLock.unlock();
+            }
+        } catch (IOException e) {
+            logger.warn("Could not close journal segment", e);
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Held while the message store is changed and the change is appended, so a snapshot never sees a change in
+     * the store that is also appended to the segment after it.
+     */
+    Lock ingestLock() {
+        return snapshotLock.readLock();
+    }
+
+    /**
+     * @param body deflated without dictionary
+     */
+    void appendDelivery(String subscriptionId, List<ReceivedMessage> messages, CompressedXml body) {
+        append(deliveryRecord(subscriptionId, messages, body));
+    }
+
+    void appendRemove(String subscriptionId) {
+        byte[] id = subscriptionId.getBytes(StandardCharsets.UTF_8);
+        append(ByteBuffer.allocate(1 + 2 + id.length).put(REMOVE).putShort((short) id.length).put(id));
+    }
+
+    void appendClearAll() {
+        append(ByteBuffer.allocate(1 + 2).put(CLEAR_ALL).putShort((short) 0));
+    }
+
+    private void append(ByteBuffer record) {
+        bufferLock.lock();
+        try {
+            if (closed) {
+                logger.warn("Journal is closed, a change made while shutting down is not journaled");
+                return;
+            }
+            segmentSize += write(segment, writeBuffer, record, crc);
+            unsynced = true;
+            if (segmentSize >= segmentBytes) {
+                rollSegment();
+                if (segmentsBytes() > maxSegmentsBytes && !flusher.isShutdown()) {
+                    flusher.execute(this::snapshot);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Could not append to journal segment {}", segmentNumber, e);
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    /**
+     * Writes buffered appends to the segment and fsyncs it.
+     */
+    void flush() {
+        bufferLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            writeOut();
+            if (unsynced) {
+                segment.force(false);
+                unsynced = false;
+            }
+        } catch (IOException e) {
+            logger.error("Could not flush journal segment {}", segmentNumber, e);
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    private void writeOut() throws IOException {
+        writeFully(segment, writeBuffer);
+    }
+
+    /**
+     * Writes the record with its length and crc through the buffer, or directly if it is larger than the buffer.
+     *
+     * @return bytes written
+     */
+    private static int write(FileChannel channel, ByteBuffer buffer, ByteBuffer record, CRC32 crc) throws IOException {
+        record.flip();
+        int length = record.remaining();
+        crc.reset();
+        crc.update(record.duplicate());
+        if (buffer.remaining() < 8 + length) {
+            writeFully(channel, buffer);
+        }
+        if (buffer.remaining() < 8 + length) {
+            channel.write(ByteBuffer.allocate(8).putInt(length).putInt((int) crc.getValue()).flip());
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } else {
+            buffer.putInt(length).putInt((int) crc.getValue()).put(record);
+        }
+        return 8 + length;
+    }
+
+    private void rollSegment() throws IOException {
+        writeOut();
+        segment.force(false);
+        segment.close();
+        openSegment(segmentNumber + 1);
+    }
+
+    private void openSegment(long number) throws IOException {
+        segment = FileChannel.open(path(SEGMENT, number, SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentNumber = number;
+        segmentSize = segment.size();
+        unsynced = false;
+    }
+
+    @Scheduled(initialDelayString = "${messages.journal.snapshot-interval-millis:600000}",
+            fixedDelayString = "${messages.journal.snapshot-interval-millis:600000}")
+    public void scheduledSnapshot() {
+        if (flusher != null) {
+            snapshot();
+        }
+    }
+
+    /**
+     * Writes everything stored to a snapshot, then deletes the segments and snapshots it replaces.
+     */
+    void snapshot() {
+        if (!snapshotRunning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long number;
+            Map<String, List<ReceivedMessage>> stored;
+            snapshotLock.writeLock().lock();
+            try {
+                bufferLock.lock();
+                try {
+                    if (closed) {
+                        return;
+                    }
+                    rollSegment();
+                    number = segmentNumber;
+                } finally {
+                    bufferLock.unlock();
+                }
+                stored = messageService.snapshotMessages();
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+            long start = System.currentTimeMillis();
+            Path snapshot = path(SNAPSHOT, number, SNAPSHOT_SUFFIX);
+            Path temporary = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+            int records = writeSnapshot(temporary, stored);
+            Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            for (Map.Entry<Long, Path> older : files(SEGMENT, SEGMENT_SUFFIX).headMap(number).entrySet()) {
+                Files.deleteIfExists(older.getValue());
+            }
+            for (Map.Entry<Long, Path> older : files(SNAPSHOT, SNAPSHOT_SUFFIX).headMap(number).entrySet()) {
+                Files.deleteIfExists(older.getValue());
+            }
+            logger.info("Wrote snapshot {} with {} deliveries in {} ms", number, records, System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            logger.error("Could not write journal snapshot", e);
+        } finally {
+            snapshotRunning.set(false);
+        }
+    }
+
+    /**
+     * Messages from the same delivery share the same body, so they are written as one record again.
+     */
+    private int writeSnapshot(Path file, Map<String, List<ReceivedMessage>> stored) throws IOException {
+        int records = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+            CRC32 snapshotCrc = new CRC32();
+            for (Map.Entry<String, List<ReceivedMessage>> subscription : stored.entrySet()) {
+                List<ReceivedMessage> messages = subscription.getValue();
+                int from = 0;
+                while (from < messages.size()) {
+                    int to = from + 1;
+                    while (to < messages.size() && sameDelivery(messages.get(from), messages.get(to))) {
+                        to++;
+                    }
+                    CompressedXml body = journalBody(messages.get(from));
+                    if (body != null) {
+                        write(channel, buffer, deliveryRecord(subscription.getKey(), messages.subList(from, to), body), snapshotCrc);
+                        records++;
+                    }
+                    from = to;
+                }
+            }
+            writeFully(channel, buffer);
+            channel.force(true);
+        }
+        return records;
+    }
+
+    private static boolean sameDelivery(ReceivedMessage a, ReceivedMessage b) {
+        if (a.getReceivedMillis() != b.getReceivedMillis()) {
+            return false;
+        }
+        if (a.getCompressedXml() != null) {
+            return a.getCompressedXml() == b.getCompressedXml();
+        }
+        return b.getCompressedXml() == null && a.getRawXmlString() != null && a.getRawXmlString() == b.getRawXmlString();
+    }
+
+    /**
+     * @return the message's xml deflated without dictionary, null if it has none
+     */
+    private static CompressedXml journalBody(ReceivedMessage message) {
+        CompressedXml body = message.getCompressedXml();
+        if (body != null && !body.hasDictionary()) {
+            return body;
+        }
+        String xml = message.getRawXmlString();
+        return xml == null ? null : CompressedXml.compress(xml.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    private static ByteBuffer deliveryRecord(String subscriptionId, List<ReceivedMessage> messages, CompressedXml body) {
+        ReceivedMessage first = messages.get(0);
+        byte[] id = subscriptionId.getBytes(StandardCharsets.UTF_8);
+        Long delay = first.getDeliveryDelayMillis();
+        ByteBuffer record = ByteBuffer.allocate(1 + 2 + id.length + 8 + 8 + 4 + 4 + body.getData().length + 4 + messages.size() * 5);
+        record.put(DELIVERY).putShort((short) id.length).put(id);
+        record.putLong(first.getReceivedMillis()).putLong(delay == null ? NO_DELAY : delay);
+        record.putInt(body.getLength()).putInt(body.getData().length).put(body.getData());
+        record.putInt(messages.size());
+        for (ReceivedMessage message : messages) {
+            record.put(message.getType() == null ? -1 : (byte) message.getType().ordinal()).putInt(message.getDeliveryIndex());
+        }
+        return record;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return number of the segment to continue with
+     */
+    private long replay() throws IOException {
+        long start = System.currentTimeMillis();
+        long records = 0;
+        TreeMap<Long, Path> snapshots = files(SNAPSHOT, SNAPSHOT_SUFFIX);
+        TreeMap<Long, Path> segments = files(SEGMENT, SEGMENT_SUFFIX);
+        long from = 0;
+        if (!snapshots.isEmpty()) {
+            from = snapshots.lastKey();
+            records += read(snapshots.lastEntry().getValue());
+        }
+        for (Path segmentFile : segments.tailMap(from).values()) {
+            records += read(segmentFile);
+        }
+        long next = Math.max(from, segments.isEmpty() ? 1 : segments.lastKey() + 1);
+        logger.info("Replayed {} journal records in {} ms", records, System.currentTimeMillis() - start);
+        return next;
+    }
+
+    /**
+     * Reads records until the end of the file or a record that is incomplete or corrupt (as the last one may be
+     * after a crash).
+     */
+    private long read(Path file) throws IOException {
+        long records = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 readCrc = new CRC32();
+            while (buffer.remaining() >= 8) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    logger.warn("Incomplete record in {} at {}, ignores the rest of the file", file, buffer.position() - 8);
+                    break;
+                }
+                ByteBuffer record = buffer.slice(buffer.position(), length);
+                readCrc.reset();
+                readCrc.update(record.duplicate());
+                if ((int) readCrc.getValue() != checksum) {
+                    logger.warn("Corrupt record in {} at {}, ignores the rest of the file", file, buffer.position() - 8);
+                    break;
+                }
+                apply(record);
+                buffer.position(buffer.position() + length);
+                records++;
+            }
+        }
+        return records;
+    }
+
+    private void apply(ByteBuffer record) {
+        byte kind = record.get();
+        byte[] id = new byte[record.getShort()];
+        record.get(id);
+        String subscriptionId = new String(id, StandardCharsets.UTF_8);
+        if (kind == REMOVE) {
+            messageService.removeMessages(subscriptionId);
+        } else if (kind == CLEAR_ALL) {
+            messageService.clearAll();
+        } else if (kind == DELIVERY) {
+            long receivedMillis = record.getLong();
+            long delay = record.getLong();
+            int length = record.getInt();
+            byte[] data = new byte[record.getInt()];
+            record.get(data);
+            CompressedXml body = CompressedXml.of(data, length);
+            int count = record.getInt();
+            List<ReceivedMessage> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ReceivedMessage message = new ReceivedMessage(body);
+                byte type = record.get();
+                message.setType(type < 0 || type >= TYPES.length ? null : TYPES[type]);
+                message.setDeliveryIndex(record.getInt());
+                message.setReceivedMillis(receivedMillis);
+                if (delay != NO_DELAY) {
+                    message.setDeliveryDelay(delay);
+                }
+                messages.add(message);
+            }
+            messageService.restore(subscriptionId, messages);
+        }
+    }
+
+    private long segmentsBytes() throws IOException {
+        long total = 0;
+        for (Path file : files(SEGMENT, SEGMENT_SUFFIX).values()) {
+            total += Files.size(file);
+        }
+        return total;
+    }
+
+    private TreeMap<Long, Path> files(String prefix, String suffix) throws IOException {
+        TreeMap<Long, Path> result = new TreeMap<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                String name = file.getFileName().toString();
+                if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                    try {
+                        result.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), file);
+                    } catch (NumberFormatException e) {
+                        logger.warn("Ignores unexpected file {} in the journal directory", file);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    private Path path(String prefix, long number, String suffix) {
+        return directory.resolve(String.format("%s%020d%s", prefix, number, suffix));
+    }
+}
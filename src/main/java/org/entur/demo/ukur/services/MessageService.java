@@ -15,146 +15,937 @@
 
 package org.entur.demo.ukur.services;
 
-import com.google.common.collect.EvictingQueue;
-import com.google.common.collect.Queues;
-import org.apache.commons.lang3.StringUtils;
+import com.google.common.hash.HashCode;
+import org.entur.demo.ukur.CompressedXml;
+import org.entur.demo.ukur.DeltaXml;
 import org.entur.demo.ukur.SiriJaxbContextHolder;
+import org.entur.demo.ukur.XmlFormatter;
+import org.entur.demo.ukur.entities.MessagePage;
 import org.entur.demo.ukur.entities.MessageTypeEnum;
 import org.entur.demo.ukur.entities.ReceivedMessage;
+import org.entur.demo.ukur.services.IngestMetrics.Stage;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import uk.org.siri.siri20.*;
 
+import jakarta.xml.bind.JAXBElement;
 import jakarta.xml.bind.JAXBException;
 import jakarta.xml.bind.Marshaller;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-
-import static uk.org.siri.siri20.CallStatusEnumeration.CANCELLED;
-import static uk.org.siri.siri20.CallStatusEnumeration.DELAYED;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 @Service
 public class MessageService {
 
     public static final int MAX_SIZE_PER_SUBSCRIPTION = 100;
+    private static final int EXPORT_CHUNK_SIZE = 50;
+    private static final int MESSAGE_OVERHEAD_BYTES = 64;
+    private static final int STRING_OVERHEAD_BYTES = 40;
+    private static final int COMPRESSED_OVERHEAD_BYTES = 48;
+    private static final int DELTA_OVERHEAD_BYTES = 48;
+    /**
+     * A JourneySummary and the text it is turned into when shown.
+     */
+    private static final int JOURNEY_SUMMARY_BYTES = 400;
+    private static final int MIN_DICTIONARY_SAMPLE_BYTES = 1024;
+    private static final int PRECOMPUTE_QUEUE_CAPACITY = 10_000;
+    private static final String HEARTBEAT_TEXT = "Periodic heartbeat from server according to the subscriptions HeartbeatInterval";
+    private static final String TERMINATED_TEXT = "Subscription terminated by server due to InitialTerminationTime";
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
-    private final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss");
-    private final Map<String, Collection<ReceivedMessage>> messageStore = new ConcurrentHashMap<>();
+    private final Map<String, MessageBuffer> messageStore = new ConcurrentHashMap<>();
     private final Map<String, LocalDateTime> lastMessageReceived = new ConcurrentHashMap<>();
+    private final SiriStaxReader staxReader = new SiriStaxReader();
+    private final boolean staxIngest;
+    private final int maxBatchSize;
+    private final RetentionPolicy retention;
+    private final boolean compression;
+    private final boolean dictionaryCompression;
+    private final boolean deltaEncoding;
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final SummaryPrecomputer summaryPrecomputer;
+    private final PayloadStore payloadStore;
+    private volatile MessageJournal journal;
+    private final List<Consumer<Object>> pushMessageListeners = new CopyOnWriteArrayList<>();
+    private final List<StoredMessageListener> storedMessageListeners = new CopyOnWriteArrayList<>();
+    private final List<Consumer<ReceivedMessage>> removedMessageListeners = new CopyOnWriteArrayList<>();
+    private volatile long removedVersion;
+    private volatile long removedMillis = -1;
+    private final IngestMetrics metrics;
+
+    /**
+     * @param ingestMode "jaxb" unmarshals the full push message, "stax" only streams out the parts we need
+     * @param maxBatchSize max number of situations and journeys accepted in one delivery
+     * @param compression "none" keeps the received xml as is, "deflate" compresses it and "dictionary" also uses
+     *                    a dictionary trained on the subscription's first (large enough) payload. "delta" stores
+     *                    deliveries with a single journey as the changes from an earlier one for the same journey,
+     *                    and compresses the rest as "deflate"
+     * @param precomputeSummaries build human readable texts in the background instead of only when shown
+     * @param dedup store a payload pushed to several subscriptions once, only with "deflate" compression
+     * @param metrics where the time spent in each stage and the stored messages are recorded
+     */
+    @Autowired
+    public MessageService(@Value("${push.ingest.mode:jaxb}") String ingestMode,
+                          @Value("${push.batch.max-size:1000}") int maxBatchSize,
+                          RetentionPolicy retention,
+                          @Value("${messages.compression:deflate}") String compression,
+                          @Value("${messages.human-readable.precompute:false}") boolean precomputeSummaries,
+                          @Value("${messages.dedup.enabled:false}") boolean dedup,
+                          IngestMetrics metrics) {
+        this.staxIngest = "stax".equalsIgnoreCase(ingestMode);
+        this.maxBatchSize = maxBatchSize;
+        this.retention = retention;
+        this.dictionaryCompression = "dictionary".equalsIgnoreCase(compression);
+        this.deltaEncoding = "delta".equalsIgnoreCase(compression);
+        this.compression = dictionaryCompression || deltaEncoding || "deflate".equalsIgnoreCase(compression);
+        this.summaryPrecomputer = precomputeSummaries ? new SummaryPrecomputer(PRECOMPUTE_QUEUE_CAPACITY) : null;
+        boolean shared = dedup && this.compression && !dictionaryCompression && !deltaEncoding;
+        this.payloadStore = shared ? new PayloadStore() : null;
+        this.metrics = metrics;
+        logger.info("Started with ingestMode={}, maxBatchSize={}, compression={}, precomputeSummaries={}, dedup={} and {}", staxIngest ? "stax" : "jaxb",
+                maxBatchSize, dictionaryCompression ? "dictionary" : deltaEncoding ? "delta" : this.compression ? "deflate" : "none",
+                precomputeSummaries, shared, retention);
+    }
+
+    /**
+     * @return options with the same defaults as the application properties, for making a MessageService in tests
+     */
+    static Options options() {
+        return new Options();
+    }
+
+    static final class Options {
+        private String ingestMode = "jaxb";
+        private int maxBatchSize = 1000;
+        private RetentionPolicy retention = new RetentionPolicy();
+        private String compression = "deflate";
+        private boolean precomputeSummaries;
+        private boolean dedup;
+        private IngestMetrics metrics;
+
+        private Options() {
+        }
+
+        Options ingestMode(String ingestMode) {
+            this.ingestMode = ingestMode;
+            return this;
+        }
+
+        Options maxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        Options retention(RetentionPolicy retention) {
+            this.retention = retention;
+            return this;
+        }
+
+        Options compression(String compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        Options precomputeSummaries(boolean precomputeSummaries) {
+            this.precomputeSummaries = precomputeSummaries;
+            return this;
+        }
+
+        Options dedup(boolean dedup) {
+            this.dedup = dedup;
+            return this;
+        }
+
+        Options metrics(IngestMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        MessageService build() {
+            return new MessageService(ingestMode, maxBatchSize, retention, compression, precomputeSummaries, dedup,
+                    metrics == null ? new IngestMetrics() : metrics);
+        }
+    }
+
+    @PostConstruct
+    void start() {
+        metrics.gauge("ukur.store.messages", "Messages held for all subscriptions", this, MessageService::getTotalMessageCount);
+        metrics.gauge("ukur.store.bytes", "Estimated bytes held by the stored messages", storedBytes, AtomicLong::get);
+        metrics.gauge("ukur.store.subscriptions", "Subscriptions with stored messages", messageStore, Map::size);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (summaryPrecomputer != null) {
+            summaryPrecomputer.stop();
+        }
+    }
+
+    public RetentionPolicy getRetentionPolicy() {
+        return retention;
+    }
 
-    public MessageService() {
+    /**
+     * @return estimated bytes held by all stored messages
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
     }
 
     public LocalDateTime getLastMessageReceived(String subscriptionId) {
         return lastMessageReceived.get(subscriptionId);
     }
 
+    /**
+     * @return a version that increases each time the subscription's stored messages change, 0 if nothing has been
+     * stored or removed yet
+     */
+    public long getVersion(String subscriptionId) {
+        MessageBuffer messages = messageStore.get(subscriptionId);
+        return messages == null ? removedVersion : messages.version();
+    }
+
+    /**
+     * @return when the subscription's stored messages last changed, -1 if unknown
+     */
+    public long getLastModifiedMillis(String subscriptionId) {
+        MessageBuffer messages = messageStore.get(subscriptionId);
+        return messages == null ? removedMillis : messages.modifiedMillis();
+    }
+
+    /**
+     * @return number of messages held for all subscriptions together
+     */
+    public long getTotalMessageCount() {
+        long count = 0;
+        for (MessageBuffer messages : messageStore.values()) {
+            count += messages.size();
+        }
+        return count;
+    }
+
     public int getMessageCount(String subscriptionId) {
-        return messageStore.getOrDefault(subscriptionId, Collections.emptyList()).size();
+        MessageBuffer messages = messageStore.get(subscriptionId);
+        return messages == null ? 0 : messages.size();
+    }
+
+    /**
+     * Checks the root element and counts the situations and journeys without parsing the payload, so a payload
+     * that is clearly wrong or too large can be refused before it is queued. Other errors are found when it is read.
+     *
+     * @throws BatchTooLargeException   if the payload has more situations and journeys than the max batch size
+     * @throws IllegalArgumentException if the payload does not start with a supported root element
+     */
+    public void check(byte[] payload) {
+        int size = staxReader.check(payload);
+        if (size > maxBatchSize) {
+            throw new BatchTooLargeException(size, maxBatchSize);
+        }
+    }
+
+    public void addPushMessage(String subscriptionId, byte[] payload) {
+        HashCode hash = null;
+        if (payloadStore != null) {
+            hash = PayloadStore.hash(payload);
+            PayloadStore.Entry stored = payloadStore.acquire(hash);
+            if (stored != null) {
+                addStoredPayload(subscriptionId, stored, payload);
+                return;
+            }
+        }
+        Object receivedPushMessage = parse(payload);
+        addPushMessage(subscriptionId, receivedPushMessage, payload, hash);
     }
 
     public void addPushMessage(String subscriptionId, Object receivedPushMessage) {
-        ReceivedMessage message = new ReceivedMessage(toString(receivedPushMessage));
+        long start = System.nanoTime();
+        String xml = toString(receivedPushMessage);
+        metrics.record(Stage.MARSHAL, start);
+        addPushMessage(subscriptionId, receivedPushMessage, xml == null ? null : xml.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    /**
+     * A Siri delivery may contain many situations and journeys, each of them is stored as a separate message
+     * that all refer to the same received xml.
+     */
+    private void addPushMessage(String subscriptionId, Object receivedPushMessage, byte[] payload, HashCode hash) {
+        List<Object> pushMessages = pushMessages(receivedPushMessage);
+        Long delay = deliveryDelay(receivedPushMessage);
+        notifyListeners(pushMessages);
+        MessageBuffer receivedMessages = getReceivedMessages(subscriptionId);
+        long start = System.nanoTime();
+        Body body = deltaEncoding ? deltaBody(receivedMessages, pushMessages, payload) : null;
+        if (body == null) {
+            body = body(payload, compression ? dictionaryFor(receivedMessages, payload) : null);
+        }
+        metrics.record(Stage.COMPRESS, start);
+        start = System.nanoTime();
+        long receivedMillis = System.currentTimeMillis();
+        List<ReceivedMessage> messages = new ArrayList<>(pushMessages.size());
+        for (int i = 0; i < pushMessages.size(); i++) {
+            ReceivedMessage message = body.message(receivedMillis, delay, i, pushMessages.size());
+            describe(message, pushMessages.get(i));
+            message.setFootprint(message.getFootprint() + textBytes(message));
+            messages.add(message);
+        }
+        metrics.record(Stage.HUMANIZE, start);
+        if (hash != null && body.compressedXml() != null) {
+            payloadStore.put(hash, body.compressedXml(), messages, delay == null ? null : receivedMillis - delay);
+        }
+        deliver(subscriptionId, receivedMessages, messages, pushMessages, null, body, payload);
+        enforceTotalBudget();
+    }
+
+    /**
+     * Stores a payload already stored for another subscription (or earlier for this one) without parsing it again.
+     * The messages share the stored xml and text, and the listeners have already seen what it contains.
+     */
+    private void addStoredPayload(String subscriptionId, PayloadStore.Entry stored, byte[] payload) {
+        MessageBuffer receivedMessages = getReceivedMessages(subscriptionId);
+        Body body = new Body(null, stored.body(), null, 0);
+        long receivedMillis = System.currentTimeMillis();
+        Long delay = stored.responseMillis() == null ? null : receivedMillis - stored.responseMillis();
+        if (delay != null) {
+            metrics.deliveryDelay(delay);
+        }
+        List<ReceivedMessage> messages = new ArrayList<>(stored.described().size());
+        for (int i = 0; i < stored.described().size(); i++) {
+            ReceivedMessage message = body.message(receivedMillis, delay, i, stored.described().size());
+            shareDescription(message, stored.described().get(i));
+            messages.add(message);
+        }
+        deliver(subscriptionId, receivedMessages, messages, null, stored.described(), body, payload);
+        enforceTotalBudget();
+    }
+
+    /**
+     * The message gets the type and text of the described one, and the text is only built once for both.
+     */
+    private static void shareDescription(ReceivedMessage message, ReceivedMessage described) {
+        message.setType(described.getType());
+        if (described.isHumanReadableBuilt()) {
+            message.setHumanReadable(described.getHumanReadable());
+        } else {
+            message.setHumanReadableSource(described::getHumanReadable);
+        }
+    }
+
+    /**
+     * Parses a delivery once and stores each of its situations and journeys for every subscription the matcher
+     * gives for it. The messages share the received xml and the text describing them.
+     *
+     * @param matcher gives the ids of the subscriptions a PtSituationElement, EstimatedVehicleJourney or
+     *                notification is for
+     */
+    public void addMultiplexedPushMessage(byte[] payload, Function<Object, Collection<String>> matcher) {
+        Object receivedPushMessage = parse(payload);
+        List<Object> pushMessages = pushMessages(receivedPushMessage);
+        Long delay = deliveryDelay(receivedPushMessage);
+        notifyListeners(pushMessages);
+        Body body = null;
+        long receivedMillis = System.currentTimeMillis();
+        Map<String, List<ReceivedMessage>> matched = new LinkedHashMap<>();
+        for (int i = 0; i < pushMessages.size(); i++) {
+            Collection<String> subscriptionIds = matcher.apply(pushMessages.get(i));
+            if (subscriptionIds.isEmpty()) {
+                continue;
+            }
+            if (body == null) {
+                long start = System.nanoTime();
+                body = body(payload, null); //a subscription's dictionary can't be used for xml shared with others
+                metrics.record(Stage.COMPRESS, start);
+            }
+            long start = System.nanoTime();
+            ReceivedMessage described = new ReceivedMessage();
+            describe(described, pushMessages.get(i));
+            metrics.record(Stage.HUMANIZE, start);
+            for (String subscriptionId : subscriptionIds) {
+                ReceivedMessage message = body.message(receivedMillis, delay, i, pushMessages.size());
+                shareDescription(message, described);
+                message.setFootprint(message.getFootprint() + textBytes(message));
+                matched.computeIfAbsent(subscriptionId, k -> new ArrayList<>()).add(message);
+            }
+        }
+        for (Map.Entry<String, List<ReceivedMessage>> entry : matched.entrySet()) {
+            deliver(entry.getKey(), getReceivedMessages(entry.getKey()), entry.getValue(), pushMessages, null, body, payload);
+        }
+        enforceTotalBudget();
+    }
+
+    private List<Object> pushMessages(Object receivedPushMessage) {
+        if (receivedPushMessage instanceof Siri) {
+            return extractPushMessages((Siri) receivedPushMessage);
+        }
+        return Collections.singletonList(receivedPushMessage);
+    }
+
+    private Long deliveryDelay(Object receivedPushMessage) {
         if (receivedPushMessage instanceof Siri) {
             Siri siri = (Siri) receivedPushMessage;
-            receivedPushMessage = extractPushMessage(siri);
             if (siri.getServiceDelivery() != null && siri.getServiceDelivery().getResponseTimestamp() != null) {
                 ZonedDateTime responseTimestamp = siri.getServiceDelivery().getResponseTimestamp();
                 long delay = ChronoUnit.MILLIS.between(responseTimestamp, ZonedDateTime.now());
-                logger.info("siri message delay: {} ms", delay);
-                message.setDeliveryDelay(delay);
+                logger.debug("siri message delay: {} ms", delay);
+                metrics.deliveryDelay(delay);
+                return delay;
+            }
+        }
+        return null;
+    }
+
+    private Body body(byte[] payload, byte[] dictionary) {
+        if (payload != null && compression) {
+            CompressedXml compressedXml = CompressedXml.compress(payload, dictionary);
+            return new Body(null, compressedXml, null, COMPRESSED_OVERHEAD_BYTES + compressedXml.getCompressedSize());
+        } else if (payload != null) {
+            String xml = new String(payload, StandardCharsets.UTF_8);
+            return new Body(xml, null, null, estimateBytes(xml));
+        }
+        return new Body(null, null, null, 0);
+    }
+
+    /**
+     * @return the payload delta encoded against the journey's keyframe, or null if it isn't a single journey
+     */
+    private Body deltaBody(MessageBuffer receivedMessages, List<Object> pushMessages, byte[] payload) {
+        if (payload == null || pushMessages.size() != 1 || !(pushMessages.get(0) instanceof EstimatedVehicleJourney)) {
+            return null;
+        }
+        String journeyRef = JourneyStateView.journeyRef((EstimatedVehicleJourney) pushMessages.get(0));
+        if (journeyRef == null) {
+            return null;
+        }
+        Object encoded = receivedMessages.getDeltaEncoder().encode(journeyRef, payload);
+        if (encoded instanceof DeltaXml) {
+            DeltaXml deltaXml = (DeltaXml) encoded;
+            return new Body(null, null, deltaXml, DELTA_OVERHEAD_BYTES + deltaXml.getDeltaSize());
+        }
+        CompressedXml keyframe = (CompressedXml) encoded;
+        return new Body(null, keyframe, null, COMPRESSED_OVERHEAD_BYTES + keyframe.getCompressedSize());
+    }
+
+    private void deliver(String subscriptionId, MessageBuffer receivedMessages, List<ReceivedMessage> messages,
+                         List<Object> pushMessages, List<ReceivedMessage> described, Body body, byte[] payload) {
+        long start = System.nanoTime();
+        withJournal(() -> store(subscriptionId, receivedMessages, messages),
+                journal -> {
+                    if (payload != null) {
+                        journal.appendDelivery(subscriptionId, messages, body.forJournal(payload));
+                    }
+                });
+        metrics.record(Stage.STORE, start);
+        for (ReceivedMessage message : messages) {
+            metrics.messageStored(subscriptionId, message.getType());
+        }
+        notifyStored(subscriptionId, messages, pushMessages, described);
+        if (summaryPrecomputer != null) {
+            List<ReceivedMessage> toPrecompute = messages.stream().filter(m -> !m.isHumanReadableBuilt()).toList();
+            if (!toPrecompute.isEmpty()) {
+                summaryPrecomputer.submit(toPrecompute);
             }
         }
+        applyRetention(receivedMessages);
+    }
 
-        if (receivedPushMessage instanceof EstimatedVehicleJourney) {
+    private void describe(ReceivedMessage message, Object pushMessage) {
+        if (pushMessage instanceof EstimatedVehicleJourney) {
             message.setType(MessageTypeEnum.ET);
-            message.setHumanReadable(makeHumanReadable((EstimatedVehicleJourney) receivedPushMessage));
-        } else if (receivedPushMessage instanceof PtSituationElement) {
+            message.setHumanReadableSource(JourneySummary.of((EstimatedVehicleJourney) pushMessage));
+        } else if (pushMessage instanceof PtSituationElement) {
             message.setType(MessageTypeEnum.SX);
-            message.setHumanReadable(makeHumanReadable((PtSituationElement) receivedPushMessage));
-        } else if (receivedPushMessage instanceof HeartbeatNotificationStructure) {
+            message.setHumanReadable(makeHumanReadable((PtSituationElement) pushMessage));
+        } else if (pushMessage instanceof HeartbeatNotificationStructure) {
             message.setType(MessageTypeEnum.Heartbeat);
-            message.setHumanReadable("Periodic heartbeat from server according to the subscriptions HeartbeatInterval");
-        } else if (receivedPushMessage instanceof SubscriptionTerminatedNotificationStructure) {
+            message.setHumanReadable(HEARTBEAT_TEXT);
+        } else if (pushMessage instanceof SubscriptionTerminatedNotificationStructure) {
             message.setType(MessageTypeEnum.Terminated);
-            message.setHumanReadable("Subscription terminated by server due to InitialTerminationTime");
+            message.setHumanReadable(TERMINATED_TEXT);
         }
-        Collection<ReceivedMessage> pushMessages = getReceivedMessages(subscriptionId);
-        pushMessages.add(message);
-        lastMessageReceived.put(subscriptionId, message.getReceived());
     }
 
-    private Object extractPushMessage(Siri siri) {
-        ServiceDelivery serviceDelivery = siri.getServiceDelivery();
-        if (serviceDelivery != null) {
-            if (serviceDelivery.getSituationExchangeDeliveries().size() == 1) {
-                SituationExchangeDeliveryStructure situationExchangeDeliveryStructure = serviceDelivery.getSituationExchangeDeliveries().get(0);
-                List<PtSituationElement> ptSituationElements = situationExchangeDeliveryStructure.getSituations().getPtSituationElements();
-                if (ptSituationElements.size() != 1) {
-                    throw new IllegalArgumentException("Got ptSituationElements.size() PtSituationElements, expects only 1");
+    private static int textBytes(ReceivedMessage message) {
+        return message.isHumanReadableBuilt() ? estimateBytes(message.getHumanReadable()) : JOURNEY_SUMMARY_BYTES;
+    }
+
+    private void store(String subscriptionId, MessageBuffer receivedMessages, List<ReceivedMessage> messages) {
+        for (ReceivedMessage message : messages) {
+            storedBytes.addAndGet(receivedMessages.add(message));
+        }
+        if (!messages.isEmpty()) {
+            lastMessageReceived.put(subscriptionId, messages.get(messages.size() - 1).getReceived());
+        }
+    }
+
+    /**
+     * Changes the store and records the change in the journal (if there is one) without a snapshot in between.
+     */
+    private void withJournal(Runnable change, Consumer<MessageJournal> record) {
+        MessageJournal journal = this.journal;
+        if (journal == null) {
+            change.run();
+            return;
+        }
+        Lock lock = journal.ingestLock();
+        lock.lock();
+        try {
+            change.run();
+            record.accept(journal);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setJournal(MessageJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * The listener gets every PtSituationElement, EstimatedVehicleJourney or notification once when received, before
+     * it is stored for the subscriptions, and again for each subscription it is read back for from the journal on
+     * startup. It is called on the ingest thread and must be quick.
+     */
+    void addPushMessageListener(Consumer<Object> listener) {
+        pushMessageListeners.add(listener);
+    }
+
+    /**
+     * The listener gets the subscription id and the messages each time messages are stored for a subscription, also
+     * those read back from the journal on startup. It is called on the ingest thread and must be quick.
+     */
+    void addStoredMessageListener(StoredMessageListener listener) {
+        storedMessageListeners.add(listener);
+    }
+
+    /**
+     * The listener gets each stored message when it is overwritten, evicted or removed. It may be called while the
+     * subscription's messages are locked for writing and must be quick.
+     */
+    void addRemovedMessageListener(Consumer<ReceivedMessage> listener) {
+        removedMessageListeners.add(listener);
+    }
+
+    private void onRemoved(ReceivedMessage message) {
+        if (payloadStore != null) {
+            payloadStore.release(message);
+        }
+        for (Consumer<ReceivedMessage> listener : removedMessageListeners) {
+            try {
+                listener.accept(message);
+            } catch (RuntimeException e) {
+                logger.warn("Removed message listener failed", e);
+            }
+        }
+    }
+
+    private void notifyStored(String subscriptionId, List<ReceivedMessage> messages, List<Object> pushMessages,
+                              List<ReceivedMessage> described) {
+        long start = System.nanoTime();
+        for (StoredMessageListener listener : storedMessageListeners) {
+            try {
+                listener.stored(subscriptionId, messages, pushMessages, described);
+            } catch (RuntimeException e) {
+                logger.warn("Stored message listener failed", e);
+            }
+        }
+        metrics.record(Stage.LISTENERS, start);
+    }
+
+    private void notifyListeners(List<Object> pushMessages) {
+        long start = System.nanoTime();
+        for (Consumer<Object> listener : pushMessageListeners) {
+            for (Object pushMessage : pushMessages) {
+                try {
+                    listener.accept(pushMessage);
+                } catch (RuntimeException e) {
+                    logger.warn("Push message listener failed", e);
+                }
+            }
+        }
+        metrics.record(Stage.LISTENERS, start);
+    }
+
+    /**
+     * Stores messages read back from the journal, all from the same delivery. The delivery is parsed once to describe
+     * them, and the push message and stored message listeners are told about them as if they were just received, so
+     * the views, the search index and the delay histograms are rebuilt from the journal.
+     */
+    void restore(String subscriptionId, List<ReceivedMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        MessageBuffer receivedMessages = getReceivedMessages(subscriptionId);
+        CompressedXml body = messages.get(0).getCompressedXml();
+        List<Object> pushMessages = readBack(body);
+        List<Object> restored = new ArrayList<>();
+        for (ReceivedMessage message : messages) {
+            Object pushMessage = pushMessages != null && message.getDeliveryIndex() < pushMessages.size()
+                    ? pushMessages.get(message.getDeliveryIndex()) : null;
+            if (pushMessage != null) {
+                describe(message, pushMessage);
+                restored.add(pushMessage);
+            } else if (message.getType() == MessageTypeEnum.Heartbeat) {
+                message.setHumanReadable(HEARTBEAT_TEXT);
+            } else if (message.getType() == MessageTypeEnum.Terminated) {
+                message.setHumanReadable(TERMINATED_TEXT);
+            }
+            int xmlShare = (COMPRESSED_OVERHEAD_BYTES + body.getCompressedSize()) / messages.size();
+            message.setFootprint(MESSAGE_OVERHEAD_BYTES + xmlShare + textBytes(message));
+        }
+        notifyListeners(restored);
+        store(subscriptionId, receivedMessages, messages);
+        if (pushMessages != null) {
+            notifyStored(subscriptionId, messages, pushMessages, null);
+        }
+        applyRetention(receivedMessages);
+        enforceTotalBudget();
+    }
+
+    private List<Object> readBack(CompressedXml body) {
+        try {
+            Object parsed = staxReader.read(body.decompressBytes());
+            return parsed instanceof Siri ? extractPushMessages((Siri) parsed) : List.of(parsed);
+        } catch (RuntimeException e) {
+            logger.warn("Could not parse message read back from the journal", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the stored messages per subscription, oldest first
+     */
+    Map<String, List<ReceivedMessage>> snapshotMessages() {
+        Map<String, List<ReceivedMessage>> result = new HashMap<>();
+        messageStore.forEach((subscriptionId, messages) -> result.put(subscriptionId, messages.snapshot()));
+        return result;
+    }
+
+    /**
+     * The first payload large enough to be representative becomes the dictionary for the rest of the messages
+     * to that subscription.
+     */
+    private byte[] dictionaryFor(MessageBuffer messages, byte[] payload) {
+        if (!dictionaryCompression) {
+            return null;
+        }
+        byte[] dictionary = messages.getDictionary();
+        if (dictionary == null && payload.length >= MIN_DICTIONARY_SAMPLE_BYTES) {
+            messages.setDictionary(CompressedXml.dictionaryFrom(payload));
+        }
+        return dictionary;
+    }
+
+    /**
+     * Compact strings use one byte per character as long as there are only latin-1 characters, as in most Siri xml.
+     */
+    private static int estimateBytes(String text) {
+        return text == null ? 0 : STRING_OVERHEAD_BYTES + text.length();
+    }
+
+    private void applyRetention(MessageBuffer messages) {
+        long freed = messages.removeToBytes(retention.getMaxBytesPerSubscription());
+        if (retention.getMaxAgeMillis() > 0) {
+            freed += messages.removeReceivedBefore(System.currentTimeMillis() - retention.getMaxAgeMillis());
+        }
+        storedBytes.addAndGet(-freed);
+    }
+
+    /**
+     * Removes messages that have become too old also for subscriptions that no longer receive anything.
+     */
+    @Scheduled(initialDelay = 60_000, fixedDelay = 60_000)
+    public void removeExpiredMessages() {
+        if (retention.getMaxAgeMillis() > 0) {
+            messageStore.values().forEach(this::applyRetention);
+        }
+    }
+
+    /**
+     * When all messages together exceed the global budget, messages are evicted across subscriptions (oldest or
+     * least recently viewed first) until 10% of the budget is free again, so we don't evict on every push.
+     */
+    private void enforceTotalBudget() {
+        long maxTotalBytes = retention.getMaxTotalBytes();
+        if (storedBytes.get() <= maxTotalBytes || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long target = maxTotalBytes - maxTotalBytes / 10;
+            long evicted = 0;
+            while (storedBytes.get() > target) {
+                MessageBuffer victim = null;
+                long victimKey = Long.MAX_VALUE;
+                long runnerUpKey = Long.MAX_VALUE;
+                for (MessageBuffer candidate : messageStore.values()) {
+                    long key = evictionKey(candidate);
+                    if (key < victimKey) {
+                        runnerUpKey = victimKey;
+                        victim = candidate;
+                        victimKey = key;
+                    } else if (key < runnerUpKey) {
+                        runnerUpKey = key;
+                    }
+                }
+                if (victim == null) {
+                    break;
+                }
+                //keep evicting from the same subscription as long as it holds the best candidate
+                while (storedBytes.get() > target && victim.size() > 0 && evictionKey(victim) <= runnerUpKey) {
+                    storedBytes.addAndGet(-victim.removeOldest());
+                    evicted++;
                 }
-                return ptSituationElements.get(0);
-            } else if (serviceDelivery.getSituationExchangeDeliveries().size() > 1) {
-                throw new IllegalArgumentException("Got more than one SituationExchangeDelivery");
             }
+            logger.info("Evicted {} messages to stay within the budget of {} bytes", evicted, maxTotalBytes);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private long evictionKey(MessageBuffer messages) {
+        if (messages.size() == 0) {
+            return Long.MAX_VALUE;
+        }
+        return retention.isEvictLeastRecentlyViewed() ? messages.lastViewed() : messages.oldestReceivedMillis();
+    }
 
-            if (serviceDelivery.getEstimatedTimetableDeliveries().size() == 1) {
-                EstimatedTimetableDeliveryStructure estimatedTimetableDeliveryStructure = serviceDelivery.getEstimatedTimetableDeliveries().get(0);
-                if (estimatedTimetableDeliveryStructure.getEstimatedJourneyVersionFrames().size() != 1) {
-                    throw new IllegalArgumentException("Got " + estimatedTimetableDeliveryStructure.getEstimatedJourneyVersionFrames().size() + " EstimatedVersionFrames, expects only 1");
+    private List<Object> extractPushMessages(Siri siri) {
+        List<Object> result = new ArrayList<>();
+        ServiceDelivery serviceDelivery = siri.getServiceDelivery();
+        if (serviceDelivery != null) {
+            for (SituationExchangeDeliveryStructure situationExchangeDelivery : serviceDelivery.getSituationExchangeDeliveries()) {
+                if (situationExchangeDelivery.getSituations() != null) {
+                    result.addAll(situationExchangeDelivery.getSituations().getPtSituationElements());
                 }
-                EstimatedVersionFrameStructure estimatedVersionFrameStructure = estimatedTimetableDeliveryStructure.getEstimatedJourneyVersionFrames().get(0);
-                if (estimatedVersionFrameStructure.getEstimatedVehicleJourneies().size() != 1) {
-                    throw new IllegalArgumentException("Got " + estimatedVersionFrameStructure.getEstimatedVehicleJourneies().size() + " EstimatedVehicleJourneys, expects only 1");
+            }
+            for (EstimatedTimetableDeliveryStructure estimatedTimetableDelivery : serviceDelivery.getEstimatedTimetableDeliveries()) {
+                for (EstimatedVersionFrameStructure estimatedVersionFrame : estimatedTimetableDelivery.getEstimatedJourneyVersionFrames()) {
+                    result.addAll(estimatedVersionFrame.getEstimatedVehicleJourneies());
                 }
-                return estimatedVersionFrameStructure.getEstimatedVehicleJourneies().get(0);
-            } else if (serviceDelivery.getEstimatedTimetableDeliveries().size() > 1) {
-                throw new IllegalArgumentException("Got more than one EstimatedTimetableDelivery");
+            }
+            if (result.size() > maxBatchSize) {
+                throw new BatchTooLargeException(result.size(), maxBatchSize);
+            }
+        }
+        if (result.isEmpty()) {
+            if (siri.getHeartbeatNotification() != null) {
+                result.add(siri.getHeartbeatNotification());
+            } else if (siri.getSubscriptionTerminatedNotification() != null) {
+                result.add(siri.getSubscriptionTerminatedNotification());
+            } else {
+                throw new IllegalArgumentException("Requires PtSituationElements, EstimatedVehicleJourneys, a HeartbeatNotification or a SubscriptionTerminatedNotification - but got none of them");
             }
         }
+        return result;
+    }
 
-        if (siri.getHeartbeatNotification() != null) {
-            return siri.getHeartbeatNotification();
+    public Collection<ReceivedMessage> getMessages(String subscriptionId) {
+        MessageBuffer messages = messageStore.get(subscriptionId);
+        if (messages == null) {
+            return Collections.emptyList();
         }
+        messages.viewed();
+        return messages.newestFirst();
+    }
 
-        if (siri.getSubscriptionTerminatedNotification() != null) {
-            return siri.getSubscriptionTerminatedNotification();
+    /**
+     * The messages from one delivery share its xml, so it is cut down to the message's own situation or journey
+     * only when it is asked for.
+     *
+     * @return the formatted xml of the stored message, or null if it is not (or no longer) stored
+     */
+    public String getMessageXml(String subscriptionId, long sequence) {
+        MessageBuffer messages = messageStore.get(subscriptionId);
+        List<ReceivedMessage> found = messages == null ? Collections.emptyList() : messages.after(sequence - 1, 1);
+        if (found.isEmpty() || found.get(0).getSequence() != sequence) {
+            return null;
         }
+        ReceivedMessage message = found.get(0);
+        String xml = message.getRawXmlString();
+        return xml == null ? null : XmlFormatter.format(staxReader.element(xml, message.getDeliveryIndex()));
+    }
 
-        throw new IllegalArgumentException("Requires one PtSituationElement, one EstimatedVehicleJourney, a HeartbeatNotification or a SubscriptionTerminatedNotification - but got none of them");
+    /**
+     * Reads messages in the order they are stored, without sorting. With since only messages received after that
+     * token are returned (oldest first), otherwise the newest messages before the cursor (newest first).
+     *
+     * @param before cursor from a previous page, null to start with the newest message
+     * @param since  latest token from a previous page, null to not only read new messages
+     */
+    public MessagePage getMessagePage(String subscriptionId, Long before, Long since, int limit) {
+        MessageBuffer messages = messageStore.get(subscriptionId);
+        if (messages == null) {
+            return new MessagePage(Collections.emptyList(), 0, null, -1);
+        }
+        messages.viewed();
+        long latest = messages.latest();
+        if (since != null && since > latest) {
+            since = -1L; //the messages have been cleared since the token was handed out
+        }
+        List<ReceivedMessage> page;
+        Long older = null;
+        if (since != null) {
+            page = messages.after(since, limit);
+            if (!page.isEmpty()) {
+                latest = page.get(page.size() - 1).getSequence();
+            }
+        } else {
+            page = messages.before(before == null ? Long.MAX_VALUE : before, limit);
+            if (!page.isEmpty()) {
+                long oldestOnPage = page.get(page.size() - 1).getSequence();
+                if (oldestOnPage > messages.oldest()) {
+                    older = oldestOnPage;
+                }
+            }
+        }
+        return new MessagePage(page, messages.size(), older, latest);
     }
 
-    public Collection<ReceivedMessage> getMessages(String subscriptionId) {
-        Collection<ReceivedMessage> messages = messageStore.getOrDefault(subscriptionId, Collections.emptyList());
-        ArrayList<ReceivedMessage> list = new ArrayList<>(messages);
-        list.sort(Comparator.comparing(ReceivedMessage::getReceived).reversed());
-        return list;
+    /**
+     * Goes through the stored messages of the subscription oldest first, reading a few at a time so memory use
+     * doesn't depend on how many messages there are. Messages removed while going through them are skipped.
+     *
+     * @param type       only messages of this type, null for all
+     * @param fromMillis only messages received at or after this time
+     * @param toMillis   only messages received before this time
+     */
+    public void forEachMessage(String subscriptionId, MessageTypeEnum type, long fromMillis, long toMillis,
+                               Consumer<ReceivedMessage> action) {
+        MessageBuffer messages = messageStore.get(subscriptionId);
+        if (messages == null) {
+            return;
+        }
+        long sequence = -1;
+        List<ReceivedMessage> chunk;
+        while (!(chunk = messages.after(sequence, EXPORT_CHUNK_SIZE)).isEmpty()) {
+            for (ReceivedMessage message : chunk) {
+                long received = message.getReceivedMillis();
+                if ((type == null || type == message.getType()) && received >= fromMillis && received < toMillis) {
+                    action.accept(message);
+                }
+            }
+            sequence = chunk.get(chunk.size() - 1).getSequence();
+        }
+    }
+
+    /**
+     * @return true if the message is still stored for the subscription
+     */
+    boolean isStored(String subscriptionId, ReceivedMessage message) {
+        MessageBuffer messages = messageStore.get(subscriptionId);
+        if (messages == null) {
+            return false;
+        }
+        List<ReceivedMessage> stored = messages.after(message.getSequence() - 1, 1);
+        return !stored.isEmpty() && stored.get(0) == message;
+    }
+
+    /**
+     * @return ids of the subscriptions that have stored messages
+     */
+    public Set<String> getSubscriptionIds() {
+        return Collections.unmodifiableSet(messageStore.keySet());
     }
 
     public void removeMessages(String id) {
-        messageStore.remove(id);
-        lastMessageReceived.remove(id);
+        withJournal(() -> {
+            removed();
+            MessageBuffer removed = messageStore.remove(id);
+            if (removed != null) {
+                storedBytes.addAndGet(-removed.bytes());
+                release(removed);
+            }
+            lastMessageReceived.remove(id);
+        }, journal -> journal.appendRemove(id));
     }
 
     public void clearAll() {
-        messageStore.clear();
-        lastMessageReceived.clear();
+        withJournal(() -> {
+            removed();
+            messageStore.values().forEach(this::release);
+            messageStore.clear();
+            storedBytes.set(0);
+            lastMessageReceived.clear();
+        }, MessageJournal::appendClearAll);
+    }
+
+    /**
+     * Done before the buffers are removed, so the version of a removed subscription never goes back.
+     */
+    private void removed() {
+        removedVersion = MessageBuffer.nextVersion();
+        removedMillis = System.currentTimeMillis();
+    }
+
+    private MessageBuffer getReceivedMessages(String subscriptionId) {
+        return messageStore.computeIfAbsent(subscriptionId,
+                k -> new MessageBuffer(retention.getMaxCount(), this::onRemoved));
+    }
+
+    private void release(MessageBuffer removed) {
+        if (payloadStore != null || !removedMessageListeners.isEmpty()) {
+            removed.snapshot().forEach(this::onRemoved);
+        }
+    }
+
+    /**
+     * @return number of distinct payloads shared by the stored messages, 0 without dedup
+     */
+    int getSharedPayloadCount() {
+        return payloadStore == null ? 0 : payloadStore.size();
+    }
+
+    /**
+     * Parses a stored payload again, for listeners that need what a message was made from when they were not given
+     * the parsed delivery.
+     *
+     * @return the situations, journeys or notification in the order of the messages' delivery index
+     */
+    List<Object> readPushMessages(byte[] payload) {
+        return pushMessages(parse(payload));
+    }
+
+    private Object parse(byte[] payload) {
+        long start = System.nanoTime();
+        Object parsed = staxIngest ? staxReader.read(payload) : unmarshal(payload);
+        metrics.record(Stage.UNMARSHAL, start);
+        return parsed;
     }
 
-    private Collection<ReceivedMessage> getReceivedMessages(String subscriptionId) {
-        return messageStore.computeIfAbsent(subscriptionId, k -> Queues.synchronizedQueue(EvictingQueue.create(MAX_SIZE_PER_SUBSCRIPTION)));
+    private Object unmarshal(byte[] payload) {
+        XMLStreamReader reader = null;
+        try {
+            reader = staxReader.createStreamReader(payload);
+            Object result = SiriJaxbContextHolder.INSTANCE.createUnmarshaller().unmarshal(reader);
+            return (result instanceof JAXBElement) ? ((JAXBElement<?>) result).getValue() : result;
+        } catch (JAXBException | XMLStreamException e) {
+            throw new IllegalArgumentException("Could not unmarshal push message", e);
+        } finally {
+            staxReader.close(reader);
+        }
     }
 
     private String toString(Object siriElement) {
         try {
             Marshaller marshaller = SiriJaxbContextHolder.INSTANCE.createMarshaller();
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
             marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
             StringWriter writer = new StringWriter();
             marshaller.marshal(siriElement, writer);
@@ -190,144 +981,43 @@ public class MessageService {
         return norwegian;
     }
 
-    private String makeHumanReadable(EstimatedVehicleJourney estimatedVehicleJourney) {
-
-        StringBuilder result = new StringBuilder();
-
-        LineRef lineRef = estimatedVehicleJourney.getLineRef();
-        result.append((lineRef == null) ? "Line NULL" : lineRef.getValue());
-
-        DirectionRefStructure directionRef = estimatedVehicleJourney.getDirectionRef();
-        if (directionRef != null && StringUtils.isAlphaSpace(directionRef.getValue())) { //Sometimes direction is only a number and pointless to show
-            result.append(" towards ").append(directionRef.getValue());
-        }
-
-        RecordedCall recordedCall = null;
-        if (estimatedVehicleJourney.getRecordedCalls() != null && estimatedVehicleJourney.getRecordedCalls().getRecordedCalls() != null) {
-            int noRecordedCalls = estimatedVehicleJourney.getRecordedCalls().getRecordedCalls().size();
-            if (noRecordedCalls == 1) {
-                recordedCall = estimatedVehicleJourney.getRecordedCalls().getRecordedCalls().get(0);
-            }
-        }
-        boolean addedFromToText = false;
-        if (estimatedVehicleJourney.getEstimatedCalls() != null && estimatedVehicleJourney.getEstimatedCalls().getEstimatedCalls() != null) {
-            List<EstimatedCall> estimatedCalls = estimatedVehicleJourney.getEstimatedCalls().getEstimatedCalls();
-            EstimatedCall fromCall = null;
-            EstimatedCall toCall = null;
-            if (estimatedCalls.size() == 2) {
-                fromCall = estimatedCalls.get(0);
-                toCall = estimatedCalls.get(1);
-            } else if (estimatedCalls.size() == 1) {
-                toCall = estimatedCalls.get(0);
-            }
-            if (toCall != null) {
-                addedFromToText = true;
-                result.append(findFromToText(recordedCall, fromCall, toCall));
-            }
-        }
-        if (!addedFromToText) {
-            result.append(" has deviations");
-        }
-
-        return result.toString();
+    /**
+     * Gets the messages each time messages are stored for a subscription.
+     */
+    interface StoredMessageListener {
+
+        /**
+         * @param pushMessages the parsed delivery, the message's delivery index gives the one it was made from. Null
+         *                     when an already stored payload is stored again without parsing it.
+         * @param described    when the payload is stored again, the messages first stored for it in the same order,
+         *                     otherwise null
+         */
+        void stored(String subscriptionId, List<ReceivedMessage> messages, List<Object> pushMessages,
+                    List<ReceivedMessage> described);
     }
 
-    private String  findFromToText(RecordedCall recordedCall, EstimatedCall fromCall, EstimatedCall toCall) {
-        StringBuilder result = new StringBuilder();
-
-        //This logic is somewhat naive and not very robust for future changes...
-        if (recordedCall != null) {
-            result.append(" from ").append(getName(recordedCall.getStopPointNames()));
-            String aimedDeparture = recordedCall.getAimedDepartureTime() != null ? recordedCall.getAimedDepartureTime().format(formatter) : null;
-            if (aimedDeparture != null) {
-                result.append(" ").append(aimedDeparture);
-            }
-            if (Boolean.TRUE.equals(recordedCall.isCancellation())) {
-                result.append(" was cancelled");
-            } else {
-                String actualDeparture = recordedCall.getActualDepartureTime() != null ? recordedCall.getActualDepartureTime().format(formatter) : null;
-                if (actualDeparture != null && !actualDeparture.equals(aimedDeparture)) {
-                    result.append(" departed ").append(actualDeparture);
-                }
-            }
-
-        } else if (fromCall != null) {
-            result.append(" from ").append(getName(fromCall.getStopPointNames()));
-            ZonedDateTime aimedDepartureTime = fromCall.getAimedDepartureTime();
-            if (aimedDepartureTime != null) {
-                result.append(" ").append(aimedDepartureTime.format(formatter));
-            }
-            if (Boolean.TRUE.equals(fromCall.isCancellation()) || fromCall.getDepartureStatus() == CANCELLED) {
-                result.append(" is cancelled");
-            } else if (fromCall.getDepartureStatus() == DELAYED || isDelayed(fromCall.getAimedDepartureTime(), fromCall.getExpectedDepartureTime())) {
-                result.append(" is delayed");
-                ZonedDateTime expectedDepartureTime = fromCall.getExpectedDepartureTime();
-                if (expectedDepartureTime != null) {
-                    result.append(" and expected to depart ").append(expectedDepartureTime.format(formatter));
-                }
-            } else {
-                result.append(" is on time");
-            }
-            appendAnyTrackChange(result, fromCall);
-        }
-
-        if (toCall != null) {
-            result.append(" to ").append(getName(toCall.getStopPointNames()));
-            ZonedDateTime aimedArrivalTime = toCall.getAimedArrivalTime();
-            if (aimedArrivalTime != null) {
-                result.append(" with aimed arrival ").append(aimedArrivalTime.format(formatter));
-            }
-            if (Boolean.TRUE.equals(toCall.isCancellation()) || toCall.getArrivalStatus() == CANCELLED) {
-                result.append(" is cancelled");
-            } else if(toCall.getArrivalStatus() == DELAYED || isDelayed(toCall.getAimedArrivalTime(), toCall.getExpectedArrivalTime())) {
-                result.append(" is delayed");
-                ZonedDateTime expectedArrivalTime = toCall.getExpectedArrivalTime();
-                if (expectedArrivalTime != null) {
-                    result.append(" and expected to arrive ").append(expectedArrivalTime.format(formatter));
-                }
-            }
-            appendAnyTrackChange(result, toCall);
-        }
-        return result.toString();
-    }
-
-    private void appendAnyTrackChange(StringBuilder result, EstimatedCall call) {
-        StopAssignmentStructure stopAssignment = call.getArrivalStopAssignment();
-        if (stopAssignment == null) {
-            stopAssignment = call.getDepartureStopAssignment();
-        }
-        if (stopAssignment != null && stopAssignment.getAimedQuayRef() != null && stopAssignment.getExpectedQuayRef() != null) {
-            String aimed = stopAssignment.getAimedQuayRef().getValue();
-            String expected = stopAssignment.getExpectedQuayRef().getValue();
-            if (StringUtils.isNotBlank(aimed) && !StringUtils.equals(aimed, expected)) {
-                result.append(" with new track ");
-                String platformName = getPlatformName(call);
-                if (StringUtils.isNotBlank(platformName)) {
-                        result.append("platform ").append(platformName);
-                } else {
-                    result.append(expected);
-                }
+    /**
+     * The received xml as stored, either compressed, as a delta or as a string, shared by all messages from one delivery.
+     */
+    private record Body(String xml, CompressedXml compressedXml, DeltaXml deltaXml, int bytes) {
+
+        ReceivedMessage message(long receivedMillis, Long delay, int deliveryIndex, int deliverySize) {
+            ReceivedMessage message = compressedXml != null ? new ReceivedMessage(compressedXml)
+                    : deltaXml != null ? new ReceivedMessage(deltaXml) : new ReceivedMessage(xml);
+            message.setReceivedMillis(receivedMillis);
+            message.setDeliveryIndex(deliveryIndex);
+            if (delay != null) {
+                message.setDeliveryDelay(delay);
             }
+            message.setFootprint(MESSAGE_OVERHEAD_BYTES + bytes / deliverySize);
+            return message;
         }
-    }
 
-    private String getPlatformName(EstimatedCall call) {
-        if (call.getArrivalPlatformName() != null) return call.getArrivalPlatformName().getValue();
-        if (call.getDeparturePlatformName() != null) return call.getDeparturePlatformName().getValue();
-        return null;
-    }
-
-    private boolean isDelayed(ZonedDateTime aimed, ZonedDateTime expected) {
-        if (aimed != null && expected != null) {
-            return expected.isAfter(aimed);
+        /**
+         * The journal only stores xml compressed without a dictionary, so it can be read back on its own.
+         */
+        CompressedXml forJournal(byte[] payload) {
+            return compressedXml != null && !compressedXml.hasDictionary() ? compressedXml : CompressedXml.compress(payload, null);
         }
-        return false;
-    }
-
-    private String getName(List<NaturalLanguageStringStructure> stopPointNames) {
-        return  (stopPointNames == null || stopPointNames.isEmpty()) ? "?" : stopPointNames.get(0).getValue();
     }
-
 }
-
-
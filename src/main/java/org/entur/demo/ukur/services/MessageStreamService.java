@@ -0,0 +1,246 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.entur.demo.ukur.entities.ReceivedMessage;
+import org.entur.demo.ukur.entities.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the messages stored for a subscription to its viewers as Server-Sent Events, as they are stored. Each
+ * message is turned into json once for all viewers, and each viewer has a bounded queue that is emptied by its
+ * own virtual thread, so a slow viewer neither holds up ingest nor other viewers. When a viewer falls a full queue
+ * behind, the queue is dropped and the viewer is told to reload instead.
+ */
+@Service
+public class MessageStreamService {
+
+    static final String MESSAGE_EVENT = "message";
+    static final String RESET_EVENT = "reset";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Map<String, Set<Viewer>> viewers = new ConcurrentHashMap<>();
+    private final AtomicInteger viewerCount = new AtomicInteger();
+    private final ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+    private final MessageService messageService;
+    private final SubscriptionService subscriptionService;
+    private final JsonMapper jsonMapper;
+    private final int queueCapacity;
+    private final int maxViewers;
+    private final long timeoutMillis;
+
+    @Autowired
+    public MessageStreamService(MessageService messageService, SubscriptionService subscriptionService, JsonMapper jsonMapper,
+                                @Value("${messages.stream.queue-capacity:100}") int queueCapacity,
+                                @Value("${messages.stream.max-viewers:1000}") int maxViewers,
+                                @Value("${messages.stream.timeout-minutes:30}") long timeoutMinutes) {
+        this.messageService = messageService;
+        this.subscriptionService = subscriptionService;
+        this.jsonMapper = jsonMapper;
+        this.queueCapacity = queueCapacity;
+        this.maxViewers = maxViewers;
+        this.timeoutMillis = TimeUnit.MINUTES.toMillis(timeoutMinutes);
+    }
+
+    @PostConstruct
+    void start() {
+        messageService.addStoredMessageListener((subscriptionId, messages, pushMessages, described) -> stored(subscriptionId, messages));
+        if (subscriptionService != null) {
+            subscriptionService.addRemovedSubscriptionListener(this::removeSubscription);
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        senders.shutdownNow();
+    }
+
+    /**
+     * @param lastEventId sequence number of the last message the viewer has, a reconnecting EventSource gets what
+     *                    it has missed since
+     * @return null when there are already as many viewers as allowed
+     */
+    public SseEmitter open(String subscriptionId, Long lastEventId) {
+        if (viewerCount.incrementAndGet() > maxViewers) {
+            viewerCount.decrementAndGet();
+            return null;
+        }
+        Viewer viewer = new Viewer(subscriptionId, createEmitter());
+        viewer.emitter.onCompletion(viewer::close);
+        viewer.emitter.onTimeout(viewer::close);
+        viewer.emitter.onError(e -> viewer.close());
+        viewers.compute(subscriptionId, (k, subscriptionViewers) -> {
+            Set<Viewer> result = subscriptionViewers == null ? ConcurrentHashMap.newKeySet() : subscriptionViewers;
+            result.add(viewer);
+            return result;
+        });
+        if (lastEventId != null) {
+            List<ReceivedMessage> missed = messageService.getMessagePage(subscriptionId, null, lastEventId, queueCapacity).getMessages();
+            viewer.offer(missed.stream().map(StreamedMessage::new).toList());
+        }
+        return viewer.emitter;
+    }
+
+    SseEmitter createEmitter() {
+        return new SseEmitter(timeoutMillis);
+    }
+
+    public int getViewerCount() {
+        return viewerCount.get();
+    }
+
+    int getStreamedSubscriptionCount() {
+        return viewers.size();
+    }
+
+    /**
+     * Ends the streams of a removed subscription, as nothing more will be stored for it.
+     */
+    void removeSubscription(Subscription subscription) {
+        Set<Viewer> subscriptionViewers = viewers.remove(subscription.getId());
+        if (subscriptionViewers != null) {
+            for (Viewer viewer : subscriptionViewers) {
+                viewer.close();
+                viewer.emitter.complete();
+            }
+        }
+    }
+
+    private void stored(String subscriptionId, List<ReceivedMessage> messages) {
+        Set<Viewer> subscriptionViewers = viewers.get(subscriptionId);
+        if (subscriptionViewers == null || subscriptionViewers.isEmpty()) {
+            return;
+        }
+        List<StreamedMessage> streamed = messages.stream().map(StreamedMessage::new).toList();
+        for (Viewer viewer : subscriptionViewers) {
+            viewer.offer(streamed);
+        }
+    }
+
+    /**
+     * A stored message with its json, made by the first viewer that sends it.
+     */
+    private final class StreamedMessage {
+        private final ReceivedMessage message;
+        private volatile String json;
+
+        private StreamedMessage(ReceivedMessage message) {
+            this.message = message;
+        }
+
+        String json() {
+            String result = json;
+            if (result == null) {
+                result = jsonMapper.writeValueAsString(message);
+                json = result;
+            }
+            return result;
+        }
+    }
+
+    private final class Viewer {
+        private final String subscriptionId;
+        private final SseEmitter emitter;
+        private final BlockingQueue<StreamedMessage> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean overflowed;
+
+        private Viewer(String subscriptionId, SseEmitter emitter) {
+            this.subscriptionId = subscriptionId;
+            this.emitter = emitter;
+        }
+
+        void offer(List<StreamedMessage> messages) {
+            for (StreamedMessage message : messages) {
+                if (!queue.offer(message)) {
+                    queue.clear();
+                    overflowed = true;
+                }
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (!closed.get() && sending.compareAndSet(false, true)) {
+                senders.execute(this::send);
+            }
+        }
+
+        private void send() {
+            try {
+                while (!closed.get()) {
+                    if (overflowed) {
+                        overflowed = false;
+                        emitter.send(SseEmitter.event().name(RESET_EVENT).data("reload"));
+                        continue;
+                    }
+                    StreamedMessage message = queue.poll();
+                    if (message == null) {
+                        break;
+                    }
+                    emitter.send(SseEmitter.event()
+                            .id(Long.toString(message.message.getSequence()))
+                            .name(MESSAGE_EVENT)
+                            .data(message.json(), MediaType.APPLICATION_JSON));
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Closing message stream for subscription {}: {}", subscriptionId, e.toString());
+                emitter.completeWithError(e);
+                close();
+            } finally {
+                sending.set(false);
+            }
+            if (!queue.isEmpty() || overflowed) {
+                schedule();
+            }
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                queue.clear();
+                viewers.computeIfPresent(subscriptionId, (k, subscriptionViewers) -> {
+                    subscriptionViewers.remove(this);
+                    return subscriptionViewers.isEmpty() ? null : subscriptionViewers;
+                });
+                viewerCount.decrementAndGet();
+            }
+        }
+    }
+}
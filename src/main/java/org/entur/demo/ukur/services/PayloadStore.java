@@ -0,0 +1,110 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.entur.demo.ukur.CompressedXml;
+import org.entur.demo.ukur.entities.ReceivedMessage;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Received payloads by the SHA-256 of their bytes, so a payload pushed to several subscriptions is compressed,
+ * parsed and described only the first time. Every stored message refers to the same compressed xml and shares the
+ * text of the message that was first described, and the payload is forgotten when the last of them is removed.
+ */
+class PayloadStore {
+
+    private final Map<HashCode, Entry> byHash = new HashMap<>();
+    private final Map<CompressedXml, Entry> byBody = new IdentityHashMap<>();
+
+    static HashCode hash(byte[] payload) {
+        return Hashing.sha256().hashBytes(payload);
+    }
+
+    /**
+     * @return the stored payload with a reference added for each of its messages, null if it isn't stored
+     */
+    synchronized Entry acquire(HashCode hash) {
+        Entry entry = byHash.get(hash);
+        if (entry != null) {
+            entry.references += entry.described.size();
+        }
+        return entry;
+    }
+
+    /**
+     * @param described the messages first stored for the payload, the others get their type and text from them
+     */
+    synchronized void put(HashCode hash, CompressedXml body, List<ReceivedMessage> described, Long responseMillis) {
+        if (!byHash.containsKey(hash) && !described.isEmpty()) {
+            Entry entry = new Entry(hash, body, described, responseMillis);
+            byHash.put(hash, entry);
+            byBody.put(body, entry);
+        }
+    }
+
+    /**
+     * Called for every message removed from a subscription, those that don't refer to a stored payload are ignored.
+     */
+    synchronized void release(ReceivedMessage message) {
+        CompressedXml body = message.getCompressedXml();
+        Entry entry = body == null ? null : byBody.get(body);
+        if (entry != null && --entry.references <= 0) {
+            byHash.remove(entry.hash);
+            byBody.remove(body);
+        }
+    }
+
+    synchronized int size() {
+        return byHash.size();
+    }
+
+    static final class Entry {
+        private final HashCode hash;
+        private final CompressedXml body;
+        private final List<ReceivedMessage> described;
+        private final Long responseMillis;
+        private int references;
+
+        private Entry(HashCode hash, CompressedXml body, List<ReceivedMessage> described, Long responseMillis) {
+            this.hash = hash;
+            this.body = body;
+            this.described = described;
+            this.responseMillis = responseMillis;
+            this.references = described.size();
+        }
+
+        CompressedXml body() {
+            return body;
+        }
+
+        List<ReceivedMessage> described() {
+            return described;
+        }
+
+        /**
+         * @return the delivery's ResponseTimestamp, null if it has none
+         */
+        Long responseMillis() {
+            return responseMillis;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.entur.demo.ukur.entities.IngestStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Hands received push messages over to a fixed number of workers through bounded queues, so the request thread
+ * returns as soon as the payload is queued. Each subscription is always handled by the same worker to keep the
+ * order messages are received in. When the queue is full the message is rejected and the caller must retry.
+ * <p>
+ * The request thread only sniffs the root element and counts the situations and journeys, it does not parse the
+ * payload. A payload that turns out to be invalid when the worker reads it has already been answered with 200, it
+ * is logged and counted in ukur.ingest.failed. Set push.ingest.async=false to have such payloads refused with 400.
+ * <p>
+ * On shutdown new pushes are rejected and the queued ones are handled before the journal is closed.
+ */
+@Service
+@DependsOn("messageJournal")
+public class PushIngestService {
+
+    private static final long DRAIN_SECONDS = 10;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final MessageService messageService;
+    private final IngestMetrics metrics;
+    private final boolean async;
+    private final int queueCapacity;
+    private final List<BlockingQueue<PushJob>> queues = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final StageTimer queueTimer = new StageTimer();
+    private final StageTimer processTimer = new StageTimer();
+    private volatile boolean running = true;
+
+    @Autowired
+    public PushIngestService(MessageService messageService, IngestMetrics metrics,
+                             @Value("${push.ingest.async:true}") boolean async,
+                             @Value("${push.ingest.workers:2}") int workerCount,
+                             @Value("${push.ingest.queue-capacity:1000}") int queueCapacity) {
+        this.messageService = messageService;
+        this.metrics = metrics;
+        this.async = async;
+        this.queueCapacity = queueCapacity;
+        if (async) {
+            for (int i = 0; i < workerCount; i++) {
+                BlockingQueue<PushJob> queue = new ArrayBlockingQueue<>(queueCapacity);
+                queues.add(queue);
+                Thread worker = new Thread(() -> work(queue), "push-ingest-" + i);
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+        }
+        logger.info("Started with async={}, workers={} and queueCapacity={} (per worker)", async, workerCount, queueCapacity);
+    }
+
+    @PostConstruct
+    void start() {
+        metrics.counter("ukur.ingest.failed", "Queued pushes that could not be read or stored", failed, LongAdder::sum);
+    }
+
+    /**
+     * @return false if the message is rejected because the ingest queue is full
+     * @throws BatchTooLargeException   if the message has more situations and journeys than accepted
+     * @throws IllegalArgumentException if the message can't be read. When handled asynchronously only the root
+     *                                  element is checked before it is queued, a message that can't be read fails
+     *                                  on the worker and is counted as failed.
+     */
+    public boolean submit(String subscriptionId, byte[] payload) {
+        return submit(subscriptionId, payload, received -> messageService.addPushMessage(subscriptionId, received));
+    }
+
+    /**
+     * Same as above, but the payload is handled by the given handler, which must read it as a push message.
+     *
+     * @param key messages with the same key are handled in the order they are received
+     */
+    public boolean submit(String key, byte[] payload, Consumer<byte[]> handler) {
+        if (!async) {
+            long start = System.nanoTime();
+            handler.accept(payload);
+            processTimer.record(System.nanoTime() - start);
+            accepted.increment();
+            return true;
+        }
+        messageService.check(payload);
+        if (!running) {
+            rejected.increment();
+            return false;
+        }
+        BlockingQueue<PushJob> queue = queues.get(Math.floorMod(key.hashCode(), queues.size()));
+        if (queue.offer(new PushJob(key, payload, handler, System.nanoTime()))) {
+            accepted.increment();
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    public IngestStatistics getStatistics() {
+        int depth = 0;
+        for (BlockingQueue<PushJob> queue : queues) {
+            depth += queue.size();
+        }
+        return new IngestStatistics(async, workers.size(), queueCapacity * queues.size(), depth,
+                accepted.sum(), rejected.sum(), failed.sum(),
+                queueTimer.count(), queueTimer.averageMillis(), queueTimer.maxMillis(),
+                processTimer.count(), processTimer.averageMillis(), processTimer.maxMillis());
+    }
+
+    /**
+     * Lets the workers finish what is queued. They are not interrupted, as that would close the journal's file
+     * channel in the middle of a write.
+     */
+    @PreDestroy
+    void stop() {
+        running = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+        try {
+            for (Thread worker : workers) {
+                worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int left = 0;
+        for (BlockingQueue<PushJob> queue : queues) {
+            left += queue.size();
+        }
+        if (left > 0) {
+            logger.warn("Stopped with {} push messages not handled", left);
+        }
+    }
+
+    private void work(BlockingQueue<PushJob> queue) {
+        while (running || !queue.isEmpty()) {
+            PushJob job;
+            try {
+                job = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (job == null) {
+                continue;
+            }
+            long start = System.nanoTime();
+            queueTimer.record(start - job.enqueued());
+            try {
+                job.handler().accept(job.payload());
+            } catch (Exception e) {
+                failed.increment();
+                logger.warn("Could not handle push message for key={}, it was accepted when queued", job.key(), e);
+            }
+            processTimer.record(System.nanoTime() - start);
+        }
+    }
+
+    private record PushJob(String key, byte[] payload, Consumer<byte[]> handler, long enqueued) {
+    }
+
+    private static class StageTimer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        double averageMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / (n * 1_000_000.0);
+        }
+
+        double maxMillis() {
+            return maxNanos.get() / 1_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Limits for how many received messages are kept. Each subscription is limited by count, age and (estimated)
+ * bytes, and all subscriptions together by a global byte budget given as a share of the max heap.
+ */
+@Component
+public class RetentionPolicy {
+
+    private final int maxCount;
+    private final long maxAgeMillis;
+    private final long maxBytesPerSubscription;
+    private final long maxTotalBytes;
+    private final boolean evictLeastRecentlyViewed;
+
+    /**
+     * Only limits by count, as before retention became configurable.
+     */
+    public RetentionPolicy() {
+        this(MessageService.MAX_SIZE_PER_SUBSCRIPTION, 0, 0, Long.MAX_VALUE, false);
+    }
+
+    /**
+     * @param maxAgeMinutes            0 keeps messages regardless of age
+     * @param maxBytesPerSubscription  0 keeps messages regardless of size
+     * @param heapShare                max share of the heap all messages together may use
+     * @param eviction                 "oldest" evicts the oldest message across all subscriptions first when the
+     *                                 global budget is exceeded, "least-recently-viewed" evicts from the
+     *                                 subscription whose messages were looked at longest ago
+     */
+    @Autowired
+    public RetentionPolicy(@Value("${messages.retention.max-count:100}") int maxCount,
+                           @Value("${messages.retention.max-age-minutes:0}") long maxAgeMinutes,
+                           @Value("${messages.retention.max-bytes-per-subscription:20000000}") long maxBytesPerSubscription,
+                           @Value("${messages.retention.heap-share:0.3}") double heapShare,
+                           @Value("${messages.retention.eviction:oldest}") String eviction) {
+        this(maxCount, maxAgeMinutes * 60_000, maxBytesPerSubscription,
+                (long) (Runtime.getRuntime().maxMemory() * heapShare), "least-recently-viewed".equalsIgnoreCase(eviction));
+    }
+
+    RetentionPolicy(int maxCount, long maxAgeMillis, long maxBytesPerSubscription, long maxTotalBytes,
+                    boolean evictLeastRecentlyViewed) {
+        if (maxCount < 1) {
+            throw new IllegalArgumentException("maxCount must be at least 1");
+        }
+        this.maxCount = maxCount;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytesPerSubscription = maxBytesPerSubscription <= 0 ? Long.MAX_VALUE : maxBytesPerSubscription;
+        this.maxTotalBytes = maxTotalBytes <= 0 ? Long.MAX_VALUE : maxTotalBytes;
+        this.evictLeastRecentlyViewed = evictLeastRecentlyViewed;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public long getMaxBytesPerSubscription() {
+        return maxBytesPerSubscription;
+    }
+
+    public long getMaxTotalBytes() {
+        return maxTotalBytes;
+    }
+
+    public boolean isEvictLeastRecentlyViewed() {
+        return evictLeastRecentlyViewed;
+    }
+
+    @Override
+    public String toString() {
+        return "RetentionPolicy{maxCount=" + maxCount + ", maxAgeMillis=" + maxAgeMillis +
+                ", maxBytesPerSubscription=" + maxBytesPerSubscription + ", maxTotalBytes=" + maxTotalBytes +
+                ", evictLeastRecentlyViewed=" + evictLeastRecentlyViewed + "}";
+    }
+}
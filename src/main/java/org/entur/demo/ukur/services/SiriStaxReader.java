@@ -0,0 +1,624 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.siri.adapter.ZonedDateTimeAdapter;
+import uk.org.siri.siri20.*;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.XMLEvent;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+/**
+ * Reads push payloads with StAX and only picks up the elements needed to classify a message, calculate the
+ * delivery delay, match it against subscriptions and make it human readable. All other elements are skipped, so the result is a sparse
+ * Siri, EstimatedVehicleJourney or PtSituationElement that is handled the same way as a fully unmarshalled one.
+ */
+public class SiriStaxReader {
+
+    private static final byte[] SITUATION_TAG = "PtSituationElement".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JOURNEY_TAG = "EstimatedVehicleJourney".getBytes(StandardCharsets.US_ASCII);
+
+    private final XMLInputFactory inputFactory;
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newFactory();
+
+    public SiriStaxReader() {
+        inputFactory = XMLInputFactory.newFactory();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    XMLStreamReader createStreamReader(byte[] payload) throws XMLStreamException {
+        return inputFactory.createXMLStreamReader(new ByteArrayInputStream(payload));
+    }
+
+    public Object read(byte[] payload) {
+        XMLStreamReader reader = null;
+        try {
+            reader = createStreamReader(payload);
+            reader.nextTag();
+            return switch (reader.getLocalName()) {
+                case "Siri" -> readSiri(reader);
+                case "EstimatedVehicleJourney" -> readEstimatedVehicleJourney(reader);
+                case "PtSituationElement" -> readPtSituationElement(reader);
+                default -> throw new IllegalArgumentException("Unsupported root element " + reader.getLocalName());
+            };
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Could not read push message", e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * A cheap check of a payload before it is queued: only the prolog and root element are read, and the
+     * situations and journeys are counted by their start tags without parsing the rest. Whether the payload is
+     * well-formed and has anything to store is found when it is read.
+     *
+     * @return the number of PtSituationElements and EstimatedVehicleJourneys
+     * @throws IllegalArgumentException if the payload does not start with a supported root element
+     */
+    public int check(byte[] payload) {
+        XMLStreamReader reader = null;
+        try {
+            reader = createStreamReader(payload);
+            reader.nextTag();
+            return switch (reader.getLocalName()) {
+                case "Siri" -> countStartTags(payload);
+                case "EstimatedVehicleJourney", "PtSituationElement" -> 1;
+                default -> throw new IllegalArgumentException("Unsupported root element " + reader.getLocalName());
+            };
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Could not read push message", e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Counts the start tags of PtSituationElements and EstimatedVehicleJourneys, with or without a namespace
+     * prefix, in an UTF-8 (or ASCII compatible) payload.
+     */
+    static int countStartTags(byte[] payload) {
+        int count = 0;
+        for (int i = 0; i < payload.length; i++) {
+            if (payload[i] != '<') {
+                continue;
+            }
+            int name = i + 1;
+            int end = nameEnd(payload, name);
+            if (end < payload.length && payload[end] == ':') {
+                name = end + 1;
+                end = nameEnd(payload, name);
+            }
+            if (end < payload.length && (payload[end] == '>' || payload[end] == '/' || payload[end] <= ' ')
+                    && (matches(payload, name, end, SITUATION_TAG) || matches(payload, name, end, JOURNEY_TAG))) {
+                count++;
+            }
+            i = Math.max(i, end - 1);
+        }
+        return count;
+    }
+
+    private static int nameEnd(byte[] payload, int start) {
+        int end = start;
+        while (end < payload.length && (Character.isLetterOrDigit(payload[end]) || payload[end] == '_'
+                || payload[end] == '-' || payload[end] == '.' || payload[end] < 0)) {
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean matches(byte[] payload, int from, int to, byte[] name) {
+        return Arrays.equals(payload, from, to, name, 0, name.length);
+    }
+
+    /**
+     * Cuts a delivery down to one of its situations and journeys, counted the way the messages of a delivery are
+     * made: all PtSituationElements first, then all EstimatedVehicleJourneys. Everything around them is kept.
+     *
+     * @return the xml with only the situation or journey at the index, or as is if it has no more than one
+     */
+    public String element(String xml, int index) {
+        int[] counts = count(xml);
+        if (counts[0] + counts[1] <= 1 || index < 0 || index >= counts[0] + counts[1]) {
+            return xml;
+        }
+        String kept = index < counts[0] ? "PtSituationElement" : "EstimatedVehicleJourney";
+        int keptIndex = index < counts[0] ? index : index - counts[0];
+        XMLEventReader reader = null;
+        try {
+            reader = inputFactory.createXMLEventReader(new StringReader(xml));
+            StringWriter result = new StringWriter(xml.length() / (counts[0] + counts[1]) * 2);
+            XMLEventWriter writer = outputFactory.createXMLEventWriter(result);
+            int situations = 0;
+            int journeys = 0;
+            boolean skipped = false;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    String name = event.asStartElement().getName().getLocalPart();
+                    int n = "PtSituationElement".equals(name) ? situations++ : "EstimatedVehicleJourney".equals(name) ? journeys++ : -1;
+                    if (n >= 0 && !(name.equals(kept) && n == keptIndex)) {
+                        skipElement(reader);
+                        skipped = true;
+                        continue;
+                    }
+                } else if (skipped && event.isCharacters() && event.asCharacters().isWhiteSpace()) {
+                    continue;
+                }
+                skipped = false;
+                writer.add(event);
+            }
+            writer.close();
+            return result.toString();
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Could not read stored xml", e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * @return the number of PtSituationElements and of EstimatedVehicleJourneys
+     */
+    private int[] count(String xml) {
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(new StringReader(xml));
+            int[] counts = new int[2];
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "PtSituationElement" -> {
+                            counts[0]++;
+                            skipElement(reader);
+                        }
+                        case "EstimatedVehicleJourney" -> {
+                            counts[1]++;
+                            skipElement(reader);
+                        }
+                        default -> {
+                        }
+                    }
+                }
+            }
+            return counts;
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Could not read stored xml", e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    private Siri readSiri(XMLStreamReader reader) throws XMLStreamException {
+        Siri siri = new Siri();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "ServiceDelivery" -> siri.setServiceDelivery(readServiceDelivery(reader));
+                case "HeartbeatNotification" -> {
+                    siri.setHeartbeatNotification(new HeartbeatNotificationStructure());
+                    skipElement(reader);
+                }
+                case "SubscriptionTerminatedNotification" -> {
+                    siri.setSubscriptionTerminatedNotification(new SubscriptionTerminatedNotificationStructure());
+                    skipElement(reader);
+                }
+                default -> skipElement(reader);
+            }
+        }
+        return siri;
+    }
+
+    private ServiceDelivery readServiceDelivery(XMLStreamReader reader) throws XMLStreamException {
+        ServiceDelivery serviceDelivery = new ServiceDelivery();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "ResponseTimestamp" -> serviceDelivery.setResponseTimestamp(readTime(reader));
+                case "SituationExchangeDelivery" -> serviceDelivery.getSituationExchangeDeliveries().add(readSituationExchangeDelivery(reader));
+                case "EstimatedTimetableDelivery" -> serviceDelivery.getEstimatedTimetableDeliveries().add(readEstimatedTimetableDelivery(reader));
+                default -> skipElement(reader);
+            }
+        }
+        return serviceDelivery;
+    }
+
+    private SituationExchangeDeliveryStructure readSituationExchangeDelivery(XMLStreamReader reader) throws XMLStreamException {
+        SituationExchangeDeliveryStructure delivery = new SituationExchangeDeliveryStructure();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("Situations".equals(reader.getLocalName())) {
+                SituationExchangeDeliveryStructure.Situations situations = new SituationExchangeDeliveryStructure.Situations();
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if ("PtSituationElement".equals(reader.getLocalName())) {
+                        situations.getPtSituationElements().add(readPtSituationElement(reader));
+                    } else {
+                        skipElement(reader);
+                    }
+                }
+                delivery.setSituations(situations);
+            } else {
+                skipElement(reader);
+            }
+        }
+        return delivery;
+    }
+
+    private EstimatedTimetableDeliveryStructure readEstimatedTimetableDelivery(XMLStreamReader reader) throws XMLStreamException {
+        EstimatedTimetableDeliveryStructure delivery = new EstimatedTimetableDeliveryStructure();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("EstimatedJourneyVersionFrame".equals(reader.getLocalName())) {
+                EstimatedVersionFrameStructure frame = new EstimatedVersionFrameStructure();
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if ("EstimatedVehicleJourney".equals(reader.getLocalName())) {
+                        frame.getEstimatedVehicleJourneies().add(readEstimatedVehicleJourney(reader));
+                    } else {
+                        skipElement(reader);
+                    }
+                }
+                delivery.getEstimatedJourneyVersionFrames().add(frame);
+            } else {
+                skipElement(reader);
+            }
+        }
+        return delivery;
+    }
+
+    private PtSituationElement readPtSituationElement(XMLStreamReader reader) throws XMLStreamException {
+        PtSituationElement situation = new PtSituationElement();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "ParticipantRef" -> {
+                    RequestorRef participantRef = new RequestorRef();
+                    participantRef.setValue(reader.getElementText());
+                    situation.setParticipantRef(participantRef);
+                }
+                case "CreationTime" -> situation.setCreationTime(readTime(reader));
+                case "SituationNumber" -> {
+                    SituationNumber situationNumber = new SituationNumber();
+                    situationNumber.setValue(reader.getElementText().trim());
+                    situation.setSituationNumber(situationNumber);
+                }
+                case "Version" -> {
+                    SituationVersion version = new SituationVersion();
+                    version.setValue(new BigInteger(reader.getElementText().trim()));
+                    situation.setVersion(version);
+                }
+                case "Progress" -> {
+                    try {
+                        situation.setProgress(WorkflowStatusEnumeration.fromValue(reader.getElementText().trim()));
+                    } catch (IllegalArgumentException e) {
+                        situation.setProgress(null);
+                    }
+                }
+                case "ValidityPeriod" -> {
+                    HalfOpenTimestampOutputRangeStructure period = new HalfOpenTimestampOutputRangeStructure();
+                    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        switch (reader.getLocalName()) {
+                            case "StartTime" -> period.setStartTime(readTime(reader));
+                            case "EndTime" -> period.setEndTime(readTime(reader));
+                            default -> skipElement(reader);
+                        }
+                    }
+                    situation.getValidityPeriods().add(period);
+                }
+                case "Summary" -> {
+                    DefaultedTextStructure summary = new DefaultedTextStructure();
+                    summary.setLang(reader.getAttributeValue(XMLConstants.XML_NS_URI, "lang"));
+                    summary.setValue(reader.getElementText());
+                    situation.getSummaries().add(summary);
+                }
+                case "Description" -> {
+                    DefaultedTextStructure description = new DefaultedTextStructure();
+                    description.setLang(reader.getAttributeValue(XMLConstants.XML_NS_URI, "lang"));
+                    description.setValue(reader.getElementText());
+                    situation.getDescriptions().add(description);
+                }
+                case "Affects" -> situation.setAffects(readAffects(reader));
+                default -> skipElement(reader);
+            }
+        }
+        return situation;
+    }
+
+    /**
+     * Only the affected lines and stop points, the parts subscriptions are matched against.
+     */
+    private AffectsScopeStructure readAffects(XMLStreamReader reader) throws XMLStreamException {
+        AffectsScopeStructure affects = new AffectsScopeStructure();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "Networks" -> {
+                    AffectsScopeStructure.Networks networks = new AffectsScopeStructure.Networks();
+                    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        if ("AffectedNetwork".equals(reader.getLocalName())) {
+                            networks.getAffectedNetworks().add(readAffectedNetwork(reader));
+                        } else {
+                            skipElement(reader);
+                        }
+                    }
+                    affects.setNetworks(networks);
+                }
+                case "StopPoints" -> {
+                    AffectsScopeStructure.StopPoints stopPoints = new AffectsScopeStructure.StopPoints();
+                    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        if ("AffectedStopPoint".equals(reader.getLocalName())) {
+                            stopPoints.getAffectedStopPoints().add(readAffectedStopPoint(reader));
+                        } else {
+                            skipElement(reader);
+                        }
+                    }
+                    affects.setStopPoints(stopPoints);
+                }
+                default -> skipElement(reader);
+            }
+        }
+        return affects;
+    }
+
+    private AffectsScopeStructure.Networks.AffectedNetwork readAffectedNetwork(XMLStreamReader reader) throws XMLStreamException {
+        AffectsScopeStructure.Networks.AffectedNetwork network = new AffectsScopeStructure.Networks.AffectedNetwork();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("AffectedLine".equals(reader.getLocalName())) {
+                AffectedLineStructure line = new AffectedLineStructure();
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if ("LineRef".equals(reader.getLocalName())) {
+                        LineRef lineRef = new LineRef();
+                        lineRef.setValue(reader.getElementText());
+                        line.setLineRef(lineRef);
+                    } else {
+                        skipElement(reader);
+                    }
+                }
+                network.getAffectedLines().add(line);
+            } else {
+                skipElement(reader);
+            }
+        }
+        return network;
+    }
+
+    private AffectedStopPointStructure readAffectedStopPoint(XMLStreamReader reader) throws XMLStreamException {
+        AffectedStopPointStructure stopPoint = new AffectedStopPointStructure();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("StopPointRef".equals(reader.getLocalName())) {
+                stopPoint.setStopPointRef(readStopPointRef(reader));
+            } else {
+                skipElement(reader);
+            }
+        }
+        return stopPoint;
+    }
+
+    private EstimatedVehicleJourney readEstimatedVehicleJourney(XMLStreamReader reader) throws XMLStreamException {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "LineRef" -> {
+                    LineRef lineRef = new LineRef();
+                    lineRef.setValue(reader.getElementText());
+                    journey.setLineRef(lineRef);
+                }
+                case "DirectionRef" -> {
+                    DirectionRefStructure directionRef = new DirectionRefStructure();
+                    directionRef.setValue(reader.getElementText());
+                    journey.setDirectionRef(directionRef);
+                }
+                case "DatedVehicleJourneyRef" -> {
+                    DatedVehicleJourneyRef datedVehicleJourneyRef = new DatedVehicleJourneyRef();
+                    datedVehicleJourneyRef.setValue(reader.getElementText());
+                    journey.setDatedVehicleJourneyRef(datedVehicleJourneyRef);
+                }
+                case "FramedVehicleJourneyRef" -> journey.setFramedVehicleJourneyRef(readFramedVehicleJourneyRef(reader));
+                case "DataSource" -> journey.setDataSource(reader.getElementText());
+                case "Cancellation" -> journey.setCancellation(readBoolean(reader));
+                case "RecordedCalls" -> {
+                    EstimatedVehicleJourney.RecordedCalls recordedCalls = new EstimatedVehicleJourney.RecordedCalls();
+                    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        if ("RecordedCall".equals(reader.getLocalName())) {
+                            recordedCalls.getRecordedCalls().add(readRecordedCall(reader));
+                        } else {
+                            skipElement(reader);
+                        }
+                    }
+                    journey.setRecordedCalls(recordedCalls);
+                }
+                case "EstimatedCalls" -> {
+                    EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+                    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        if ("EstimatedCall".equals(reader.getLocalName())) {
+                            estimatedCalls.getEstimatedCalls().add(readEstimatedCall(reader));
+                        } else {
+                            skipElement(reader);
+                        }
+                    }
+                    journey.setEstimatedCalls(estimatedCalls);
+                }
+                default -> skipElement(reader);
+            }
+        }
+        return journey;
+    }
+
+    private FramedVehicleJourneyRefStructure readFramedVehicleJourneyRef(XMLStreamReader reader) throws XMLStreamException {
+        FramedVehicleJourneyRefStructure framedVehicleJourneyRef = new FramedVehicleJourneyRefStructure();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "DataFrameRef" -> {
+                    DataFrameRefStructure dataFrameRef = new DataFrameRefStructure();
+                    dataFrameRef.setValue(reader.getElementText());
+                    framedVehicleJourneyRef.setDataFrameRef(dataFrameRef);
+                }
+                case "DatedVehicleJourneyRef" -> framedVehicleJourneyRef.setDatedVehicleJourneyRef(reader.getElementText());
+                default -> skipElement(reader);
+            }
+        }
+        return framedVehicleJourneyRef;
+    }
+
+    private RecordedCall readRecordedCall(XMLStreamReader reader) throws XMLStreamException {
+        RecordedCall call = new RecordedCall();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "StopPointRef" -> call.setStopPointRef(readStopPointRef(reader));
+                case "StopPointName" -> call.getStopPointNames().add(readText(reader));
+                case "Cancellation" -> call.setCancellation(readBoolean(reader));
+                case "AimedArrivalTime" -> call.setAimedArrivalTime(readTime(reader));
+                case "ActualArrivalTime" -> call.setActualArrivalTime(readTime(reader));
+                case "AimedDepartureTime" -> call.setAimedDepartureTime(readTime(reader));
+                case "ActualDepartureTime" -> call.setActualDepartureTime(readTime(reader));
+                default -> skipElement(reader);
+            }
+        }
+        return call;
+    }
+
+    private EstimatedCall readEstimatedCall(XMLStreamReader reader) throws XMLStreamException {
+        EstimatedCall call = new EstimatedCall();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "StopPointRef" -> call.setStopPointRef(readStopPointRef(reader));
+                case "StopPointName" -> call.getStopPointNames().add(readText(reader));
+                case "Cancellation" -> call.setCancellation(readBoolean(reader));
+                case "AimedArrivalTime" -> call.setAimedArrivalTime(readTime(reader));
+                case "ExpectedArrivalTime" -> call.setExpectedArrivalTime(readTime(reader));
+                case "ArrivalStatus" -> call.setArrivalStatus(readCallStatus(reader));
+                case "ArrivalPlatformName" -> call.setArrivalPlatformName(readText(reader));
+                case "ArrivalStopAssignment" -> call.setArrivalStopAssignment(readStopAssignment(reader));
+                case "AimedDepartureTime" -> call.setAimedDepartureTime(readTime(reader));
+                case "ExpectedDepartureTime" -> call.setExpectedDepartureTime(readTime(reader));
+                case "DepartureStatus" -> call.setDepartureStatus(readCallStatus(reader));
+                case "DeparturePlatformName" -> call.setDeparturePlatformName(readText(reader));
+                case "DepartureStopAssignment" -> call.setDepartureStopAssignment(readStopAssignment(reader));
+                default -> skipElement(reader);
+            }
+        }
+        return call;
+    }
+
+    private StopAssignmentStructure readStopAssignment(XMLStreamReader reader) throws XMLStreamException {
+        StopAssignmentStructure stopAssignment = new StopAssignmentStructure();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case "AimedQuayRef" -> stopAssignment.setAimedQuayRef(readQuayRef(reader));
+                case "ExpectedQuayRef" -> stopAssignment.setExpectedQuayRef(readQuayRef(reader));
+                default -> skipElement(reader);
+            }
+        }
+        return stopAssignment;
+    }
+
+    private StopPointRef readStopPointRef(XMLStreamReader reader) throws XMLStreamException {
+        StopPointRef stopPointRef = new StopPointRef();
+        stopPointRef.setValue(reader.getElementText());
+        return stopPointRef;
+    }
+
+    private QuayRefStructure readQuayRef(XMLStreamReader reader) throws XMLStreamException {
+        QuayRefStructure quayRef = new QuayRefStructure();
+        quayRef.setValue(reader.getElementText());
+        return quayRef;
+    }
+
+    private NaturalLanguageStringStructure readText(XMLStreamReader reader) throws XMLStreamException {
+        NaturalLanguageStringStructure text = new NaturalLanguageStringStructure();
+        text.setLang(reader.getAttributeValue(XMLConstants.XML_NS_URI, "lang"));
+        text.setValue(reader.getElementText());
+        return text;
+    }
+
+    private ZonedDateTime readTime(XMLStreamReader reader) throws XMLStreamException {
+        String value = reader.getElementText().trim();
+        try {
+            return value.isEmpty() ? null : ZonedDateTimeAdapter.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Could not read time '" + value + "'", e);
+        }
+    }
+
+    private Boolean readBoolean(XMLStreamReader reader) throws XMLStreamException {
+        String value = reader.getElementText().trim();
+        return "true".equals(value) || "1".equals(value);
+    }
+
+    private CallStatusEnumeration readCallStatus(XMLStreamReader reader) throws XMLStreamException {
+        try {
+            return CallStatusEnumeration.fromValue(reader.getElementText().trim());
+        } catch (IllegalArgumentException e) {
+            return null; //same as JAXB does with unknown enumeration values
+        }
+    }
+
+    /**
+     * Skips the current element including all its children, leaving the reader at its END_ELEMENT.
+     */
+    private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private void skipElement(XMLEventReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement()) {
+                depth--;
+            }
+        }
+    }
+
+    private void close(XMLEventReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException ignored) {
+                //nothing more to read anyway
+            }
+        }
+    }
+
+    void close(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException ignored) {
+                //nothing more to read anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.SituationStatus;
+import uk.org.siri.siri20.AffectedLineStructure;
+import uk.org.siri.siri20.AffectedStopPointStructure;
+import uk.org.siri.siri20.AffectsScopeStructure;
+import uk.org.siri.siri20.DefaultedTextStructure;
+import uk.org.siri.siri20.HalfOpenTimestampOutputRangeStructure;
+import uk.org.siri.siri20.PtSituationElement;
+import uk.org.siri.siri20.WorkflowStatusEnumeration;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The latest version of one situation, with what is needed to tell whether it is active and who it affects, and
+ * the versions it superseded. Immutable, a new version gives a new state.
+ */
+final class SituationState {
+
+    private static final String[] NO_REFS = new String[0];
+    private static final long OPEN = Long.MAX_VALUE;
+
+    private final String key;
+    private final String participant;
+    private final String situationNumber;
+    private final long version;
+    private final long creationMillis;
+    private final boolean closed;
+    private final String progress;
+    private final String summary;
+    private final String description;
+    private final long[] validity; //start and end millis of each period, OPEN when not given
+    private final String[] lineRefs;
+    private final String[] stopPointRefs;
+    private final long updatedMillis;
+    private final long[] previousVersions;
+    private final long[] previousUpdatedMillis;
+
+    private SituationState(String key, PtSituationElement situation, long updatedMillis,
+                           long[] previousVersions, long[] previousUpdatedMillis) {
+        this.key = key;
+        this.participant = situation.getParticipantRef() == null ? null : situation.getParticipantRef().getValue();
+        this.situationNumber = situation.getSituationNumber() == null ? null : situation.getSituationNumber().getValue();
+        this.version = version(situation);
+        this.creationMillis = situation.getCreationTime() == null ? 0 : situation.getCreationTime().toInstant().toEpochMilli();
+        this.progress = situation.getProgress() == null ? null : situation.getProgress().value();
+        this.closed = situation.getProgress() == WorkflowStatusEnumeration.CLOSED;
+        this.summary = first(situation.getSummaries());
+        this.description = first(situation.getDescriptions());
+        this.validity = new long[situation.getValidityPeriods().size() * 2];
+        for (int i = 0; i < situation.getValidityPeriods().size(); i++) {
+            HalfOpenTimestampOutputRangeStructure period = situation.getValidityPeriods().get(i);
+            validity[i * 2] = period.getStartTime() == null ? 0 : millis(period.getStartTime());
+            validity[i * 2 + 1] = period.getEndTime() == null ? OPEN : millis(period.getEndTime());
+        }
+        this.lineRefs = lineRefs(situation.getAffects());
+        this.stopPointRefs = stopPointRefs(situation.getAffects());
+        this.updatedMillis = updatedMillis;
+        this.previousVersions = previousVersions;
+        this.previousUpdatedMillis = previousUpdatedMillis;
+    }
+
+    static String key(PtSituationElement situation) {
+        if (situation.getSituationNumber() == null || situation.getSituationNumber().getValue() == null) {
+            return null;
+        }
+        String participant = situation.getParticipantRef() == null ? "" : situation.getParticipantRef().getValue();
+        return participant + "/" + situation.getSituationNumber().getValue();
+    }
+
+    /**
+     * @param current null for a situation not seen before
+     * @return the state with the received situation, or current if it is an older version or the same version
+     * published again
+     */
+    static SituationState update(SituationState current, String key, PtSituationElement situation, long nowMillis, int historySize) {
+        if (current == null) {
+            return new SituationState(key, situation, nowMillis, new long[0], new long[0]);
+        }
+        long version = version(situation);
+        long creationMillis = situation.getCreationTime() == null ? 0 : situation.getCreationTime().toInstant().toEpochMilli();
+        if (version < current.version || (version == current.version && creationMillis < current.creationMillis)) {
+            return current;
+        }
+        SituationState received = new SituationState(key, situation, nowMillis, current.previousVersions, current.previousUpdatedMillis);
+        if (version == current.version && received.sameContentAs(current)) {
+            return current; //republished, nothing new to keep
+        }
+        return new SituationState(key, situation, nowMillis,
+                append(current.previousVersions, current.version, historySize),
+                append(current.previousUpdatedMillis, current.updatedMillis, historySize));
+    }
+
+    private boolean sameContentAs(SituationState other) {
+        return closed == other.closed && Objects.equals(progress, other.progress)
+                && Objects.equals(summary, other.summary) && Objects.equals(description, other.description)
+                && Arrays.equals(validity, other.validity)
+                && Arrays.equals(lineRefs, other.lineRefs) && Arrays.equals(stopPointRefs, other.stopPointRefs);
+    }
+
+    private static long[] append(long[] values, long value, int maxSize) {
+        if (maxSize <= 0) {
+            return values;
+        }
+        int keep = Math.min(values.length, maxSize - 1);
+        long[] result = new long[keep + 1];
+        System.arraycopy(values, values.length - keep, result, 0, keep);
+        result[keep] = value;
+        return result;
+    }
+
+    private static long version(PtSituationElement situation) {
+        return situation.getVersion() == null || situation.getVersion().getValue() == null ? 0 : situation.getVersion().getValue().longValue();
+    }
+
+    private static long millis(ZonedDateTime time) {
+        return time.toInstant().toEpochMilli();
+    }
+
+    private static String first(List<DefaultedTextStructure> texts) {
+        return texts.isEmpty() ? null : texts.get(0).getValue();
+    }
+
+    private static String[] lineRefs(AffectsScopeStructure affects) {
+        if (affects == null || affects.getNetworks() == null) {
+            return NO_REFS;
+        }
+        List<String> refs = new ArrayList<>();
+        for (AffectsScopeStructure.Networks.AffectedNetwork network : affects.getNetworks().getAffectedNetworks()) {
+            for (AffectedLineStructure line : network.getAffectedLines()) {
+                if (line.getLineRef() != null && line.getLineRef().getValue() != null) {
+                    refs.add(line.getLineRef().getValue().intern());
+                }
+            }
+        }
+        return refs.stream().distinct().sorted().toArray(String[]::new);
+    }
+
+    private static String[] stopPointRefs(AffectsScopeStructure affects) {
+        if (affects == null || affects.getStopPoints() == null) {
+            return NO_REFS;
+        }
+        List<String> refs = new ArrayList<>();
+        for (AffectedStopPointStructure stopPoint : affects.getStopPoints().getAffectedStopPoints()) {
+            if (stopPoint.getStopPointRef() != null && stopPoint.getStopPointRef().getValue() != null) {
+                refs.add(stopPoint.getStopPointRef().getValue().intern());
+            }
+        }
+        return refs.stream().distinct().sorted().toArray(String[]::new);
+    }
+
+    /**
+     * @return true unless closed or outside all its validity periods, a situation without any is always valid
+     */
+    boolean isActive(long nowMillis) {
+        if (closed) {
+            return false;
+        }
+        if (validity.length == 0) {
+            return true;
+        }
+        for (int i = 0; i < validity.length; i += 2) {
+            if (validity[i] <= nowMillis && nowMillis < validity[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return when the situation can be forgotten: some time after it is closed or its last validity period ended,
+     * and otherwise some time after it was last published
+     */
+    long expiresMillis(long closedRetentionMillis, long withoutValidityMillis) {
+        if (closed) {
+            return updatedMillis + closedRetentionMillis;
+        }
+        long end = Long.MIN_VALUE;
+        for (int i = 1; i < validity.length; i += 2) {
+            end = Math.max(end, validity[i]);
+        }
+        if (end == Long.MIN_VALUE || end == OPEN) {
+            return updatedMillis + withoutValidityMillis;
+        }
+        return Math.max(end, updatedMillis) + closedRetentionMillis;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    String[] getLineRefs() {
+        return lineRefs;
+    }
+
+    String[] getStopPointRefs() {
+        return stopPointRefs;
+    }
+
+    long getUpdatedMillis() {
+        return updatedMillis;
+    }
+
+    SituationStatus toStatus(long nowMillis) {
+        List<SituationStatus.Period> periods = new ArrayList<>(validity.length / 2);
+        for (int i = 0; i < validity.length; i += 2) {
+            periods.add(new SituationStatus.Period(validity[i] == 0 ? null : time(validity[i]),
+                    validity[i + 1] == OPEN ? null : time(validity[i + 1])));
+        }
+        List<SituationStatus.Version> previous = new ArrayList<>(previousVersions.length);
+        for (int i = previousVersions.length - 1; i >= 0; i--) {
+            previous.add(new SituationStatus.Version(previousVersions[i], time(previousUpdatedMillis[i])));
+        }
+        return new SituationStatus(participant, situationNumber, version, progress, isActive(nowMillis), summary, description,
+                periods, List.of(lineRefs), List.of(stopPointRefs), time(updatedMillis), previous);
+    }
+
+    private static LocalDateTime time(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+}
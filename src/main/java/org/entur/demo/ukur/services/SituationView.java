@@ -0,0 +1,179 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import jakarta.annotation.PostConstruct;
+import org.entur.demo.ukur.entities.SituationStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import uk.org.siri.siri20.PtSituationElement;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latest version of each received situation, keyed by ParticipantRef and SituationNumber, with indexes on
+ * affected lines and stop points. A situation published again is not stored again, and a newer version replaces
+ * the one before, so the view keeps the same size however often the same situations are published. Situations
+ * are removed a while after they are closed or their validity has ended.
+ */
+@Service
+public class SituationView {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Map<String, SituationState> situations = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byLineRef = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byStopPointRef = new ConcurrentHashMap<>();
+    private final MessageService messageService;
+    private final int historySize;
+    private final long closedRetentionMillis;
+    private final long withoutValidityMillis;
+
+    @Autowired
+    public SituationView(MessageService messageService,
+                         @Value("${situations.history-size:5}") int historySize,
+                         @Value("${situations.closed-retention-minutes:5}") long closedRetentionMinutes,
+                         @Value("${situations.expire-without-validity-hours:24}") long withoutValidityHours) {
+        this.messageService = messageService;
+        this.historySize = historySize;
+        this.closedRetentionMillis = TimeUnit.MINUTES.toMillis(closedRetentionMinutes);
+        this.withoutValidityMillis = TimeUnit.HOURS.toMillis(withoutValidityHours);
+    }
+
+    @PostConstruct
+    void start() {
+        messageService.addPushMessageListener(pushMessage -> {
+            if (pushMessage instanceof PtSituationElement) {
+                update((PtSituationElement) pushMessage);
+            }
+        });
+    }
+
+    /**
+     * Writers are serialized to keep the indexes in step with the situations, readers never lock.
+     */
+    synchronized void update(PtSituationElement situation) {
+        String key = SituationState.key(situation);
+        if (key == null) {
+            return;
+        }
+        SituationState current = situations.get(key);
+        SituationState updated = SituationState.update(current, key, situation, System.currentTimeMillis(), historySize);
+        if (updated == current) {
+            return;
+        }
+        situations.put(key, updated);
+        if (current != null) {
+            unindex(current);
+        }
+        index(updated);
+    }
+
+    private void index(SituationState state) {
+        for (String lineRef : state.getLineRefs()) {
+            byLineRef.computeIfAbsent(lineRef, k -> ConcurrentHashMap.newKeySet()).add(state.getKey());
+        }
+        for (String stopPointRef : state.getStopPointRefs()) {
+            byStopPointRef.computeIfAbsent(stopPointRef, k -> ConcurrentHashMap.newKeySet()).add(state.getKey());
+        }
+    }
+
+    private void unindex(SituationState state) {
+        for (String lineRef : state.getLineRefs()) {
+            remove(byLineRef, lineRef, state.getKey());
+        }
+        for (String stopPointRef : state.getStopPointRefs()) {
+            remove(byStopPointRef, stopPointRef, state.getKey());
+        }
+    }
+
+    private static void remove(Map<String, Set<String>> index, String ref, String key) {
+        Set<String> keys = index.get(ref);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                index.remove(ref);
+            }
+        }
+    }
+
+    public SituationStatus get(String participant, String situationNumber) {
+        SituationState state = situations.get(participant + "/" + situationNumber);
+        return state == null ? null : state.toStatus(System.currentTimeMillis());
+    }
+
+    /**
+     * @param lineRef        null to not filter on line
+     * @param stopPointRef   null to not filter on stop point
+     * @return the situations active now that affect the line or the stop point, or all active ones when both are
+     * null, the last updated first
+     */
+    public List<SituationStatus> getActive(String lineRef, String stopPointRef) {
+        long now = System.currentTimeMillis();
+        Set<String> keys;
+        if (lineRef == null && stopPointRef == null) {
+            keys = situations.keySet();
+        } else {
+            keys = new LinkedHashSet<>();
+            if (lineRef != null) {
+                keys.addAll(byLineRef.getOrDefault(lineRef, Set.of()));
+            }
+            if (stopPointRef != null) {
+                keys.addAll(byStopPointRef.getOrDefault(stopPointRef, Set.of()));
+            }
+        }
+        List<SituationState> active = new ArrayList<>();
+        for (String key : keys) {
+            SituationState state = situations.get(key);
+            if (state != null && state.isActive(now)) {
+                active.add(state);
+            }
+        }
+        active.sort(Comparator.comparingLong(SituationState::getUpdatedMillis).reversed());
+        return active.stream().map(state -> state.toStatus(now)).toList();
+    }
+
+    public int size() {
+        return situations.size();
+    }
+
+    @Scheduled(fixedDelay = 60_000)
+    public synchronized void removeExpired() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (SituationState state : situations.values()) {
+            if (state.expiresMillis(closedRetentionMillis, withoutValidityMillis) <= now) {
+                situations.remove(state.getKey());
+                unindex(state);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            logger.debug("Removed {} closed or expired situations, keeps {}", removed, situations.size());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Knows the StopPlace each Quay belongs to, so subscriptions given with StopPlace refs can be matched locally
+ * against journeys calling at quays - Ukur resolves them the same way. The mapping is read from the NSR
+ * stop_place_quays list, a json object with the quay ids of each stop place, given as an url, file: or classpath:
+ * location and read again regularly.
+ */
+@Service
+public class StopPlaceService {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final String location;
+    private volatile Map<String, String> stopPlaceByQuay = Map.of();
+
+    @Autowired
+    public StopPlaceService(@Value("${stopplaces.quays.location:}") String location) {
+        this.location = location;
+    }
+
+    StopPlaceService(Map<String, ? extends Collection<String>> quaysByStopPlace) {
+        this.location = null;
+        this.stopPlaceByQuay = invert(quaysByStopPlace);
+    }
+
+    @PostConstruct
+    void start() {
+        if (StringUtils.isBlank(location)) {
+            logger.warn("No stopplaces.quays.location, StopPlace refs are only matched as given and not against quays");
+            return;
+        }
+        reload();
+    }
+
+    @Scheduled(initialDelayString = "${stopplaces.quays.reload-interval-millis:86400000}",
+            fixedDelayString = "${stopplaces.quays.reload-interval-millis:86400000}")
+    void reload() {
+        if (StringUtils.isBlank(location)) {
+            return;
+        }
+        Resource resource = new DefaultResourceLoader().getResource(location);
+        try (InputStream in = resource.getInputStream()) {
+            Map<String, Collection<String>> quaysByStopPlace = mapper.readValue(in, new TypeReference<>() {});
+            stopPlaceByQuay = invert(quaysByStopPlace);
+            logger.info("Read {} quays of {} stop places from {}", stopPlaceByQuay.size(), quaysByStopPlace.size(), location);
+        } catch (IOException e) {
+            logger.warn("Could not read stop place quays from {}, keeps the {} known quays", location, stopPlaceByQuay.size(), e);
+        }
+    }
+
+    /**
+     * @return the id of the StopPlace the quay belongs to, null if unknown or not a quay
+     */
+    public String stopPlaceOf(String quayRef) {
+        return quayRef == null ? null : stopPlaceByQuay.get(quayRef);
+    }
+
+    private static Map<String, String> invert(Map<String, ? extends Collection<String>> quaysByStopPlace) {
+        Map<String, String> stopPlaceByQuay = new HashMap<>();
+        quaysByStopPlace.forEach((stopPlace, quays) -> quays.forEach(quay -> stopPlaceByQuay.put(quay, stopPlace)));
+        return stopPlaceByQuay;
+    }
+}
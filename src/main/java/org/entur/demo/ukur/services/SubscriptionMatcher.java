@@ -0,0 +1,274 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.DeviationType;
+import org.entur.demo.ukur.entities.Subscription;
+import org.entur.demo.ukur.entities.SubscriptionTypeEnum;
+import uk.org.siri.siri20.*;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static uk.org.siri.siri20.CallStatusEnumeration.CANCELLED;
+import static uk.org.siri.siri20.CallStatusEnumeration.DELAYED;
+
+/**
+ * Decides locally which subscriptions a received journey or situation is for, much like Ukur does when it pushes
+ * to each of them. The registry indexes give the candidates with the same line, codespace or stop points, only
+ * those are checked against all criteria. Like at Ukur, a subscription's StopPlace refs match calls at any of the
+ * stop place's quays.
+ */
+final class SubscriptionMatcher {
+
+    private static final Map<String, Duration> minimumDelays = new ConcurrentHashMap<>();
+    private static final StopPlaceService NO_STOP_PLACES = new StopPlaceService(Map.of());
+
+    private final SubscriptionRegistry registry;
+    private final StopPlaceService stopPlaces;
+
+    SubscriptionMatcher(SubscriptionRegistry registry, StopPlaceService stopPlaces) {
+        this.registry = registry;
+        this.stopPlaces = stopPlaces;
+    }
+
+    /**
+     * @param pushIds the subscriptions to choose among, notifications like heartbeats are for all of them
+     * @return the matching subscriptions
+     */
+    List<Subscription> match(Object pushMessage, Set<String> pushIds) {
+        if (pushMessage instanceof EstimatedVehicleJourney) {
+            Journey journey = Journey.of((EstimatedVehicleJourney) pushMessage, stopPlaces);
+            Map<String, Subscription> candidates = new LinkedHashMap<>();
+            addCandidates(candidates, registry.withLineRef(journey.lineRef), pushIds);
+            addCandidates(candidates, registry.withCodespace(journey.codespace), pushIds);
+            for (Call call : journey.calls) {
+                addCandidates(candidates, registry.withStopPoint(call.stopPointRef), pushIds);
+                addCandidates(candidates, registry.withStopPoint(call.stopPlaceRef), pushIds);
+            }
+            return candidates.values().stream().filter(s -> matches(s, journey)).toList();
+        } else if (pushMessage instanceof PtSituationElement) {
+            Situation situation = Situation.of((PtSituationElement) pushMessage, stopPlaces);
+            Map<String, Subscription> candidates = new LinkedHashMap<>();
+            addCandidates(candidates, registry.withCodespace(situation.participant), pushIds);
+            situation.lineRefs.forEach(lineRef -> addCandidates(candidates, registry.withLineRef(lineRef), pushIds));
+            situation.stopPointRefs.forEach(stop -> addCandidates(candidates, registry.withStopPoint(stop), pushIds));
+            return candidates.values().stream().filter(s -> matches(s, situation)).toList();
+        }
+        List<Subscription> all = new ArrayList<>(pushIds.size());
+        for (String pushId : pushIds) {
+            Subscription subscription = registry.byPushId(pushId);
+            if (subscription != null) {
+                all.add(subscription);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Subscriptions are equal when they have the same Ukur id, so the candidates are kept by pushId.
+     */
+    private static void addCandidates(Map<String, Subscription> candidates, List<Subscription> found, Set<String> pushIds) {
+        for (Subscription subscription : found) {
+            if (pushIds.contains(subscription.getPushId())) {
+                candidates.putIfAbsent(subscription.getPushId(), subscription);
+            }
+        }
+    }
+
+    static boolean matches(Subscription subscription, Journey journey) {
+        if (subscription.getType() == SubscriptionTypeEnum.SX
+                || (!subscription.getLineRefs().isEmpty() && !subscription.getLineRefs().contains(journey.lineRef))
+                || (!subscription.getCodespaces().isEmpty() && !subscription.getCodespaces().contains(journey.codespace))) {
+            return false;
+        }
+        List<Call> calls = journey.calls;
+        if (!subscription.getFromStopPoints().isEmpty() || !subscription.getToStopPoints().isEmpty()) {
+            int from = subscription.getFromStopPoints().isEmpty() ? 0 : indexOf(calls, subscription.getFromStopPoints(), 0);
+            int to = from < 0 ? -1 : subscription.getToStopPoints().isEmpty() ? calls.size() - 1 : indexOf(calls, subscription.getToStopPoints(), from + 1);
+            if (to < 0) {
+                return false;
+            }
+            calls = calls.subList(from, to + 1);
+        }
+        if (subscription.isPushAllData()) {
+            return true;
+        }
+        DeviationType deviationType = subscription.getDeviationType() == null ? DeviationType.ALL : subscription.getDeviationType();
+        boolean cancelled = (deviationType == DeviationType.ALL || deviationType == DeviationType.CANCELED)
+                && (journey.cancelled || calls.stream().anyMatch(call -> call.cancelled));
+        boolean delayed = (deviationType == DeviationType.ALL || deviationType == DeviationType.DELAYED)
+                && calls.stream().anyMatch(call -> call.isDelayed(minimumDelay(subscription)));
+        boolean trackChange = (deviationType == DeviationType.ALL || deviationType == DeviationType.TRACK_CHANGE)
+                && calls.stream().anyMatch(call -> call.trackChange);
+        return cancelled || delayed || trackChange;
+    }
+
+    static boolean matches(Subscription subscription, Situation situation) {
+        if (subscription.getType() == SubscriptionTypeEnum.ET
+                || (!subscription.getLineRefs().isEmpty() && Collections.disjoint(subscription.getLineRefs(), situation.lineRefs))
+                || (!subscription.getCodespaces().isEmpty() && !subscription.getCodespaces().contains(situation.participant))) {
+            return false;
+        }
+        if (!subscription.getFromStopPoints().isEmpty() || !subscription.getToStopPoints().isEmpty()) {
+            return !Collections.disjoint(subscription.getFromStopPoints(), situation.stopPointRefs)
+                    || !Collections.disjoint(subscription.getToStopPoints(), situation.stopPointRefs);
+        }
+        return true;
+    }
+
+    private static int indexOf(List<Call> calls, Collection<String> stopPoints, int start) {
+        for (int i = start; i < calls.size(); i++) {
+            Call call = calls.get(i);
+            if (stopPoints.contains(call.stopPointRef) || (call.stopPlaceRef != null && stopPoints.contains(call.stopPlaceRef))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return null if any delay is a deviation
+     */
+    private static Duration minimumDelay(Subscription subscription) {
+        String minimumDelay = subscription.getMinimumDelay();
+        return minimumDelay == null ? null : minimumDelays.computeIfAbsent(minimumDelay, Duration::parse);
+    }
+
+    /**
+     * The parts of an EstimatedVehicleJourney subscriptions are matched against, with the calls in order.
+     */
+    record Journey(String lineRef, String codespace, boolean cancelled, List<Call> calls) {
+
+        static Journey of(EstimatedVehicleJourney journey) {
+            return of(journey, NO_STOP_PLACES);
+        }
+
+        /**
+         * @param stopPlaces gives the StopPlace of each call's quay
+         */
+        static Journey of(EstimatedVehicleJourney journey, StopPlaceService stopPlaces) {
+            String lineRef = journey.getLineRef() == null ? null : journey.getLineRef().getValue();
+            String codespace = journey.getDataSource();
+            if (codespace == null && lineRef != null && lineRef.indexOf(':') > 0) {
+                codespace = lineRef.substring(0, lineRef.indexOf(':')); //as in NSB:Line:L14
+            }
+            List<Call> calls = new ArrayList<>();
+            if (journey.getRecordedCalls() != null) {
+                for (RecordedCall call : journey.getRecordedCalls().getRecordedCalls()) {
+                    String stopPointRef = ref(call.getStopPointRef());
+                    calls.add(new Call(stopPointRef, stopPlaces.stopPlaceOf(stopPointRef), call.getAimedDepartureTime(), call.getActualDepartureTime(),
+                            Boolean.TRUE.equals(call.isCancellation()), false, false));
+                }
+            }
+            if (journey.getEstimatedCalls() != null) {
+                for (EstimatedCall call : journey.getEstimatedCalls().getEstimatedCalls()) {
+                    boolean arrival = call.getAimedArrivalTime() != null;
+                    String stopPointRef = ref(call.getStopPointRef());
+                    calls.add(new Call(stopPointRef, stopPlaces.stopPlaceOf(stopPointRef),
+                            arrival ? call.getAimedArrivalTime() : call.getAimedDepartureTime(),
+                            arrival ? call.getExpectedArrivalTime() : call.getExpectedDepartureTime(),
+                            Boolean.TRUE.equals(call.isCancellation()) || call.getArrivalStatus() == CANCELLED || call.getDepartureStatus() == CANCELLED,
+                            call.getArrivalStatus() == DELAYED || call.getDepartureStatus() == DELAYED,
+                            trackChange(call.getArrivalStopAssignment()) || trackChange(call.getDepartureStopAssignment())));
+                }
+            }
+            return new Journey(lineRef, codespace, Boolean.TRUE.equals(journey.isCancellation()), calls);
+        }
+
+        private static String ref(StopPointRef stopPointRef) {
+            return stopPointRef == null ? null : stopPointRef.getValue();
+        }
+
+        private static boolean trackChange(StopAssignmentStructure stopAssignment) {
+            if (stopAssignment == null || stopAssignment.getAimedQuayRef() == null || stopAssignment.getExpectedQuayRef() == null) {
+                return false;
+            }
+            return !stopAssignment.getAimedQuayRef().getValue().equals(stopAssignment.getExpectedQuayRef().getValue());
+        }
+    }
+
+    /**
+     * @param stopPlaceRef the StopPlace of the stopPointRef quay, null if not known
+     */
+    record Call(String stopPointRef, String stopPlaceRef, ZonedDateTime aimed, ZonedDateTime expected, boolean cancelled, boolean delayedStatus,
+                boolean trackChange) {
+
+        boolean isDelayed(Duration minimumDelay) {
+            if (aimed == null || expected == null) {
+                return minimumDelay == null && delayedStatus;
+            }
+            Duration delay = Duration.between(aimed, expected);
+            return minimumDelay == null ? delayedStatus || delay.isPositive() : delay.compareTo(minimumDelay) >= 0;
+        }
+    }
+
+    /**
+     * The parts of a PtSituationElement subscriptions are matched against.
+     *
+     * @param stopPointRefs the affected stop points and stop places, and the stop places of the affected quays
+     */
+    record Situation(String participant, Set<String> lineRefs, Set<String> stopPointRefs) {
+
+        static Situation of(PtSituationElement situation) {
+            return of(situation, NO_STOP_PLACES);
+        }
+
+        static Situation of(PtSituationElement situation, StopPlaceService stopPlaces) {
+            String participant = situation.getParticipantRef() == null ? null : situation.getParticipantRef().getValue();
+            Set<String> lineRefs = new LinkedHashSet<>();
+            Set<String> stopPointRefs = new LinkedHashSet<>();
+            AffectsScopeStructure affects = situation.getAffects();
+            if (affects != null && affects.getNetworks() != null) {
+                for (AffectedNetworkStructure network : affects.getNetworks().getAffectedNetworks()) {
+                    for (AffectedLineStructure line : network.getAffectedLines()) {
+                        if (line.getLineRef() != null) {
+                            lineRefs.add(line.getLineRef().getValue());
+                        }
+                    }
+                }
+            }
+            if (affects != null && affects.getStopPoints() != null) {
+                for (AffectedStopPointStructure stopPoint : affects.getStopPoints().getAffectedStopPoints()) {
+                    if (stopPoint.getStopPointRef() != null) {
+                        stopPointRefs.add(stopPoint.getStopPointRef().getValue());
+                        String stopPlaceRef = stopPlaces.stopPlaceOf(stopPoint.getStopPointRef().getValue());
+                        if (stopPlaceRef != null) {
+                            stopPointRefs.add(stopPlaceRef);
+                        }
+                    }
+                }
+            }
+            if (affects != null && affects.getStopPlaces() != null) {
+                for (AffectedStopPlaceStructure stopPlace : affects.getStopPlaces().getAffectedStopPlaces()) {
+                    if (stopPlace.getStopPlaceRef() != null) {
+                        stopPointRefs.add(stopPlace.getStopPlaceRef().getValue());
+                    }
+                }
+            }
+            return new Situation(participant, lineRefs, stopPointRefs);
+        }
+    }
+}
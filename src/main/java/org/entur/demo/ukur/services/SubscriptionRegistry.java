@@ -0,0 +1,170 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.Subscription;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The subscriptions indexed by pushId and Ukur id, and by the lineRefs, codespaces and stop points they use.
+ * <p>
+ * Writers are serialized so the indexes are always updated together, while readers never lock. The pushId index is
+ * sorted, so listing the subscriptions gives them in the same order as sorting them (see Subscription#compareTo).
+ */
+class SubscriptionRegistry {
+
+    private final ConcurrentNavigableMap<String, Subscription> byPushId = new ConcurrentSkipListMap<>();
+    private final Map<String, Subscription> byId = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byLineRef = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byCodespace = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byStopPoint = new ConcurrentHashMap<>();
+    private final Set<String> multiplexed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Adds the subscription, or replaces the one with the same pushId.
+     */
+    synchronized void put(Subscription subscription) {
+        String pushId = subscription.getPushId();
+        Subscription replaced = byPushId.put(pushId, subscription);
+        if (replaced != null) {
+            unindex(replaced);
+        }
+        if (subscription.getId() != null) {
+            byId.put(subscription.getId(), subscription);
+        }
+        subscription.getLineRefs().forEach(ref -> index(byLineRef, ref, pushId));
+        subscription.getCodespaces().forEach(codespace -> index(byCodespace, codespace, pushId));
+        subscription.getFromStopPoints().forEach(stop -> index(byStopPoint, stop, pushId));
+        subscription.getToStopPoints().forEach(stop -> index(byStopPoint, stop, pushId));
+    }
+
+    /**
+     * Adds a subscription that is only kept here and fed by upstream subscriptions, it is not known by Ukur.
+     */
+    synchronized void putMultiplexed(Subscription subscription) {
+        put(subscription);
+        multiplexed.add(subscription.getPushId());
+    }
+
+    /**
+     * Replaces the subscription with the same pushId, unless it has been removed.
+     */
+    synchronized boolean replace(Subscription subscription) {
+        if (!byPushId.containsKey(subscription.getPushId())) {
+            return false;
+        }
+        put(subscription);
+        return true;
+    }
+
+    synchronized Subscription remove(String pushId) {
+        Subscription removed = byPushId.remove(pushId);
+        if (removed != null) {
+            unindex(removed);
+        }
+        multiplexed.remove(pushId);
+        return removed;
+    }
+
+    private void unindex(Subscription subscription) {
+        String pushId = subscription.getPushId();
+        if (subscription.getId() != null) {
+            byId.remove(subscription.getId(), subscription);
+        }
+        subscription.getLineRefs().forEach(ref -> unindex(byLineRef, ref, pushId));
+        subscription.getCodespaces().forEach(codespace -> unindex(byCodespace, codespace, pushId));
+        subscription.getFromStopPoints().forEach(stop -> unindex(byStopPoint, stop, pushId));
+        subscription.getToStopPoints().forEach(stop -> unindex(byStopPoint, stop, pushId));
+    }
+
+    private static void index(Map<String, Set<String>> index, String key, String pushId) {
+        index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(pushId);
+    }
+
+    private static void unindex(Map<String, Set<String>> index, String key, String pushId) {
+        index.computeIfPresent(key, (k, pushIds) -> {
+            pushIds.remove(pushId);
+            return pushIds.isEmpty() ? null : pushIds;
+        });
+    }
+
+    /**
+     * @return true if the subscription is fed by upstream subscriptions rather than added at Ukur
+     */
+    boolean isMultiplexed(String pushId) {
+        return pushId != null && multiplexed.contains(pushId);
+    }
+
+    Subscription byPushId(String pushId) {
+        return pushId == null ? null : byPushId.get(pushId);
+    }
+
+    Subscription byId(String id) {
+        return id == null ? null : byId.get(id);
+    }
+
+    /**
+     * @return all subscriptions sorted by pushId, a live view that is safe to iterate while it is modified
+     */
+    Collection<Subscription> list() {
+        return Collections.unmodifiableCollection(byPushId.values());
+    }
+
+    int size() {
+        return byPushId.size();
+    }
+
+    List<Subscription> withLineRef(String lineRef) {
+        return lookup(byLineRef, lineRef);
+    }
+
+    List<Subscription> withCodespace(String codespace) {
+        return lookup(byCodespace, codespace);
+    }
+
+    /**
+     * @return the subscriptions with the stop point as one of their from or to stop points
+     */
+    List<Subscription> withStopPoint(String stopPoint) {
+        return lookup(byStopPoint, stopPoint);
+    }
+
+    private List<Subscription> lookup(Map<String, Set<String>> index, String key) {
+        Set<String> pushIds = key == null ? null : index.get(key);
+        if (pushIds == null) {
+            return List.of();
+        }
+        List<Subscription> result = new ArrayList<>(pushIds.size());
+        for (String pushId : pushIds) {
+            Subscription subscription = byPushId.get(pushId);
+            if (subscription != null) {
+                result.add(subscription);
+            }
+        }
+        result.sort(null);
+        return result;
+    }
+
+}
@@ -15,39 +15,117 @@
 
 package org.entur.demo.ukur.services;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.lang3.StringUtils;
 import org.entur.demo.ukur.entities.DeviationType;
 import org.entur.demo.ukur.entities.Subscription;
 import org.entur.demo.ukur.entities.SubscriptionTypeEnum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.IOException;
 import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
+/**
+ * Keeps the subscriptions added at Ukur, keyed by the push id in their push address. When a registry file is
+ * configured the subscriptions and the push id prefix are stored there, so after a restart they are restored with
+ * the same push addresses (pushes in flight keep landing) and reconciled with Ukur in parallel: those Ukur still
+ * has are kept, the others are added again with the same ids.
+ * <p>
+ * With multiplexing enabled the subscriptions are only kept here, and a few broad upstream subscriptions at Ukur
+ * feed all of them: each push is parsed once and matched against the subscriptions locally.
+ */
 @Service
 public class SubscriptionService {
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    private static final ObjectMapper mapper = new ObjectMapper();
+
     private final String ukurURL;
     private String pushURL;
     private final AtomicLong idCounter = new AtomicLong(0);
-    private final String basePushId;//need some uniqueness so we don't reuse push addresses at restart
-    private final RestTemplate restTemplate = new RestTemplate();
+    private String basePushId;//need some uniqueness so we don't reuse push addresses of other instances
+    private final RestTemplate restTemplate;
+    private final Path registryFile;
+    private final int parallelism;
+    private final boolean multiplexing;
+    private volatile CompletableFuture<Void> reconciliation = CompletableFuture.completedFuture(null);
 
-    private final HashMap<String, Subscription> subscriptions = new HashMap<>();
+    private final SubscriptionRegistry subscriptions = new SubscriptionRegistry();
+    private final SubscriptionMatcher matcher;
+    private final Map<String, Upstream> upstreams = new ConcurrentHashMap<>();
+    private final Map<String, Upstream> upstreamsByPushId = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Upstream>> pendingUpstreams = new HashMap<>();
+    private final List<Consumer<Subscription>> removedListeners = new CopyOnWriteArrayList<>();
+    /**
+     * Guards the upstream subscriptions and writing the registry. Ukur is never called while it is held, an upstream
+     * subscription being added is reserved in pendingUpstreams and published when Ukur has answered. A lock rather
+     * than a monitor, as the file is written while it is held, which would pin a virtual thread to its carrier.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
 
+    @Autowired
     public SubscriptionService(@Value("${ukur.subscription.url}") String ukurURL,
-                               @Value("${push.baseurl}") String pushURL) {
+                               @Value("${push.baseurl}") String pushURL,
+                               @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads,
+                               @Value("${subscriptions.registry.file:}") String registryFile,
+                               @Value("${subscriptions.registry.parallelism:16}") int parallelism,
+                               @Value("${subscriptions.multiplexing.enabled:false}") boolean multiplexing,
+                               MeterRegistry meterRegistry,
+                               StopPlaceService stopPlaces) {
+        this(ukurURL, pushURL, restTemplate(virtualThreads, meterRegistry), registryFile, parallelism, multiplexing, stopPlaces);
+        logger.info("Started with ukurURL={}, pushURL={}, basePushId={}, registryFile={}, parallelism={}, multiplexing={} and virtualThreads={}",
+                ukurURL, pushURL, basePushId, registryFile, parallelism, multiplexing, virtualThreads);
+    }
+
+    SubscriptionService(String ukurURL, String pushURL, RestTemplate restTemplate, String registryFile, int parallelism) {
+        this(ukurURL, pushURL, restTemplate, registryFile, parallelism, false, new StopPlaceService(Map.of()));
+    }
+
+    SubscriptionService(String ukurURL, String pushURL, RestTemplate restTemplate, String registryFile, int parallelism,
+                        boolean multiplexing, StopPlaceService stopPlaces) {
+        this.matcher = new SubscriptionMatcher(subscriptions, stopPlaces);
         basePushId = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX)+"-";
-        logger.info("Started with ukurURL={}, pushURL={} and basePushId={}", ukurURL, pushURL, basePushId);
+        this.restTemplate = restTemplate;
+        this.registryFile = StringUtils.isBlank(registryFile) ? null : Paths.get(registryFile);
+        this.parallelism = parallelism;
+        this.multiplexing = multiplexing;
         this.ukurURL = ukurURL;
         this.pushURL = pushURL;
         if (!pushURL.endsWith("/")) {
@@ -55,26 +133,212 @@ public class SubscriptionService {
         }
     }
 
-    public Collection<Subscription> list() {
-        return Collections.unmodifiableCollection(subscriptions.values());
+    static RestTemplate restTemplate(boolean virtualThreads, MeterRegistry meterRegistry) {
+        RestTemplate restTemplate;
+        if (virtualThreads) {
+            //calls to Ukur are made on the (virtual) caller thread, the client must not tie up platform threads either
+            HttpClient httpClient = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).build();
+            restTemplate = new RestTemplate(new JdkClientHttpRequestFactory(httpClient));
+        } else {
+            restTemplate = new RestTemplate();
+        }
+        //tagged by method and status only, the urls contain subscription ids
+        restTemplate.getInterceptors().add((request, body, execution) -> {
+            long start = System.nanoTime();
+            String status = "IO_ERROR";
+            try {
+                ClientHttpResponse response = execution.execute(request, body);
+                status = Integer.toString(response.getStatusCode().value());
+                return response;
+            } finally {
+                Timer.builder("ukur.rest.calls")
+                        .description("Calls to the Ukur subscription API")
+                        .tag("method", request.getMethod().name())
+                        .tag("status", status)
+                        .publishPercentileHistogram()
+                        .register(meterRegistry)
+                        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        });
+        return restTemplate;
     }
 
-    public Subscription get(String id) {
-        if (id != null) {
-            for (Subscription subscription : subscriptions.values()) {
-                if (id.equals(subscription.getId())) {
-                    return subscription;
+    /**
+     * Restores the subscriptions from the registry file, they accept pushes right away while they are re-registered
+     * at Ukur in the background.
+     */
+    @PostConstruct
+    void restore() throws IOException {
+        if (registryFile == null || !Files.exists(registryFile)) {
+            return;
+        }
+        Registry registry = mapper.readValue(registryFile.toFile(), Registry.class);
+        basePushId = registry.basePushId();
+        idCounter.set(registry.nextId());
+        for (Registered registered : registry.subscriptions()) {
+            Subscription subscription = registered.subscription();
+            subscription.setPushId(registered.pushId());
+            subscription.setPushAddress(pushURL + registered.pushId());
+            if (registered.multiplexed()) {
+                subscriptions.putMultiplexed(subscription);
+            } else {
+                subscriptions.put(subscription);
+            }
+        }
+        if (registry.upstreams() != null) {
+            for (RegisteredUpstream registered : registry.upstreams()) {
+                registered.subscription().setPushId(registered.pushId());
+                registered.subscription().setPushAddress(pushURL + registered.pushId());
+                Upstream upstream = new Upstream(registered.key(), registered.subscription());
+                upstreams.put(upstream.key, upstream);
+                upstreamsByPushId.put(registered.pushId(), upstream);
+            }
+            for (Subscription subscription : subscriptions.list()) {
+                if (!subscriptions.isMultiplexed(subscription.getPushId())) {
+                    continue;
+                }
+                for (String key : upstreamTemplates(subscription).keySet()) {
+                    Upstream upstream = upstreams.get(key);
+                    if (upstream != null) {
+                        upstream.pushIds.add(subscription.getPushId());
+                    }
                 }
             }
         }
-        return null;
+        logger.info("Restored {} subscriptions and {} upstream subscriptions with basePushId={} from {}",
+                subscriptions.size(), upstreams.size(), basePushId, registryFile);
+        List<Subscription> atUkur = new ArrayList<>();
+        upstreams.values().forEach(upstream -> atUkur.add(upstream.subscription));
+        subscriptions.list().stream().filter(subscription -> !subscriptions.isMultiplexed(subscription.getPushId())).forEach(atUkur::add);
+        reconciliation = reconcile(atUkur);
+    }
+
+    /**
+     * @return false while restored subscriptions are being re-registered at Ukur
+     */
+    public boolean isReady() {
+        return reconciliation.isDone();
+    }
+
+    CompletableFuture<Void> getReconciliation() {
+        return reconciliation;
+    }
+
+    private CompletableFuture<Void> reconcile(List<Subscription> restored) {
+        long start = System.currentTimeMillis();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, restored.size())));
+        CompletableFuture<?>[] calls = restored.stream()
+                .map(subscription -> CompletableFuture.runAsync(() -> {
+                    if (!reRegister(subscription)) {
+                        failed.incrementAndGet();
+                    }
+                }, executor))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(calls).whenComplete((ignored, e) -> {
+            executor.shutdown();
+            persist();
+            logger.info("Re-registered {} subscriptions at Ukur in {} ms, {} failed", restored.size(),
+                    System.currentTimeMillis() - start, failed.get());
+        });
+    }
+
+    /**
+     * Keeps the subscription as it is at Ukur if it is still there, otherwise it is added again with the same id.
+     */
+    private boolean reRegister(Subscription subscription) {
+        String pushId = subscription.getPushId();
+        try {
+            Subscription returnedSubscription = subscription.getId() == null ? null : findAtUkur(subscription.getId());
+            if (returnedSubscription != null) {
+                logger.debug("Subscription with pushId={} is still at Ukur", pushId);
+            } else {
+                returnedSubscription = restTemplate.postForObject(URI.create(ukurURL), subscription, Subscription.class);
+            }
+            if (returnedSubscription == null) {
+                logger.warn("Re-registering subscription with pushId={} returned nothing", pushId);
+                return false;
+            }
+            returnedSubscription.setPushId(pushId);
+            Upstream upstream = upstreamsByPushId.get(pushId);
+            if (upstream != null) {
+                upstream.subscription = returnedSubscription;
+            } else {
+                subscriptions.replace(returnedSubscription); //unless removed meanwhile
+            }
+            return true;
+        } catch (Exception e) {
+            logger.warn("Could not re-register subscription with pushId={} at Ukur", pushId, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the subscription at Ukur, null if Ukur doesn't have it
+     */
+    private Subscription findAtUkur(String id) {
+        try {
+            return restTemplate.getForObject(URI.create(ukurURL + "/" + id), Subscription.class);
+        } catch (HttpClientErrorException.NotFound e) {
+            return null;
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        reconciliation.cancel(false);
+    }
+
+    /**
+     * @return all subscriptions, sorted
+     */
+    public Collection<Subscription> list() {
+        return subscriptions.list();
+    }
+
+    public Subscription get(String id) {
+        return subscriptions.byId(id);
     }
 
     public Subscription getByPushId(String id) {
-        return subscriptions.get(id);
+        return subscriptions.byPushId(id);
+    }
+
+    public List<Subscription> getByLineRef(String lineRef) {
+        return subscriptions.withLineRef(lineRef);
+    }
+
+    public List<Subscription> getByCodespace(String codespace) {
+        return subscriptions.withCodespace(codespace);
+    }
+
+    public List<Subscription> getByStopPoint(String stopPoint) {
+        return subscriptions.withStopPoint(stopPoint);
+    }
+
+    /**
+     * @return true if pushes to the pushId are for an upstream subscription that feeds local subscriptions
+     */
+    public boolean isUpstream(String pushId) {
+        return pushId != null && upstreamsByPushId.containsKey(pushId);
+    }
+
+    /**
+     * @return the ids of the subscriptions fed by the upstream subscription that the situation, journey or
+     * notification is for
+     */
+    public List<String> match(String upstreamPushId, Object pushMessage) {
+        Upstream upstream = upstreamsByPushId.get(upstreamPushId);
+        if (upstream == null) {
+            return List.of();
+        }
+        return matcher.match(pushMessage, upstream.pushIds).stream().map(Subscription::getId).toList();
     }
 
     public boolean add(final Subscription subscription) {
+        if (multiplexing) {
+            return addMultiplexed(subscription);
+        }
         try {
             URI url = URI.create(ukurURL);
             String pushId = basePushId + idCounter.getAndIncrement();
@@ -85,7 +349,8 @@ public class SubscriptionService {
             } else {
                 logger.info("Added subscription at Ukur, received subscription id {}", returnedSubscription.getId());
                 returnedSubscription.setPushId(pushId); //not part of Ukur's subscription
-                subscriptions.put(pushId, returnedSubscription); //uses returned subscription since it is normalized
+                subscriptions.put(returnedSubscription); //uses returned subscription since it is normalized
+                persist();
             }
             return true;
         } catch (Exception e) {
@@ -94,24 +359,282 @@ public class SubscriptionService {
         return false;
     }
 
+    /**
+     * Adds the subscription only here and attaches it to the upstream subscriptions covering it, those not already
+     * added are added at Ukur. The upstream subscriptions are broad (by codespace, line or stops, without delay or
+     * deviation type limits) and the pushes to them are matched against the attached subscriptions.
+     */
+    private boolean addMultiplexed(Subscription subscription) {
+        String pushId = basePushId + idCounter.getAndIncrement();
+        subscription.setPushId(pushId);
+        subscription.setId(pushId); //Ukur only knows the upstream subscriptions
+        subscription.setPushAddress(pushURL + pushId);
+        for (Map.Entry<String, Subscription> template : upstreamTemplates(subscription).entrySet()) {
+            if (attach(template.getKey(), template.getValue(), pushId) == null) {
+                List<Upstream> unused;
+                lock.lock();
+                try {
+                    unused = detach(pushId);
+                } finally {
+                    lock.unlock();
+                }
+                removeAtUkur(unused);
+                return false;
+            }
+        }
+        lock.lock();
+        try {
+            subscriptions.putMultiplexed(subscription);
+            persist();
+        } finally {
+            lock.unlock();
+        }
+        logger.info("Added multiplexed subscription with id {}", pushId);
+        return true;
+    }
+
+    /**
+     * Attaches the subscription to the upstream subscription with the key. If it isn't added yet, the first caller
+     * adds it at Ukur without holding the lock while others asking for the same key wait for that.
+     *
+     * @return the upstream subscription, null if it could not be added at Ukur
+     */
+    private Upstream attach(String key, Subscription template, String pushId) {
+        while (true) {
+            CompletableFuture<Upstream> pending;
+            CompletableFuture<Upstream> reserved = null;
+            lock.lock();
+            try {
+                Upstream upstream = upstreams.get(key);
+                if (upstream != null) {
+                    upstream.pushIds.add(pushId);
+                    return upstream;
+                }
+                pending = pendingUpstreams.get(key);
+                if (pending == null) {
+                    reserved = new CompletableFuture<>();
+                    pendingUpstreams.put(key, reserved);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (reserved == null) {
+                if (pending.join() == null) {
+                    return null;
+                }
+                continue; //attaches to it, or adds it again if it was removed meanwhile
+            }
+            Upstream upstream = addUpstream(key, template);
+            lock.lock();
+            try {
+                pendingUpstreams.remove(key);
+                if (upstream != null) {
+                    upstreams.put(key, upstream);
+                    upstreamsByPushId.put(upstream.subscription.getPushId(), upstream);
+                    upstream.pushIds.add(pushId);
+                }
+            } finally {
+                lock.unlock();
+            }
+            reserved.complete(upstream);
+            return upstream;
+        }
+    }
+
+    private Upstream addUpstream(String key, Subscription template) {
+        String pushId = basePushId + idCounter.getAndIncrement();
+        template.setPushAddress(pushURL + pushId);
+        try {
+            Subscription returnedSubscription = restTemplate.postForObject(URI.create(ukurURL), template, Subscription.class);
+            if (returnedSubscription == null) {
+                logger.error("Adding upstream subscription {} failed...", key);
+                return null;
+            }
+            logger.info("Added upstream subscription {} at Ukur, received subscription id {}", key, returnedSubscription.getId());
+            returnedSubscription.setPushId(pushId);
+            return new Upstream(key, returnedSubscription);
+        } catch (Exception e) {
+            logger.error("Could not add upstream subscription {}", key, e);
+        }
+        return null;
+    }
+
+    /**
+     * Detaches the subscription from its upstream subscriptions, must be called with the lock held.
+     *
+     * @return the upstream subscriptions no longer needed, to be removed from Ukur when the lock is released
+     */
+    private List<Upstream> detach(String pushId) {
+        List<Upstream> unused = new ArrayList<>();
+        for (Upstream upstream : new ArrayList<>(upstreams.values())) {
+            if (upstream.pushIds.remove(pushId) && upstream.pushIds.isEmpty()) {
+                upstreams.remove(upstream.key);
+                upstreamsByPushId.remove(upstream.subscription.getPushId());
+                unused.add(upstream);
+            }
+        }
+        return unused;
+    }
+
+    private void removeAtUkur(List<Upstream> unused) {
+        for (Upstream upstream : unused) {
+            deleteAtUkur(upstream.subscription.getId());
+            notifyRemoved(upstream.subscription);
+        }
+    }
+
+    /**
+     * One upstream subscription per codespace or else per lineRef, or else one for the from and to stop points, or
+     * else one for everything. Those with the same key, which includes the type (SX or ET) unless it is ALL, are
+     * shared.
+     */
+    private static Map<String, Subscription> upstreamTemplates(Subscription subscription) {
+        SubscriptionTypeEnum type = subscription.getType() == null ? SubscriptionTypeEnum.ALL : subscription.getType();
+        String suffix = (type == SubscriptionTypeEnum.ALL ? "" : "/" + type) + (subscription.isPushAllData() ? "+all" : "");
+        Map<String, Subscription> templates = new LinkedHashMap<>();
+        if (!subscription.getCodespaces().isEmpty()) {
+            for (String codespace : subscription.getCodespaces()) {
+                templates.computeIfAbsent("codespace:" + codespace + suffix, key -> upstreamTemplate(key, subscription, type)).addCodespace(codespace);
+            }
+        } else if (!subscription.getLineRefs().isEmpty()) {
+            for (String lineRef : subscription.getLineRefs()) {
+                templates.computeIfAbsent("line:" + lineRef + suffix, key -> upstreamTemplate(key, subscription, type)).addLineRef(lineRef);
+            }
+        } else if (!subscription.getFromStopPoints().isEmpty() || !subscription.getToStopPoints().isEmpty()) {
+            String key = "stops:" + String.join(",", new TreeSet<>(subscription.getFromStopPoints()))
+                    + ">" + String.join(",", new TreeSet<>(subscription.getToStopPoints())) + suffix;
+            Subscription template = upstreamTemplate(key, subscription, type);
+            new TreeSet<>(subscription.getFromStopPoints()).forEach(template::addFromStopPoint);
+            new TreeSet<>(subscription.getToStopPoints()).forEach(template::addToStopPoint);
+            templates.put(key, template);
+        } else {
+            String key = "all" + suffix;
+            templates.put(key, upstreamTemplate(key, subscription, type));
+        }
+        return templates;
+    }
+
+    private static Subscription upstreamTemplate(String key, Subscription subscription, SubscriptionTypeEnum type) {
+        Subscription template = new Subscription();
+        template.setName("Upstream " + key);
+        template.setType(type);
+        template.setUseSiriSubscriptionModel(true); //one delivery may hold journeys for many local subscriptions
+        template.setPushAllData(subscription.isPushAllData());
+        return template;
+    }
+
     public void remove(String id) {
         Subscription subscription = get(id);
-        if (subscription != null) {
+        if (subscription == null) {
+            return;
+        }
+        if (subscriptions.isMultiplexed(subscription.getPushId())) {
+            List<Upstream> unused;
+            lock.lock();
+            try {
+                subscriptions.remove(subscription.getPushId());
+                unused = detach(subscription.getPushId());
+                persist();
+            } finally {
+                lock.unlock();
+            }
+            removeAtUkur(unused);
+        } else {
             subscriptions.remove(subscription.getPushId());
+            persist();
+            deleteAtUkur(id);
+        }
+        notifyRemoved(subscription);
+    }
+
+    /**
+     * The listener gets each subscription when it is removed, also the upstream subscriptions that are no longer
+     * shared by any subscription.
+     */
+    public void addRemovedSubscriptionListener(Consumer<Subscription> listener) {
+        removedListeners.add(listener);
+    }
+
+    private void notifyRemoved(Subscription subscription) {
+        for (Consumer<Subscription> listener : removedListeners) {
             try {
-                URI url = URI.create(ukurURL + "/" + id);
-                logger.debug("Removes subscription with delete to url {}", url);
-                restTemplate.delete(url);
-            } catch (Exception e) {
-                logger.warn("Could not remove subscription with id {}", id, e);
+                listener.accept(subscription);
+            } catch (RuntimeException e) {
+                logger.warn("Removed subscription listener failed", e);
             }
         }
     }
 
+    private void deleteAtUkur(String id) {
+        try {
+            URI url = URI.create(ukurURL + "/" + id);
+            logger.debug("Removes subscription with delete to url {}", url);
+            restTemplate.delete(url);
+        } catch (Exception e) {
+            logger.warn("Could not remove subscription with id {}", id, e);
+        }
+    }
+
+    /**
+     * Writes all subscriptions to a temporary file that replaces the registry file, so it is never half written.
+     */
+    private void persist() {
+        lock.lock();
+        try {
+            if (registryFile == null) {
+                return;
+            }
+            List<Registered> registered = new ArrayList<>();
+            subscriptions.list().forEach(subscription -> registered.add(new Registered(subscription.getPushId(), subscription,
+                    subscriptions.isMultiplexed(subscription.getPushId()))));
+            List<RegisteredUpstream> registeredUpstreams = new ArrayList<>();
+            upstreams.values().forEach(upstream -> registeredUpstreams.add(
+                    new RegisteredUpstream(upstream.key, upstream.subscription.getPushId(), upstream.subscription)));
+            try {
+                Path tmp = registryFile.resolveSibling(registryFile.getFileName() + ".tmp");
+                mapper.writeValue(tmp.toFile(), new Registry(basePushId, idCounter.get(), registered, registeredUpstreams));
+                Files.move(tmp, registryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                logger.error("Could not write subscription registry to {}", registryFile, e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addIfMissing(Subscription subscription) {
+        boolean exists = subscriptions.list().stream().anyMatch(s -> subscription.getName().equals(s.getName()));
+        if (!exists) {
+            add(subscription);
+        }
+    }
+
+    record Registry(String basePushId, long nextId, List<Registered> subscriptions, List<RegisteredUpstream> upstreams) {
+    }
+
+    record Registered(String pushId, Subscription subscription, boolean multiplexed) {
+    }
+
+    record RegisteredUpstream(String key, String pushId, Subscription subscription) {
+    }
+
+    /**
+     * A subscription at Ukur that feeds the local subscriptions attached to it.
+     */
+    private static final class Upstream {
+        private final String key;
+        private final Set<String> pushIds = ConcurrentHashMap.newKeySet();
+        private volatile Subscription subscription;
+
+        private Upstream(String key, Subscription subscription) {
+            this.key = key;
+            this.subscription = subscription;
+        }
+    }
 
     @Scheduled(initialDelay = 20_000, fixedDelay = Long.MAX_VALUE)
     void addTestSubscriptions() {
-        logger.info("Adds test subscriptions after startup delay");
+        logger.info("Adds test subscriptions not already restored after startup delay");
         Subscription askerOslo1 = new Subscription();
         askerOslo1.setName("Asker-OsloS #1 with 30 minutes minimum arrival delay limit");
         askerOslo1.addFromStopPoint("NSR:StopPlace:418");
@@ -143,7 +666,7 @@ public class SubscriptionService {
         askerOslo1.addToStopPoint("NSR:Quay:571");
         askerOslo1.setMinimumDelay("PT30M");
         askerOslo1.setDeviationType(DeviationType.DELAYED);
-        add(askerOslo1);
+        addIfMissing(askerOslo1);
 
 
         Subscription askerOslo2 = new Subscription();
@@ -175,14 +698,14 @@ public class SubscriptionService {
         askerOslo2.addToStopPoint("NSR:Quay:565");
         askerOslo2.addToStopPoint("NSR:Quay:570");
         askerOslo2.addToStopPoint("NSR:Quay:571");
-        add(askerOslo2);
+        addIfMissing(askerOslo2);
 
         Subscription askerOslo3 = new Subscription();
         askerOslo3.setName("[SIRI] Asker-OsloS #3 (stopplace only)");
         askerOslo3.addFromStopPoint("NSR:StopPlace:418");
         askerOslo3.addToStopPoint("NSR:StopPlace:337");
         askerOslo3.setUseSiriSubscriptionModel(true);
-        add(askerOslo3);
+        addIfMissing(askerOslo3);
 
         Subscription askerOslo4 = new Subscription();
         askerOslo4.setName("Asker-OsloS #1 with 5 minutes minimum arrival delay limit");
@@ -190,7 +713,7 @@ public class SubscriptionService {
         askerOslo4.addToStopPoint("NSR:StopPlace:337");
         askerOslo4.setMinimumDelay("PT5M");
         askerOslo4.setDeviationType(DeviationType.DELAYED);
-        add(askerOslo4);
+        addIfMissing(askerOslo4);
 
         Subscription osloTilAsker1 = new Subscription();
         osloTilAsker1.setName("OsloS-Asker #1");
@@ -222,7 +745,7 @@ public class SubscriptionService {
         osloTilAsker1.addToStopPoint("NSR:Quay:699");
         osloTilAsker1.addToStopPoint("NSR:Quay:700");
 
-        add(osloTilAsker1);
+        addIfMissing(osloTilAsker1);
 
         Subscription osloAsker2 = new Subscription();
         osloAsker2.setName("[SIRI] OsloS-Asker #2 (stopplace only)");
@@ -230,26 +753,26 @@ public class SubscriptionService {
         osloAsker2.addToStopPoint("NSR:StopPlace:418");
         osloAsker2.setUseSiriSubscriptionModel(true);
         osloAsker2.setHeartbeatInterval("PT1H");
-        add(osloAsker2);
+        addIfMissing(osloAsker2);
 
         Subscription lineL14 = new Subscription();
         lineL14.setName("[SIRI] Line L14 (heartbeats every hour)");
         lineL14.addLineRef("NSB:Line:L14");
         lineL14.setUseSiriSubscriptionModel(true);
         lineL14.setHeartbeatInterval("PT1H");
-        add(lineL14);
+        addIfMissing(lineL14);
 
         Subscription ruterLine1 = new Subscription();
         ruterLine1.setName("Ruter Line 1");
         ruterLine1.addLineRef("RUT:Line:1");
         ruterLine1.setMinimumDelay("PT5M");
-        add(ruterLine1);
+        addIfMissing(ruterLine1);
 
         Subscription ruterSX = new Subscription();
         ruterSX.setType(SubscriptionTypeEnum.SX);
         ruterSX.setName("All SX from RUT");
         ruterSX.addCodespace("RUT");
-        add(ruterSX);
+        addIfMissing(ruterSX);
 
         Subscription osloAskerAllData = new Subscription();
         osloAskerAllData.setName("[SIRI|AllData] OsloS-Asker #3 (stopplace only)");
@@ -257,7 +780,7 @@ public class SubscriptionService {
         osloAskerAllData.addToStopPoint("NSR:StopPlace:418");
         osloAskerAllData.setUseSiriSubscriptionModel(true);
         osloAskerAllData.setPushAllData(true);
-        add(osloAskerAllData);
+        addIfMissing(osloAskerAllData);
 
     }
 }
@@ -0,0 +1,50 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.ReceivedMessage;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the human readable texts of newly stored messages in the background, so they are ready when the messages
+ * are shown. Runs on a single low priority thread and simply skips batches when it can't keep up, as the texts
+ * are built when shown anyway.
+ */
+class SummaryPrecomputer {
+
+    private final ThreadPoolExecutor executor;
+
+    SummaryPrecomputer(int queueCapacity) {
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "summary-precompute");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    void submit(List<ReceivedMessage> messages) {
+        executor.execute(() -> messages.forEach(ReceivedMessage::getHumanReadable));
+    }
+
+    void stop() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.web;
+
+import org.entur.demo.ukur.entities.DeliveryDelays;
+import org.entur.demo.ukur.services.DeliveryDelayService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+public class DeliveryDelayRestController {
+
+    private final DeliveryDelayService deliveryDelayService;
+
+    @Autowired
+    public DeliveryDelayRestController(DeliveryDelayService deliveryDelayService) {
+        this.deliveryDelayService = deliveryDelayService;
+    }
+
+    /**
+     * The p50, p95, p99 and max delivery delay in milliseconds the last minute, 15 minutes and hour, for all the
+     * subscription's deliveries and for each type of message.
+     */
+    @RequestMapping(path = "/api/subscriptions/{id}/delays", method = RequestMethod.GET)
+    public DeliveryDelays delays(@PathVariable("id") String id) {
+        return deliveryDelayService.getDeliveryDelays(id);
+    }
+
+    /**
+     * Same as above for every subscription with deliveries the last hour.
+     */
+    @RequestMapping(path = "/api/delays", method = RequestMethod.GET)
+    public List<DeliveryDelays> allDelays() {
+        return deliveryDelayService.getAllDeliveryDelays();
+    }
+}
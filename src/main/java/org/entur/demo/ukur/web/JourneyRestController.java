@@ -0,0 +1,46 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.web;
+
+import org.entur.demo.ukur.entities.JourneyStatus;
+import org.entur.demo.ukur.services.JourneyStateView;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+public class JourneyRestController {
+
+    private final JourneyStateView journeyStateView;
+
+    @Autowired
+    public JourneyRestController(JourneyStateView journeyStateView) {
+        this.journeyStateView = journeyStateView;
+    }
+
+    @RequestMapping(path = "/api/journeys/{journeyRef}", method = RequestMethod.GET)
+    public ResponseEntity<JourneyStatus> journey(@PathVariable("journeyRef") String journeyRef) {
+        JourneyStatus status = journeyStateView.get(journeyRef);
+        return status == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(status);
+    }
+
+    @RequestMapping(path = "/api/journeys", method = RequestMethod.GET)
+    public List<JourneyStatus> journeys(@RequestParam("lineRef") String lineRef) {
+        return journeyStateView.getByLineRef(lineRef);
+    }
+}
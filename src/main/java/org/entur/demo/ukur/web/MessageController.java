@@ -15,32 +15,51 @@
 
 package org.entur.demo.ukur.web;
 
+import org.entur.demo.ukur.entities.MessagePage;
 import org.entur.demo.ukur.entities.Subscription;
+import org.entur.demo.ukur.services.DeliveryDelayService;
 import org.entur.demo.ukur.services.MessageService;
 import org.entur.demo.ukur.services.SubscriptionService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.context.request.ServletWebRequest;
 
 import jakarta.servlet.http.HttpServletRequest;
+import java.util.Objects;
 
 import static org.entur.demo.ukur.services.MessageService.MAX_SIZE_PER_SUBSCRIPTION;
 
 @Controller
 public class MessageController {
 
+    static final int DEFAULT_PAGE_SIZE = 25;
+
+    /**
+     * Part of the ETags, so a version handed out before a restart is never taken for the same version after it.
+     */
+    private static final String INSTANCE_ID = Long.toString(System.currentTimeMillis(), 36);
+
     private final SubscriptionService subscriptionService;
     private final MessageService messageService;
+    private final DeliveryDelayService deliveryDelayService;
 
     @Autowired
-    public MessageController(SubscriptionService subscriptionService, MessageService messageService) {
+    public MessageController(SubscriptionService subscriptionService, MessageService messageService,
+                             DeliveryDelayService deliveryDelayService) {
         this.subscriptionService = subscriptionService;
         this.messageService = messageService;
+        this.deliveryDelayService = deliveryDelayService;
     }
 
     @RequestMapping(value = "messages", params = {"id"})
-    public String listMessages(Model model, HttpServletRequest req) {
+    public String listMessages(Model model, HttpServletRequest req, ServletWebRequest webRequest) {
+        if (pageNotModified(req.getParameter("id"), webRequest)) {
+            return null;
+        }
         return showMessages(model, req, "messages");
     }
 
@@ -51,7 +70,10 @@ public class MessageController {
     }
 
     @RequestMapping(value = "/modern/messages", params = {"id"})
-    public String listModernMessages(Model model, HttpServletRequest req) {
+    public String listModernMessages(Model model, HttpServletRequest req, ServletWebRequest webRequest) {
+        if (pageNotModified(req.getParameter("id"), webRequest)) {
+            return null;
+        }
         return showMessages(model, req, "modern/messages");
     }
 
@@ -64,10 +86,90 @@ public class MessageController {
     private String showMessages(Model model, HttpServletRequest req, String viewName) {
         String id = req.getParameter("id");
         Subscription subscription = subscriptionService.get(id);
+        Long before = parseCursor(req.getParameter("before"));
+        MessagePage page = messageService.getMessagePage(id, before, null, pageSize(req.getParameter("size")));
         model.addAttribute("subscription", subscription);
-        model.addAttribute("messages", messageService.getMessages(id));
+        model.addAttribute("messages", page.getMessages());
+        model.addAttribute("page", page);
+        model.addAttribute("before", before);
         model.addAttribute("last", messageService.getLastMessageReceived(id));
-        model.addAttribute("MAX", MAX_SIZE_PER_SUBSCRIPTION);
+        model.addAttribute("MAX", messageService.getRetentionPolicy().getMaxCount());
+        model.addAttribute("delays", deliveryDelayService.getDeliveryDelays(id));
         return viewName;
     }
-}
\ No newline at end of file
+
+    /**
+     * As notModified, but the pages also show the subscription and the delivery delays, which change as their windows
+     * move, so the state of both is part of the ETag. Only the ETag is checked, as a time can not tell when they
+     * changed.
+     */
+    private boolean pageNotModified(String id, ServletWebRequest webRequest) {
+        setNoCache(webRequest);
+        String pageState = subscriptionState(subscriptionService.get(id)) + "-"
+                + Long.toString(deliveryDelayService.getStamp(id), 36);
+        return webRequest.checkNotModified(etag(messageService, id, pageState));
+    }
+
+    /**
+     * @return changes when the subscription is removed, added again or shown differently
+     */
+    private static String subscriptionState(Subscription subscription) {
+        if (subscription == null) {
+            return "none";
+        }
+        int hash = Objects.hash(System.identityHashCode(subscription), subscription.getName(), subscription.getType(),
+                subscription.getDeviationType(), subscription.isUseSiriSubscriptionModel(),
+                subscription.isPushAllData(), subscription.getPushAddress(), subscription.getFromStopPoints(),
+                subscription.getToStopPoints(), subscription.getLineRefs(), subscription.getCodespaces());
+        return Integer.toString(hash, 36);
+    }
+
+    /**
+     * Checks the request's If-None-Match and If-Modified-Since against the version of the subscription's messages,
+     * so an unchanged page is answered with 304 without reading the messages or rendering anything. Otherwise the
+     * ETag and Last-Modified headers are set on the response. Clients must always revalidate, as the messages can
+     * change at any time.
+     * <p>
+     * HTTP dates only have whole seconds, so while the last change is in the current second only the ETag is used:
+     * a Last-Modified handed out then would also match messages received later in the same second.
+     *
+     * @return true if the response is 304 Not Modified and nothing more should be written
+     */
+    static boolean notModified(MessageService messageService, String id, ServletWebRequest webRequest) {
+        setNoCache(webRequest);
+        String etag = etag(messageService, id, null);
+        long lastModified = messageService.getLastModifiedMillis(id);
+        if (lastModified / 1000 >= System.currentTimeMillis() / 1000) {
+            return webRequest.checkNotModified(etag);
+        }
+        return webRequest.checkNotModified(etag, lastModified);
+    }
+
+    private static void setNoCache(ServletWebRequest webRequest) {
+        if (webRequest.getResponse() != null) {
+            webRequest.getResponse().setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().getHeaderValue());
+        }
+    }
+
+    private static String etag(MessageService messageService, String id, String pageState) {
+        String version = INSTANCE_ID + "-" + Long.toString(messageService.getVersion(id), 36);
+        return "\"" + (pageState == null ? version : version + "-" + pageState) + "\"";
+    }
+
+    static Long parseCursor(String cursor) {
+        try {
+            return cursor == null ? null : Long.valueOf(cursor);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static int pageSize(String size) {
+        try {
+            int pageSize = size == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(size);
+            return Math.max(1, Math.min(pageSize, MAX_SIZE_PER_SUBSCRIPTION));
+        } catch (NumberFormatException e) {
+            return DEFAULT_PAGE_SIZE;
+        }
+    }
+}
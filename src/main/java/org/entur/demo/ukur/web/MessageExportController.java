@@ -0,0 +1,127 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.web;
+
+import org.entur.demo.ukur.entities.MessageTypeEnum;
+import org.entur.demo.ukur.entities.ReceivedMessage;
+import org.entur.demo.ukur.services.MessageService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import tools.jackson.core.JsonGenerator;
+import tools.jackson.databind.ObjectWriter;
+import tools.jackson.databind.SerializationFeature;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.function.Consumer;
+
+/**
+ * Exports stored messages without building the response in memory first: the messages are read a few at a time
+ * and written straight to the response with a streaming json generator.
+ */
+@RestController
+public class MessageExportController {
+
+    private final MessageService messageService;
+    private final ObjectWriter writer;
+
+    @Autowired
+    public MessageExportController(MessageService messageService, JsonMapper jsonMapper) {
+        this.messageService = messageService;
+        //lines are ended explicitly, and the response is flushed as its buffer fills up rather than per message
+        this.writer = jsonMapper.writer()
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+                .withRootValueSeparator((String) null);
+    }
+
+    /**
+     * The subscription's messages oldest first, as a json array or, with Accept: application/x-ndjson, as one json
+     * object per line.
+     *
+     * @param from only messages received at or after this time, in the server's time zone like received
+     * @param to   only messages received before this time
+     */
+    @RequestMapping(path = "/api/subscriptions/{id}/messages/export", method = RequestMethod.GET,
+            produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public ResponseEntity<StreamingResponseBody> export(@PathVariable("id") String id,
+                                                        @RequestParam(name = "type", required = false) MessageTypeEnum type,
+                                                        @RequestParam(name = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+                                                        @RequestParam(name = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+                                                        @RequestHeader(name = "Accept", required = false) String accept) {
+        long fromMillis = toMillis(from, Long.MIN_VALUE);
+        long toMillis = toMillis(to, Long.MAX_VALUE);
+        if (accept != null && accept.contains(MediaType.APPLICATION_NDJSON_VALUE)) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(out -> {
+                try (JsonGenerator generator = writer.createGenerator(out)) {
+                    messageService.forEachMessage(id, type, fromMillis, toMillis, line(generator, null));
+                }
+            });
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(out -> {
+            try (JsonGenerator generator = writer.createGenerator(out)) {
+                generator.writeStartArray();
+                messageService.forEachMessage(id, type, fromMillis, toMillis, message -> writer.writeValue(generator, message));
+                generator.writeEndArray();
+            }
+        });
+    }
+
+    /**
+     * The messages of all subscriptions as one json object per line, with the subscription id and the message.
+     */
+    @RequestMapping(path = "/api/messages/export", method = RequestMethod.GET,
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportAll(@RequestParam(name = "type", required = false) MessageTypeEnum type,
+                                                           @RequestParam(name = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+                                                           @RequestParam(name = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        long fromMillis = toMillis(from, Long.MIN_VALUE);
+        long toMillis = toMillis(to, Long.MAX_VALUE);
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(out -> {
+            try (JsonGenerator generator = writer.createGenerator(out)) {
+                for (String id : messageService.getSubscriptionIds()) {
+                    messageService.forEachMessage(id, type, fromMillis, toMillis, line(generator, id));
+                }
+            }
+        });
+    }
+
+    /**
+     * @param subscriptionId if not null, each line is an object with the subscription id and the message
+     */
+    private Consumer<ReceivedMessage> line(JsonGenerator generator, String subscriptionId) {
+        return message -> {
+            if (subscriptionId == null) {
+                writer.writeValue(generator, message);
+            } else {
+                generator.writeStartObject();
+                generator.writeStringProperty("subscriptionId", subscriptionId);
+                generator.writeName("message");
+                writer.writeValue(generator, message);
+                generator.writeEndObject();
+            }
+            generator.writeRaw('\n');
+        };
+    }
+
+    private static long toMillis(LocalDateTime time, long defaultMillis) {
+        return time == null ? defaultMillis : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.web;
+
+import org.entur.demo.ukur.entities.MessagePage;
+import org.entur.demo.ukur.services.MessageService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import static org.entur.demo.ukur.web.MessageController.notModified;
+import static org.entur.demo.ukur.web.MessageController.pageSize;
+import static org.entur.demo.ukur.web.MessageController.parseCursor;
+
+@RestController
+public class MessageRestController {
+
+    private final MessageService messageService;
+
+    @Autowired
+    public MessageRestController(MessageService messageService) {
+        this.messageService = messageService;
+    }
+
+    /**
+     * Pages through the stored messages with the before cursor, or polls for new messages with the since token.
+     * Polls with the ETag or Last-Modified from the previous response get 304 as long as nothing has changed.
+     */
+    @RequestMapping(path = "/api/subscriptions/{id}/messages", method = RequestMethod.GET)
+    public MessagePage messages(@PathVariable("id") String id,
+                                @RequestParam(name = "before", required = false) String before,
+                                @RequestParam(name = "since", required = false) String since,
+                                @RequestParam(name = "size", required = false) String size,
+                                ServletWebRequest webRequest) {
+        if (notModified(messageService, id, webRequest)) {
+            return null;
+        }
+        return messageService.getMessagePage(id, parseCursor(before), parseCursor(since), pageSize(size));
+    }
+
+    /**
+     * The xml of one stored message, only its own situation or journey when it came in a delivery with several.
+     */
+    @RequestMapping(path = "/api/subscriptions/{id}/messages/{sequence}/xml", method = RequestMethod.GET)
+    public ResponseEntity<String> messageXml(@PathVariable("id") String id, @PathVariable("sequence") long sequence) {
+        String xml = messageService.getMessageXml(id, sequence);
+        return xml == null ? ResponseEntity.notFound().build() : ResponseEntity.ok().contentType(MediaType.APPLICATION_XML).body(xml);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.web;
+
+import org.entur.demo.ukur.entities.MessageSearchResult;
+import org.entur.demo.ukur.entities.MessageTypeEnum;
+import org.entur.demo.ukur.services.MessageIndex;
+import org.entur.demo.ukur.services.MessageIndex.Field;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.EnumMap;
+import java.util.Map;
+
+@RestController
+public class MessageSearchRestController {
+
+    private static final int MAX_LIMIT = 1000;
+
+    private final MessageIndex messageIndex;
+
+    @Autowired
+    public MessageSearchRestController(MessageIndex messageIndex) {
+        this.messageIndex = messageIndex;
+    }
+
+    /**
+     * Finds the stored messages, across all subscriptions, that match all the given criteria, newest first. At
+     * least one of lineRef, stopRef (stop point, quay or stop place), situationNumber, codespace or type is required.
+     */
+    @RequestMapping(path = "/api/messages/search", method = RequestMethod.GET)
+    public ResponseEntity<MessageSearchResult> search(@RequestParam(name = "lineRef", required = false) String lineRef,
+                                                      @RequestParam(name = "stopRef", required = false) String stopRef,
+                                                      @RequestParam(name = "situationNumber", required = false) String situationNumber,
+                                                      @RequestParam(name = "codespace", required = false) String codespace,
+                                                      @RequestParam(name = "type", required = false) MessageTypeEnum type,
+                                                      @RequestParam(name = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+                                                      @RequestParam(name = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+                                                      @RequestParam(name = "limit", defaultValue = "100") int limit) {
+        Map<Field, String> criteria = new EnumMap<>(Field.class);
+        put(criteria, Field.LINE_REF, lineRef);
+        put(criteria, Field.STOP_REF, stopRef);
+        put(criteria, Field.SITUATION_NUMBER, situationNumber);
+        put(criteria, Field.CODESPACE, codespace);
+        put(criteria, Field.TYPE, type == null ? null : type.name());
+        if (criteria.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        long fromMillis = from == null ? Long.MIN_VALUE : from.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long toMillis = to == null ? Long.MAX_VALUE : to.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return ResponseEntity.ok(messageIndex.search(criteria, fromMillis, toMillis, Math.max(1, Math.min(limit, MAX_LIMIT))));
+    }
+
+    private static void put(Map<Field, String> criteria, Field field, String value) {
+        if (value != null && !value.isBlank()) {
+            criteria.put(field, value);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.web;
+
+import org.entur.demo.ukur.services.MessageStreamService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import static org.entur.demo.ukur.web.MessageController.parseCursor;
+
+@RestController
+public class MessageStreamController {
+
+    private final MessageStreamService messageStreamService;
+
+    @Autowired
+    public MessageStreamController(MessageStreamService messageStreamService) {
+        this.messageStreamService = messageStreamService;
+    }
+
+    /**
+     * Sends the messages stored for the subscription from now on, as "message" events with the message as json and
+     * its sequence number as id. A "reset" event means messages were dropped and the page should be reloaded.
+     */
+    @RequestMapping(path = "/api/subscriptions/{id}/messages/stream", method = RequestMethod.GET,
+            produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> stream(@PathVariable("id") String id,
+                                             @RequestHeader(name = "Last-Event-ID", required = false) String lastEventId) {
+        SseEmitter emitter = messageStreamService.open(id, parseCursor(lastEventId));
+        return emitter == null ? ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build() : ResponseEntity.ok(emitter);
+    }
+}
@@ -15,18 +15,20 @@
 
 package org.entur.demo.ukur.web;
 
+import org.entur.demo.ukur.entities.IngestStatistics;
 import org.entur.demo.ukur.entities.Subscription;
+import org.entur.demo.ukur.services.BatchTooLargeException;
+import org.entur.demo.ukur.services.IngestMetrics;
 import org.entur.demo.ukur.services.MessageService;
+import org.entur.demo.ukur.services.PushIngestService;
 import org.entur.demo.ukur.services.SubscriptionService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import uk.org.siri.siri20.EstimatedVehicleJourney;
-import uk.org.siri.siri20.PtSituationElement;
-import uk.org.siri.siri20.Siri;
 
 @RestController
 public class PushMessageRestController {
@@ -37,29 +39,36 @@ public class PushMessageRestController {
 
     private final SubscriptionService subscriptionService;
 
+    private final PushIngestService pushIngestService;
+
+    private final IngestMetrics metrics;
+
     @Autowired
-    public PushMessageRestController(MessageService messageService, SubscriptionService subscriptionService) {
+    public PushMessageRestController(MessageService messageService, SubscriptionService subscriptionService,
+                                     PushIngestService pushIngestService, IngestMetrics metrics) {
         this.messageService = messageService;
         this.subscriptionService = subscriptionService;
+        this.pushIngestService = pushIngestService;
+        this.metrics = metrics;
     }
 
     @RequestMapping(path = "/push/{pushId}", method = RequestMethod.POST,
             consumes = "application/xml")
-    public ResponseEntity siri(@PathVariable("pushId") String pushId, @RequestBody Siri siri) {
+    public ResponseEntity siri(@PathVariable("pushId") String pushId, @RequestBody byte[] siri) {
         logger.debug("Received Siri with pushId='{}'", pushId);
         return handlePush(pushId, siri);
     }
 
     @RequestMapping(path = "/push/{pushId}/et", method = RequestMethod.POST,
             consumes = "application/xml")
-    public ResponseEntity estimatedVehicleJourney(@PathVariable("pushId") String pushId, @RequestBody EstimatedVehicleJourney estimatedVehicleJourney) {
+    public ResponseEntity estimatedVehicleJourney(@PathVariable("pushId") String pushId, @RequestBody byte[] estimatedVehicleJourney) {
         logger.debug("Received EstimatedVehicleJourney with pushId='{}'", pushId);
         return handlePush(pushId, estimatedVehicleJourney);
     }
 
     @RequestMapping(path = "/push/{pushId}/sx", method = RequestMethod.POST,
             consumes = "application/xml")
-    public ResponseEntity ptSituationElement(@PathVariable("pushId") String pushId, @RequestBody PtSituationElement ptSituationElement) {
+    public ResponseEntity ptSituationElement(@PathVariable("pushId") String pushId, @RequestBody byte[] ptSituationElement) {
         logger.debug("Received PtSituationElement with pushId='{}'", pushId);
         return handlePush(pushId, ptSituationElement);
     }
@@ -72,21 +81,74 @@ public class PushMessageRestController {
         return ResponseEntity.ok("All received messages cleared");
     }
 
-    private ResponseEntity handlePush(String pushId, Object received) {
+    @RequestMapping(path = "/ingest/statistics", method = RequestMethod.GET)
+    public IngestStatistics ingestStatistics() {
+        return pushIngestService.getStatistics();
+    }
+
+    private ResponseEntity handlePush(String pushId, byte[] received) {
+        if (subscriptionService.isUpstream(pushId)) {
+            logger.debug("Received push message for upstream pushId={}", pushId);
+            return handleUpstreamPush(pushId, received);
+        }
         Subscription subscription = subscriptionService.getByPushId(pushId);
         if (subscription == null) {
             logger.warn("Received push message for unknown push id '{}' - responds {}", pushId, HttpStatus.RESET_CONTENT);
+            metrics.pushReceived("unknown", "unknown", received.length); //any push id could be tried, don't tag with it
             return new ResponseEntity(HttpStatus.RESET_CONTENT);
         } else {
-            logger.info("Received push message for pushId={} and subscriptionId={}", pushId, subscription.getId());
-            messageService.addPushMessage(subscription.getId(), received);
+            logger.debug("Received push message for pushId={} and subscriptionId={}", pushId, subscription.getId());
+            try {
+                if (!pushIngestService.submit(subscription.getId(), received)) {
+                    logger.warn("Ingest queue is full, rejects push message for pushId={} - responds {}", pushId, HttpStatus.SERVICE_UNAVAILABLE);
+                    metrics.pushReceived(pushId, "rejected", received.length);
+                    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+                }
+            } catch (BatchTooLargeException e) {
+                logger.warn("Too large push message for pushId={} - responds {}: {}", pushId, HttpStatus.CONTENT_TOO_LARGE, e.getMessage());
+                metrics.pushReceived(pushId, "too_large", received.length);
+                return new ResponseEntity(HttpStatus.CONTENT_TOO_LARGE);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Could not handle push message for pushId={} - responds {}", pushId, HttpStatus.BAD_REQUEST, e);
+                metrics.pushReceived(pushId, "invalid", received.length);
+                return new ResponseEntity(HttpStatus.BAD_REQUEST);
+            }
+            metrics.pushReceived(pushId, "accepted", received.length);
             return new ResponseEntity(HttpStatus.OK);
         }
     }
 
+    /**
+     * Parses the push once and stores it for each of the local subscriptions it matches.
+     */
+    private ResponseEntity handleUpstreamPush(String pushId, byte[] received) {
+        try {
+            boolean accepted = pushIngestService.submit(pushId, received, payload ->
+                    messageService.addMultiplexedPushMessage(payload, pushMessage -> subscriptionService.match(pushId, pushMessage)));
+            if (!accepted) {
+                logger.warn("Ingest queue is full, rejects push message for upstream pushId={} - responds {}", pushId, HttpStatus.SERVICE_UNAVAILABLE);
+                metrics.pushReceived(pushId, "rejected", received.length);
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+            }
+        } catch (BatchTooLargeException e) {
+            logger.warn("Too large push message for upstream pushId={} - responds {}: {}", pushId, HttpStatus.CONTENT_TOO_LARGE, e.getMessage());
+            metrics.pushReceived(pushId, "too_large", received.length);
+            return new ResponseEntity(HttpStatus.CONTENT_TOO_LARGE);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Could not handle push message for upstream pushId={} - responds {}", pushId, HttpStatus.BAD_REQUEST, e);
+            metrics.pushReceived(pushId, "invalid", received.length);
+            return new ResponseEntity(HttpStatus.BAD_REQUEST);
+        }
+        metrics.pushReceived(pushId, "accepted", received.length);
+        return new ResponseEntity(HttpStatus.OK);
+    }
+
     @RequestMapping(path = "/health/ready")
-    public String ready() {
-        return "OK";
+    public ResponseEntity<String> ready() {
+        if (!subscriptionService.isReady()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Re-registering subscriptions");
+        }
+        return ResponseEntity.ok("OK");
     }
 
     @RequestMapping(path = "/health/live")
@@ -0,0 +1,48 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.web;
+
+import org.entur.demo.ukur.entities.SituationStatus;
+import org.entur.demo.ukur.services.SituationView;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+public class SituationRestController {
+
+    private final SituationView situationView;
+
+    @Autowired
+    public SituationRestController(SituationView situationView) {
+        this.situationView = situationView;
+    }
+
+    @RequestMapping(path = "/api/situations", method = RequestMethod.GET)
+    public List<SituationStatus> activeSituations(@RequestParam(name = "lineRef", required = false) String lineRef,
+                                                  @RequestParam(name = "stopPointRef", required = false) String stopPointRef) {
+        return situationView.getActive(lineRef, stopPointRef);
+    }
+
+    @RequestMapping(path = "/api/situations/{participant}/{situationNumber}", method = RequestMethod.GET)
+    public ResponseEntity<SituationStatus> situation(@PathVariable("participant") String participant,
+                                                     @PathVariable("situationNumber") String situationNumber) {
+        SituationStatus status = situationView.get(participant, situationNumber);
+        return status == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(status);
+    }
+}
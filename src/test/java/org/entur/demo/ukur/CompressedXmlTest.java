@@ -0,0 +1,63 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedXmlTest {
+
+    private static final String XML = "<Siri xmlns=\"http://www.siri.org.uk/siri\" version=\"2.0\"><ServiceDelivery>" +
+            "<EstimatedTimetableDelivery version=\"2.0\"><EstimatedJourneyVersionFrame>" +
+            "<EstimatedVehicleJourney><LineRef>NSB:Line:R10</LineRef><EstimatedCalls>" +
+            "<EstimatedCall><StopPointRef>NSR:Quay:571</StopPointRef><StopPointName>Lillestrøm</StopPointName></EstimatedCall>" +
+            "<EstimatedCall><StopPointRef>NSR:Quay:572</StopPointRef><StopPointName>Oslo S</StopPointName></EstimatedCall>" +
+            "</EstimatedCalls></EstimatedVehicleJourney></EstimatedJourneyVersionFrame></EstimatedTimetableDelivery>" +
+            "</ServiceDelivery></Siri>";
+
+    @Test
+    public void roundTrip() {
+        byte[] payload = XML.getBytes(StandardCharsets.UTF_8);
+        CompressedXml compressed = CompressedXml.compress(payload, null);
+        assertEquals(XML, compressed.decompress());
+        assertEquals(payload.length, compressed.getLength());
+        assertTrue(compressed.getCompressedSize() < payload.length);
+        assertEquals("", CompressedXml.compress(new byte[0], null).decompress());
+    }
+
+    @Test
+    public void dictionaryMakesSimilarXmlSmaller() {
+        byte[] dictionary = CompressedXml.dictionaryFrom(XML.getBytes(StandardCharsets.UTF_8));
+        String similar = XML.replace("R10", "L1").replace("Oslo S", "Nationaltheatret");
+        byte[] payload = similar.getBytes(StandardCharsets.UTF_8);
+        CompressedXml withDictionary = CompressedXml.compress(payload, dictionary);
+        assertEquals(similar, withDictionary.decompress());
+        assertTrue(withDictionary.getCompressedSize() < CompressedXml.compress(payload, null).getCompressedSize() / 2);
+    }
+
+    @Test
+    public void dictionaryIsLimitedToTheDeflateWindow() {
+        byte[] sample = new byte[100_000];
+        sample[sample.length - 1] = 1;
+        byte[] dictionary = CompressedXml.dictionaryFrom(sample);
+        assertEquals(32 * 1024, dictionary.length);
+        assertEquals(1, dictionary[dictionary.length - 1]);
+    }
+}
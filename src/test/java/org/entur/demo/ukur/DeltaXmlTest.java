@@ -0,0 +1,108 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaXmlTest {
+
+    private static final String XML = "<EstimatedVehicleJourney><LineRef>NSB:Line:R10</LineRef><EstimatedCalls>" +
+            "<EstimatedCall><StopPointRef>NSR:Quay:571</StopPointRef><StopPointName>Lillestrøm</StopPointName>" +
+            "<ExpectedDepartureTime>2018-02-07T10:12:00+01:00</ExpectedDepartureTime></EstimatedCall>" +
+            "<EstimatedCall><StopPointRef>NSR:Quay:572</StopPointRef><StopPointName>Oslo S</StopPointName>" +
+            "<ExpectedArrivalTime>2018-02-07T10:31:00+01:00</ExpectedArrivalTime></EstimatedCall>" +
+            "</EstimatedCalls></EstimatedVehicleJourney>";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Test
+    public void changedTimesGiveSmallDelta() {
+        DeltaXml.Encoder encoder = new DeltaXml.Encoder(bytes(XML));
+        String updated = XML.replace("10:31:00", "10:36:30");
+        DeltaXml delta = encoder.encode(bytes(updated));
+        assertEquals(updated, delta.decompress());
+        assertEquals(bytes(updated).length, delta.getLength());
+        assertTrue(delta.getDeltaSize() + " bytes", delta.getDeltaSize() < 64);
+        assertEquals(XML, encoder.encode(bytes(XML)).decompress());
+        assertEquals(2, encoder.getEncoded());
+        assertEquals(XML, encoder.getKeyframe().decompress());
+    }
+
+    @Test
+    public void rebuildsMovedAddedAndRemovedElements() {
+        DeltaXml.Encoder encoder = new DeltaXml.Encoder(bytes(XML));
+        String recorded = XML.replace("<EstimatedCalls><EstimatedCall><StopPointRef>NSR:Quay:571</StopPointRef>",
+                        "<RecordedCalls><RecordedCall><StopPointRef>NSR:Quay:571</StopPointRef>")
+                .replace("</ExpectedDepartureTime></EstimatedCall>", "</ExpectedDepartureTime></RecordedCall></RecordedCalls><EstimatedCalls>")
+                .replace("<StopPointName>Oslo S</StopPointName>", "<StopPointName>Oslo S</StopPointName><ArrivalStatus>delayed</ArrivalStatus>");
+        assertEquals(recorded, encoder.encode(bytes(recorded)).decompress());
+        String reversed = "<EstimatedCalls>" + XML.substring(XML.indexOf("<EstimatedCall><StopPointRef>NSR:Quay:572"), XML.indexOf("</EstimatedCalls>"))
+                + XML.substring(XML.indexOf("<EstimatedCall>"), XML.indexOf("<EstimatedCall><StopPointRef>NSR:Quay:572")) + "</EstimatedCalls>";
+        assertEquals(reversed, encoder.encode(bytes(reversed)).decompress());
+        assertEquals("", encoder.encode(new byte[0]).decompress());
+        assertEquals("other", encoder.encode(bytes("other")).decompress());
+        assertEquals("", new DeltaXml.Encoder(new byte[0]).encode(new byte[0]).decompress());
+    }
+
+    /**
+     * Run with: mvn test -Dtest=DeltaXmlTest -Dbenchmark=true
+     */
+    @Test
+    public void benchmarkEncodeAndDecode() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        StringBuilder calls = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            calls.append(XML, XML.indexOf("<EstimatedCall>"), XML.indexOf("</EstimatedCalls>"));
+        }
+        String journey = XML.replace(XML.substring(XML.indexOf("<EstimatedCall>"), XML.indexOf("</EstimatedCalls>")), calls);
+        DeltaXml.Encoder encoder = new DeltaXml.Encoder(bytes(journey));
+        byte[][] updates = new byte[60][];
+        for (int i = 0; i < updates.length; i++) {
+            updates[i] = bytes(journey.replace("10:31:00", String.format("10:%02d:00", i)));
+        }
+        int rounds = 50_000;
+        long deltaBytes = 0;
+        long start = System.nanoTime();
+        DeltaXml[] deltas = new DeltaXml[updates.length];
+        for (int i = 0; i < rounds; i++) {
+            deltas[i % updates.length] = encoder.encode(updates[i % updates.length]);
+            deltaBytes += deltas[i % updates.length].getDeltaSize();
+        }
+        long encodeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        long decoded = 0;
+        for (int i = 0; i < rounds; i++) {
+            decoded += deltas[i % deltas.length].decompressBytes().length;
+        }
+        long decodeNanos = System.nanoTime() - start;
+        logger.info("{} byte journey: {} byte deltas (keyframe {} bytes deflated), encode {} us and decode {} us per message",
+                journey.length(), deltaBytes / rounds, encoder.getKeyframe().getCompressedSize(),
+                encodeNanos / rounds / 1000.0, decodeNanos / rounds / 1000.0);
+        assertEquals((long) rounds * updates[0].length, decoded);
+    }
+
+    private static byte[] bytes(String xml) {
+        return xml.getBytes(StandardCharsets.UTF_8);
+    }
+}
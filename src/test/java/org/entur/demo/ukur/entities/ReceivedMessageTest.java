@@ -0,0 +1,50 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.entities;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ReceivedMessageTest {
+
+    @Test
+    public void formatsDelayWhenAsked() {
+        ReceivedMessage message = new ReceivedMessage();
+        assertNull(message.getDeliveryDelay());
+        assertNull(message.getDeliveryDelayMillis());
+        message.setDeliveryDelay(125_042);
+        assertEquals("2:5,042", message.getDeliveryDelay());
+        assertEquals(Long.valueOf(125_042), message.getDeliveryDelayMillis());
+    }
+
+    @Test
+    public void keepsTypeAndReceivedTime() {
+        ReceivedMessage message = new ReceivedMessage("<xml/>");
+        assertNull(message.getType());
+        for (MessageTypeEnum type : MessageTypeEnum.values()) {
+            message.setType(type);
+            assertEquals(type, message.getType());
+        }
+        LocalDateTime received = LocalDateTime.of(2018, 2, 7, 10, 30, 15, 123_000_000);
+        message.setReceived(received);
+        assertEquals(received, message.getReceived());
+        assertEquals("<xml/>", message.getRawXmlString());
+    }
+}
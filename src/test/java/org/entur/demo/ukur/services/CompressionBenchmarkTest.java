@@ -0,0 +1,173 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.ReceivedMessage;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the bytes per retained message with the xml stored as is, deflated, deflated with a dictionary and delta
+ * encoded. Both the store's own footprint estimate and the heap it really retains are given. The retained heap is
+ * the used heap after a full gc with the store filled less than before it was made, so it also includes the store's
+ * fixed overhead spread over the messages. Run with: mvn test -Dtest=CompressionBenchmarkTest -Dbenchmark=true
+ */
+public class CompressionBenchmarkTest {
+
+    private static final int MESSAGES = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Test
+    public void bytesPerRetainedMessage() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            String minute = String.format("%02d", i % 60);
+            payloads.add(SiriStaxReaderTest.ET_DELIVERY
+                    .replace("NSB:Line:R10", "NSB:Line:R" + (i % 30))
+                    .replace("313:2018-02-07", (i + 100) + ":2018-02-07")
+                    .replace("10:48:34", "10:" + minute + ":" + String.format("%02d", i % 59))
+                    .replace("10:12:00", "10:12:" + minute)
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        long none = bytesPerMessage("none", payloads);
+        long deflate = bytesPerMessage("deflate", payloads);
+        long dictionary = bytesPerMessage("dictionary", payloads);
+        logger.info("Retained heap per message: none={}, deflate={} ({}x), dictionary={} ({}x)", none,
+                deflate, String.format("%.1f", (double) none / deflate), dictionary, String.format("%.1f", (double) none / dictionary));
+    }
+
+    /**
+     * A pushAllData subscription, where the same journeys are updated over and over. Deltas shrink the xml of an
+     * update many times more than deflate does, but the message, its text and the encoders' keyframes are the same
+     * or more, so the gain per message is well under that.
+     */
+    @Test
+    public void bytesPerRetainedUpdate() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            String minute = String.format("%02d", (i / 20) % 60);
+            payloads.add(SiriStaxReaderTest.ET_DELIVERY
+                    .replace("NSB:Line:R10", "NSB:Line:R" + (i % 20))
+                    .replace("313:2018-02-07", (i % 20) + ":2018-02-07")
+                    .replace("2018-02-07T10:30:00", "2018-02-07T10:30:" + String.format("%02d", i % 60))
+                    .replace("10:48:34", "10:48:" + minute)
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        long deflate = bytesPerMessage("deflate", payloads);
+        long delta = bytesPerMessage("delta", payloads);
+        logger.info("Retained heap per update of 20 journeys: deflate={}, delta={} ({}x)", deflate, delta,
+                String.format("%.1f", (double) deflate / delta));
+    }
+
+    /**
+     * The same journeys pushed to many subscriptions, stored for each of them or once for all.
+     */
+    @Test
+    public void sharedPayloads() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        int subscriptions = 50;
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < MESSAGES / 10; i++) {
+            payloads.add(SiriStaxReaderTest.ET_DELIVERY.replace("313:2018-02-07", i + ":2018-02-07").getBytes(StandardCharsets.UTF_8));
+        }
+        for (boolean dedup : new boolean[]{false, true}) {
+            storeShared(dedup, payloads, subscriptions);
+        }
+    }
+
+    /**
+     * Kept apart so the store of the previous run is gone when the heap is measured.
+     */
+    private void storeShared(boolean dedup, List<byte[]> payloads, int subscriptions) {
+        long heapBefore = usedHeapAfterGc();
+        MessageService messageService = MessageService.options().ingestMode("stax")
+                .retention(new RetentionPolicy(MESSAGES, 0, 0, 0, false)).dedup(dedup).build();
+        long start = System.nanoTime();
+        for (byte[] payload : payloads) {
+            for (int s = 0; s < subscriptions; s++) {
+                messageService.addPushMessage("subscription-" + s, payload);
+            }
+        }
+        long ingestMillis = (System.nanoTime() - start) / 1_000_000;
+        long retained = usedHeapAfterGc() - heapBefore;
+        start = System.nanoTime();
+        for (int s = 0; s < subscriptions; s++) {
+            for (ReceivedMessage message : messageService.getMessages("subscription-" + s)) {
+                message.getHumanReadable();
+            }
+        }
+        long renderMillis = (System.nanoTime() - start) / 1_000_000;
+        logger.info("dedup={}: {} payloads to {} subscriptions, {} bytes retained ({} estimated), ingest {} ms and all texts {} ms",
+                dedup, payloads.size(), subscriptions, retained, messageService.getStoredBytes(), ingestMillis, renderMillis);
+    }
+
+    /**
+     * @return the retained heap per message
+     */
+    private long bytesPerMessage(String compression, List<byte[]> payloads) {
+        long heapBefore = usedHeapAfterGc();
+        RetentionPolicy retention = new RetentionPolicy(MESSAGES, 0, 0, 0, false);
+        MessageService messageService = MessageService.options().ingestMode("stax").retention(retention).compression(compression).build();
+        long start = System.nanoTime();
+        for (byte[] payload : payloads) {
+            messageService.addPushMessage("benchmark", payload);
+        }
+        long ingestMillis = (System.nanoTime() - start) / 1_000_000;
+        long retainedPerMessage = (usedHeapAfterGc() - heapBefore) / MESSAGES;
+        start = System.nanoTime();
+        for (ReceivedMessage message : messageService.getMessages("benchmark")) {
+            message.getRawXmlString();
+        }
+        long readMillis = (System.nanoTime() - start) / 1_000_000;
+        assertEquals(MESSAGES, messageService.getMessageCount("benchmark"));
+        long estimatedPerMessage = messageService.getStoredBytes() / MESSAGES;
+        logger.info("{}: {} bytes retained per message ({} estimated), ingest {} ms and reading all xml {} ms", compression,
+                retainedPerMessage, estimatedPerMessage, ingestMillis, readMillis);
+        return retainedPerMessage;
+    }
+
+    /**
+     * @return the least used heap after a few full gcs, with pauses for the cleaners of the deflaters to run
+     */
+    private static long usedHeapAfterGc() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return used;
+    }
+}
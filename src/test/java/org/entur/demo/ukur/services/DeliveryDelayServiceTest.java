@@ -0,0 +1,175 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.DelayStatistics;
+import org.entur.demo.ukur.entities.DeliveryDelays;
+import org.entur.demo.ukur.entities.MessageTypeEnum;
+import org.entur.demo.ukur.entities.ReceivedMessage;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import static org.entur.demo.ukur.services.DelayHistogram.MINUTE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeliveryDelayServiceTest {
+
+    private static final long NOW = 1_000 * 60 * MINUTE; //at a whole hour
+
+    @Test
+    public void bucketsAreWithinSixPercent() {
+        assertEquals(0, DelayHistogram.highestEquivalent(DelayHistogram.bucket(0)));
+        assertEquals(31, DelayHistogram.highestEquivalent(DelayHistogram.bucket(31)));
+        for (long value = 32; value <= DelayHistogram.MAX_DELAY; value = value * 3 / 2 + 1) {
+            int bucket = DelayHistogram.bucket(value);
+            assertTrue(bucket < DelayHistogram.BUCKETS);
+            long highest = DelayHistogram.highestEquivalent(bucket);
+            assertTrue(value + " in bucket up to " + highest, highest >= value && highest <= value + value / 16);
+            assertEquals(bucket + 1, DelayHistogram.bucket(highest + 1));
+        }
+    }
+
+    @Test
+    public void givesPercentilesForEachWindow() {
+        DelayHistogram histogram = new DelayHistogram();
+        Random random = new Random(42);
+        long[] lastMinute = new long[1000];
+        for (int i = 0; i < lastMinute.length; i++) {
+            lastMinute[i] = 500 + random.nextInt(10_000);
+            histogram.record(lastMinute[i], NOW + i);
+        }
+        histogram.record(60_000, NOW - 10 * MINUTE);
+        histogram.record(120_000, NOW - 50 * MINUTE);
+        histogram.record(999_999, NOW - 2 * 60 * MINUTE); //too old for any window
+
+        DelayStatistics minute = statistics(histogram, 1);
+        long[] sorted = LongStream.of(lastMinute).sorted().toArray();
+        assertEquals(1000, minute.getCount());
+        assertClose(sorted[499], minute.getP50());
+        assertClose(sorted[949], minute.getP95());
+        assertClose(sorted[989], minute.getP99());
+        assertEquals(sorted[999], minute.getMax());
+
+        assertEquals(1001, statistics(histogram, 15).getCount());
+        assertEquals(60_000, statistics(histogram, 15).getMax());
+        assertEquals(1002, statistics(histogram, 60).getCount());
+        assertEquals(120_000, statistics(histogram, 60).getMax());
+
+        DelayStatistics later = statistics(histogram, NOW + 2 * MINUTE, 1);
+        assertEquals(0, later.getCount());
+        assertEquals(0, later.getMax());
+    }
+
+    @Test
+    public void countsEachDeliveryOnceForEachType() {
+        DeliveryDelayService service = new DeliveryDelayService(MessageService.options().build());
+        service.record("s1", List.of(message(MessageTypeEnum.ET, 1500), message(MessageTypeEnum.ET, 1500),
+                message(MessageTypeEnum.SX, 1500)));
+        service.record("s1", List.of(message(MessageTypeEnum.ET, 3000)));
+        service.record("s1", List.of(message(MessageTypeEnum.ET, null)));
+
+        DeliveryDelays delays = service.getDeliveryDelays("s1", NOW);
+        assertEquals(List.of("ALL", "ET", "SX"), List.copyOf(delays.getTypes().keySet()));
+        assertEquals(3, delays.getTypes().get("ALL").get("1m").getCount());
+        assertEquals(2, delays.getTypes().get("ET").get("15m").getCount());
+        assertEquals(3000, delays.getTypes().get("ET").get("1h").getMax());
+        assertEquals(1, delays.getTypes().get("SX").get("1m").getCount());
+        assertEquals(0, service.getDeliveryDelays("unknown", NOW).getTypes().get("ALL").get("1h").getCount());
+
+        service.removeIdle(NOW + 30 * MINUTE);
+        assertEquals(1, service.getAllDeliveryDelays().size());
+        service.removeIdle(NOW + 2 * 60 * MINUTE);
+        assertTrue(service.getAllDeliveryDelays().isEmpty());
+    }
+
+    @Test
+    public void concurrentRecordingIsNotLost() throws Exception {
+        DelayHistogram histogram = new DelayHistogram();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int w = 0; w < 4; w++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(i % 5000, NOW + i % 120_000); //over two minutes, so slices are replaced
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(400_000, statistics(histogram, NOW + MINUTE, 15).getCount());
+        assertEquals(4999, statistics(histogram, NOW + MINUTE, 15).getMax());
+        assertEquals(200_000, statistics(histogram, NOW + 2 * MINUTE - 1, 1).getCount()); //the last 70 seconds
+    }
+
+    @Test
+    public void longDelaysAreCountedAsTheMax() {
+        DelayHistogram histogram = new DelayHistogram();
+        histogram.record(3 * 60 * MINUTE, NOW);
+        assertEquals(DelayHistogram.MAX_DELAY, statistics(histogram, 1).getMax());
+        assertEquals(DelayHistogram.MAX_DELAY, statistics(histogram, 1).getP99());
+    }
+
+    @Test
+    public void stampMovesWithTheWindows() {
+        DeliveryDelayService service = new DeliveryDelayService(MessageService.options().build());
+        assertEquals(0, service.getStamp("s3", NOW));
+        service.record("s3", List.of(message(MessageTypeEnum.ET, 1500)));
+        long stamp = service.getStamp("s3", NOW);
+        assertEquals(stamp, service.getStamp("s3", NOW + DelayHistogram.SLICE_MILLIS - 1));
+        assertNotEquals(stamp, service.getStamp("s3", NOW + DelayHistogram.SLICE_MILLIS));
+        assertEquals(0, service.getStamp("s3", NOW + 2 * 60 * MINUTE));
+    }
+
+    @Test
+    public void unknownDelaysAreNotCounted() {
+        DeliveryDelayService service = new DeliveryDelayService(MessageService.options().build());
+        service.record("s2", List.of(message(null, 100)));
+        assertNull(service.getDeliveryDelays("s2", NOW).getTypes().get("ET"));
+        assertTrue(service.getAllDeliveryDelays().isEmpty());
+    }
+
+    private static DelayStatistics statistics(DelayHistogram histogram, int windowMinutes) {
+        return statistics(histogram, NOW, windowMinutes);
+    }
+
+    private static DelayStatistics statistics(DelayHistogram histogram, long now, int windowMinutes) {
+        long[] counts = new long[DelayHistogram.BUCKETS];
+        long max = histogram.addTo(counts, windowMinutes, now);
+        return DelayHistogram.statistics(counts, max);
+    }
+
+    private static void assertClose(long expected, long actual) {
+        assertTrue(actual + " should be close to " + expected, actual >= expected && actual <= expected + expected / 16);
+    }
+
+    private static ReceivedMessage message(MessageTypeEnum type, Integer delayMillis) {
+        ReceivedMessage message = new ReceivedMessage();
+        message.setType(type);
+        message.setReceivedMillis(NOW);
+        if (delayMillis != null) {
+            message.setDeliveryDelay(delayMillis);
+        }
+        return message;
+    }
+}
@@ -19,7 +19,6 @@ import org.entur.demo.ukur.entities.ReceivedMessage;
 import org.entur.demo.ukur.entities.Subscription;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.InjectMocks;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,8 +43,7 @@ import static org.junit.Assert.assertEquals;
 public class HumanReadableTest {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    @InjectMocks
-    private MessageService messageService;
+    private final MessageService messageService = MessageService.options().build();
 
     @Test
     public void testDelayedTo() throws JAXBException {
@@ -0,0 +1,194 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.JourneyStatus;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri20.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class JourneyStateViewTest {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Test
+    public void followsReceivedMessages() {
+        MessageService messageService = MessageService.options().ingestMode("stax").build();
+        JourneyStateView view = new JourneyStateView(messageService, 60, 5);
+        view.start();
+        messageService.addPushMessage("1", SiriStaxReaderTest.ET_DELIVERY.getBytes(StandardCharsets.UTF_8));
+
+        JourneyStatus status = view.get("313:2018-02-07");
+        assertNotNull(status);
+        assertEquals("NSB:Line:R10", status.getLineRef());
+        assertEquals(2, status.getCalls().size());
+        JourneyStatus.Call asker = status.getCalls().get(0);
+        assertEquals("NSR:Quay:697", asker.getStopPointRef());
+        assertTrue(asker.isRecorded());
+        assertEquals(12, asker.getExpectedDeparture().getMinute());
+        JourneyStatus.Call osloS = status.getCalls().get(1);
+        assertTrue(osloS.isDelayed());
+        assertTrue(osloS.isTrackChange());
+        assertEquals(48, osloS.getExpectedArrival().getMinute());
+        assertEquals(1, view.getByLineRef("NSB:Line:R10").size());
+        assertTrue(view.getByLineRef("NSB:Line:R11").isEmpty());
+    }
+
+    @Test
+    public void mergesPartialUpdates() {
+        JourneyStateView view = new JourneyStateView(MessageService.options().ingestMode("stax").build(), 60, 5);
+        ZonedDateTime start = ZonedDateTime.parse("2018-02-07T10:00:00+01:00");
+        view.update(journey(estimated("A", start, start), estimated("B", start.plusMinutes(10), null), estimated("C", start.plusMinutes(20), null)));
+        view.update(journey(recorded("A", start.plusMinutes(2)), estimated("B", start.plusMinutes(10), start.plusMinutes(13))));
+        view.update(journey(estimated("B2", start.plusMinutes(15), null)));
+
+        JourneyStatus status = view.get("1:2018-02-07");
+        assertEquals(3, status.getUpdates());
+        assertEquals("A,B,B2,C", String.join(",", status.getCalls().stream().map(JourneyStatus.Call::getStopPointRef).toList()));
+        JourneyStatus.Call a = status.getCalls().get(0);
+        assertTrue(a.isRecorded());
+        assertEquals(2, a.getExpectedDeparture().getMinute());
+        assertEquals(13, status.getCalls().get(1).getExpectedDeparture().getMinute());
+        assertNull(status.getCalls().get(3).getExpectedDeparture());
+        assertFalse(status.isComplete());
+    }
+
+    @Test
+    public void removesCompletedJourneys() {
+        JourneyStateView view = new JourneyStateView(MessageService.options().ingestMode("stax").build(), 60, 0);
+        ZonedDateTime future = ZonedDateTime.now().plusHours(1);
+        view.update(journey(estimated("A", future, null)));
+        view.removeExpired();
+        assertEquals(1, view.size());
+
+        view.update(journey(recorded("A", future)));
+        assertNull(view.get("1:2018-02-07"));
+        assertTrue(view.getByLineRef("NSB:Line:L1").isEmpty());
+        view.removeExpired();
+        assertEquals(0, view.size());
+    }
+
+    @Test
+    public void keepsCompletedJourneysForTheirRetention() {
+        JourneyStateView view = new JourneyStateView(MessageService.options().ingestMode("stax").build(), 60, 5);
+        view.update(journey(recorded("A", ZonedDateTime.now().plusHours(1))));
+        assertTrue(view.get("1:2018-02-07").isComplete());
+        assertEquals(1, view.getByLineRef("NSB:Line:L1").size());
+        view.removeExpired();
+        assertEquals(1, view.size());
+    }
+
+    @Test
+    public void keysFramedJourneysByDataFrame() {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        FramedVehicleJourneyRefStructure framed = new FramedVehicleJourneyRefStructure();
+        DataFrameRefStructure dataFrame = new DataFrameRefStructure();
+        dataFrame.setValue("2018-02-07");
+        framed.setDataFrameRef(dataFrame);
+        framed.setDatedVehicleJourneyRef("313");
+        journey.setFramedVehicleJourneyRef(framed);
+        assertEquals("2018-02-07:313", JourneyStateView.journeyRef(journey));
+        assertNull(JourneyStateView.journeyRef(new EstimatedVehicleJourney()));
+    }
+
+    /**
+     * Run with: mvn test -Dtest=JourneyStateViewTest -Dbenchmark=true
+     */
+    @Test
+    public void benchmarkUpdates() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        JourneyStateView view = new JourneyStateView(MessageService.options().ingestMode("stax").build(), 60, 5);
+        ZonedDateTime start = ZonedDateTime.now();
+        int journeys = 5_000;
+        int updates = 200_000;
+        EstimatedVehicleJourney[] received = new EstimatedVehicleJourney[journeys];
+        for (int j = 0; j < journeys; j++) {
+            EstimatedCall[] calls = new EstimatedCall[20];
+            for (int c = 0; c < calls.length; c++) {
+                calls[c] = estimated("NSR:Quay:" + c, start.plusMinutes(c * 3), start.plusMinutes(c * 3 + 1));
+            }
+            received[j] = journey((Object[]) calls);
+            received[j].getDatedVehicleJourneyRef().setValue(j + ":2018-02-07");
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            view.update(received[i % journeys]);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        begin = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < 10_000; i++) {
+            found += view.get((i % journeys) + ":2018-02-07").getCalls().size();
+        }
+        long lookupMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin);
+        logger.info("{} updates of {} journeys with 20 calls in {} ms ({} updates/s), lookup {} us/operation",
+                updates, journeys, millis, updates * 1000L / Math.max(1, millis), lookupMicros / 10_000.0);
+        assertEquals(200_000, found);
+    }
+
+    private static EstimatedVehicleJourney journey(Object... calls) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue("NSB:Line:L1");
+        journey.setLineRef(lineRef);
+        DatedVehicleJourneyRef journeyRef = new DatedVehicleJourneyRef();
+        journeyRef.setValue("1:2018-02-07");
+        journey.setDatedVehicleJourneyRef(journeyRef);
+        for (Object call : calls) {
+            if (call instanceof RecordedCall) {
+                if (journey.getRecordedCalls() == null) {
+                    journey.setRecordedCalls(new EstimatedVehicleJourney.RecordedCalls());
+                }
+                journey.getRecordedCalls().getRecordedCalls().add((RecordedCall) call);
+            } else {
+                if (journey.getEstimatedCalls() == null) {
+                    journey.setEstimatedCalls(new EstimatedVehicleJourney.EstimatedCalls());
+                }
+                journey.getEstimatedCalls().getEstimatedCalls().add((EstimatedCall) call);
+            }
+        }
+        return journey;
+    }
+
+    private static EstimatedCall estimated(String stop, ZonedDateTime aimed, ZonedDateTime expected) {
+        EstimatedCall call = new EstimatedCall();
+        call.setStopPointRef(stopPointRef(stop));
+        call.setAimedDepartureTime(aimed);
+        call.setExpectedDepartureTime(expected);
+        return call;
+    }
+
+    private static RecordedCall recorded(String stop, ZonedDateTime actual) {
+        RecordedCall call = new RecordedCall();
+        call.setStopPointRef(stopPointRef(stop));
+        call.setActualDepartureTime(actual);
+        return call;
+    }
+
+    private static StopPointRef stopPointRef(String value) {
+        StopPointRef ref = new StopPointRef();
+        ref.setValue(value);
+        return ref;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import com.google.common.collect.EvictingQueue;
+import com.google.common.collect.Queues;
+import org.entur.demo.ukur.entities.ReceivedMessage;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageBufferTest {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Test
+    public void keepsTheNewestInInsertionOrder() {
+        MessageBuffer buffer = new MessageBuffer(3);
+        assertEquals(0, buffer.snapshot().size());
+        for (int i = 0; i < 5; i++) {
+            buffer.add(message(i));
+        }
+        assertEquals(3, buffer.size());
+        assertEquals(List.of("2", "3", "4"), texts(buffer.snapshot()));
+        assertEquals(List.of("4", "3", "2"), texts(buffer.newestFirst()));
+    }
+
+    @Test
+    public void readsFromCursor() {
+        MessageBuffer buffer = new MessageBuffer(4);
+        for (int i = 0; i < 6; i++) {
+            buffer.add(message(i));
+        }
+        assertEquals(2, buffer.oldest());
+        assertEquals(5, buffer.latest());
+        assertEquals(List.of("5", "4"), texts(buffer.before(Long.MAX_VALUE, 2)));
+        assertEquals(List.of("3", "2"), texts(buffer.before(4, 10)));
+        assertEquals(List.of(), texts(buffer.before(2, 10)));
+        assertEquals(List.of("2", "3"), texts(buffer.after(0, 2)));
+        assertEquals(List.of("4", "5"), texts(buffer.after(3, 10)));
+        assertEquals(List.of(), texts(buffer.after(5, 10)));
+        assertEquals(3, buffer.after(2, 1).get(0).getSequence());
+    }
+
+    @Test
+    public void removesOldestToKeepWithinLimits() {
+        MessageBuffer buffer = new MessageBuffer(10);
+        for (int i = 0; i < 6; i++) {
+            ReceivedMessage message = message(i);
+            message.setFootprint(100);
+            message.setReceivedMillis(System.currentTimeMillis() - (10 - i) * 60_000);
+            assertEquals(100, buffer.add(message));
+        }
+        assertEquals(600, buffer.bytes());
+        assertEquals(200, buffer.removeReceivedBefore(System.currentTimeMillis() - 510_000));
+        assertEquals(List.of("2", "3", "4", "5"), texts(buffer.snapshot()));
+        assertEquals(200, buffer.removeToBytes(250));
+        assertEquals(List.of("5", "4"), texts(buffer.newestFirst()));
+        assertEquals(100, buffer.removeToBytes(0));
+        assertEquals(List.of("5"), texts(buffer.newestFirst()));
+        assertEquals(100, buffer.removeOldest());
+        assertEquals(0, buffer.removeOldest());
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.bytes());
+        assertEquals(Long.MAX_VALUE, buffer.oldestReceivedMillis());
+    }
+
+    @Test
+    public void readersAlwaysSeeConsecutiveMessages() throws Exception {
+        int capacity = 16;
+        int messages = 500_000;
+        MessageBuffer buffer = new MessageBuffer(capacity);
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        List<Future<Long>> readers = new ArrayList<>();
+        for (int r = 0; r < 4; r++) {
+            readers.add(executor.submit(() -> {
+                long snapshots = 0;
+                long lastSeen = -1;
+                while (!done.get()) {
+                    List<ReceivedMessage> snapshot = (snapshots % 2 == 0) ? buffer.snapshot() : reversed(buffer.newestFirst());
+                    assertTrue(snapshot.size() <= capacity);
+                    for (int i = 1; i < snapshot.size(); i++) {
+                        assertEquals(sequence(snapshot.get(i - 1)) + 1, sequence(snapshot.get(i)));
+                    }
+                    if (!snapshot.isEmpty()) {
+                        long newest = sequence(snapshot.get(snapshot.size() - 1));
+                        assertTrue("snapshots must not go back in time", newest >= lastSeen);
+                        lastSeen = newest;
+                    }
+                    snapshots++;
+                }
+                return snapshots;
+            }));
+        }
+        Future<?> writer = executor.submit(() -> {
+            for (int i = 0; i < messages; i++) {
+                buffer.add(message(i));
+            }
+            done.set(true);
+        });
+        writer.get(1, TimeUnit.MINUTES);
+        for (Future<Long> reader : readers) {
+            assertTrue(reader.get(1, TimeUnit.MINUTES) > 0);
+        }
+        executor.shutdown();
+        assertEquals(List.of(String.valueOf(messages - 1)), texts(buffer.newestFirst().subList(0, 1)));
+    }
+
+    @Test
+    public void concurrentWritersAreSerialized() throws Exception {
+        MessageBuffer buffer = new MessageBuffer(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int w = 0; w < 4; w++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 200; i++) {
+                    buffer.add(message(i));
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(800, buffer.size());
+        assertEquals(800, buffer.snapshot().size());
+    }
+
+    /**
+     * Run with: mvn test -Dtest=MessageBufferTest -Dbenchmark=true
+     */
+    @Test
+    public void benchmarkAgainstSynchronizedEvictingQueue() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        Queue<ReceivedMessage> queue = Queues.synchronizedQueue(EvictingQueue.create(MessageService.MAX_SIZE_PER_SUBSCRIPTION));
+        benchmark("synchronized EvictingQueue", queue::add, () -> {
+            synchronized (queue) { //as the old getMessages should have done
+                List<ReceivedMessage> list = new ArrayList<>(queue);
+                list.sort((a, b) -> b.getReceived().compareTo(a.getReceived()));
+                return list;
+            }
+        });
+        MessageBuffer buffer = new MessageBuffer(MessageService.MAX_SIZE_PER_SUBSCRIPTION);
+        benchmark("MessageBuffer", buffer::add, buffer::newestFirst);
+    }
+
+    private void benchmark(String name, Consumer<ReceivedMessage> writer, Supplier<Collection<ReceivedMessage>> reader) throws Exception {
+        long durationMillis = 3000;
+        AtomicBoolean done = new AtomicBoolean();
+        LongAdder writes = new LongAdder();
+        LongAdder reads = new LongAdder();
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        ReceivedMessage message = message(1);
+        executor.execute(() -> {
+            while (!done.get()) {
+                writer.accept(message);
+                writes.increment();
+            }
+        });
+        for (int r = 0; r < 4; r++) {
+            executor.execute(() -> {
+                while (!done.get()) {
+                    reader.get();
+                    reads.increment();
+                }
+            });
+        }
+        Thread.sleep(durationMillis);
+        done.set(true);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        logger.info("{}: {} writes/s and {} snapshots/s with 4 readers", name,
+                writes.sum() * 1000 / durationMillis, reads.sum() * 1000 / durationMillis);
+    }
+
+    private static ReceivedMessage message(long sequence) {
+        ReceivedMessage message = new ReceivedMessage();
+        message.setHumanReadable(Long.toString(sequence));
+        return message;
+    }
+
+    private static long sequence(ReceivedMessage message) {
+        return Long.parseLong(message.getHumanReadable());
+    }
+
+    private static List<String> texts(List<ReceivedMessage> messages) {
+        return messages.stream().map(ReceivedMessage::getHumanReadable).toList();
+    }
+
+    private static List<ReceivedMessage> reversed(List<ReceivedMessage> messages) {
+        List<ReceivedMessage> result = new ArrayList<>(messages);
+        Collections.reverse(result);
+        return result;
+    }
+}
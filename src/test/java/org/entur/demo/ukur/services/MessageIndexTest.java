@@ -0,0 +1,170 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.entur.demo.ukur.entities.MessageSearchResult;
+import org.entur.demo.ukur.services.MessageIndex.Field;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageIndexTest {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Test
+    public void findsMessagesWithAllTerms() {
+        MessageService messageService = MessageService.options().ingestMode("stax").build();
+        MessageIndex index = new MessageIndex(messageService, new StopPlaceService(Map.of()), true);
+        index.start();
+        messageService.addPushMessage("a", journey("NSB:Line:L14", "NSR:Quay:1", "NSR:Quay:2"));
+        messageService.addPushMessage("a", journey("NSB:Line:L14", "NSR:Quay:2", "NSR:Quay:3"));
+        messageService.addPushMessage("b", journey("RUT:Line:1", "NSR:Quay:1"));
+        messageService.addPushMessage("b", situation("42", "NSB:Line:L14", "NSR:Quay:1"));
+
+        assertEquals(List.of("b", "a"), subscriptions(index.search(Map.of(Field.STOP_REF, "NSR:Quay:1", Field.LINE_REF, "NSB:Line:L14"), Long.MIN_VALUE, Long.MAX_VALUE, 10)));
+        assertEquals(List.of("a", "a"), subscriptions(index.search(Map.of(Field.LINE_REF, "NSB:Line:L14", Field.TYPE, "ET"), Long.MIN_VALUE, Long.MAX_VALUE, 10)));
+        assertEquals(List.of("b"), subscriptions(index.search(Map.of(Field.SITUATION_NUMBER, "42"), Long.MIN_VALUE, Long.MAX_VALUE, 10)));
+        assertEquals(2, index.search(Map.of(Field.CODESPACE, "NSB"), Long.MIN_VALUE, Long.MAX_VALUE, 10).getTotal());
+        assertEquals(1, index.search(Map.of(Field.CODESPACE, "RUT", Field.TYPE, "SX"), Long.MIN_VALUE, Long.MAX_VALUE, 10).getTotal());
+
+        MessageSearchResult limited = index.search(Map.of(Field.STOP_REF, "NSR:Quay:1"), Long.MIN_VALUE, Long.MAX_VALUE, 1);
+        assertEquals(3, limited.getTotal());
+        assertEquals(1, limited.getHits().size());
+        assertEquals(0, index.search(Map.of(Field.STOP_REF, "NSR:Quay:1"), Long.MIN_VALUE, System.currentTimeMillis() - 60_000, 10).getTotal());
+        assertEquals(0, index.search(Map.of(Field.STOP_REF, "NSR:Quay:3", Field.LINE_REF, "RUT:Line:1"), Long.MIN_VALUE, Long.MAX_VALUE, 10).getTotal());
+        assertEquals(0, index.search(Map.of(Field.STOP_REF, "NSR:Quay:4"), Long.MIN_VALUE, Long.MAX_VALUE, 10).getTotal());
+    }
+
+    @Test
+    public void findsJourneysByTheStopPlaceOfTheirQuays() {
+        MessageService messageService = MessageService.options().ingestMode("stax").build();
+        StopPlaceService stopPlaces = new StopPlaceService(Map.of("NSR:StopPlace:337", List.of("NSR:Quay:571", "NSR:Quay:572")));
+        MessageIndex index = new MessageIndex(messageService, stopPlaces, true);
+        index.start();
+        messageService.addPushMessage("a", journey("NSB:Line:L14", "NSR:Quay:697", "NSR:Quay:571"));
+        messageService.addPushMessage("a", journey("NSB:Line:L13", "NSR:Quay:572"));
+        messageService.addPushMessage("b", situation("7", "NSB:Line:L14", "NSR:Quay:572"));
+
+        assertEquals(List.of("b", "a"), subscriptions(index.search(Map.of(Field.STOP_REF, "NSR:StopPlace:337", Field.LINE_REF, "NSB:Line:L14"), Long.MIN_VALUE, Long.MAX_VALUE, 10)));
+        assertEquals(3, index.search(Map.of(Field.STOP_REF, "NSR:StopPlace:337"), Long.MIN_VALUE, Long.MAX_VALUE, 10).getTotal());
+        assertEquals(1, index.search(Map.of(Field.STOP_REF, "NSR:Quay:571"), Long.MIN_VALUE, Long.MAX_VALUE, 10).getTotal());
+    }
+
+    @Test
+    public void followsRemovalsFromTheStore() {
+        MessageService messageService = MessageService.options().ingestMode("stax")
+                .retention(new RetentionPolicy(5, 0, 0, Long.MAX_VALUE, false)).build();
+        MessageIndex index = new MessageIndex(messageService, new StopPlaceService(Map.of()), true);
+        index.start();
+        for (int i = 0; i < 20; i++) {
+            messageService.addPushMessage("a", journey("NSB:Line:L" + i, "NSR:Quay:1"));
+        }
+        messageService.addPushMessage("b", journey("NSB:Line:L0", "NSR:Quay:1"));
+        assertEquals(6, index.size());
+        assertEquals(6, index.search(Map.of(Field.STOP_REF, "NSR:Quay:1"), Long.MIN_VALUE, Long.MAX_VALUE, 10).getTotal());
+        assertEquals(List.of("b"), subscriptions(index.search(Map.of(Field.LINE_REF, "NSB:Line:L0"), Long.MIN_VALUE, Long.MAX_VALUE, 10)));
+        assertEquals("removed lines are dropped", 6 + 1 + 1 + 1, index.termCount());
+
+        messageService.removeMessages("a");
+        assertEquals(1, index.size());
+        messageService.clearAll();
+        assertEquals(0, index.size());
+        assertEquals(0, index.termCount());
+    }
+
+    @Test
+    public void indexesPayloadsStoredAgainWithoutParsing() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MessageService messageService = MessageService.options().ingestMode("stax").dedup(true).metrics(new IngestMetrics(registry)).build();
+        MessageIndex index = new MessageIndex(messageService, new StopPlaceService(Map.of()), true);
+        index.start();
+        byte[] payload = journey("NSB:Line:L14", "NSR:Quay:1");
+        messageService.addPushMessage("a", payload);
+        messageService.addPushMessage("b", payload);
+        assertEquals(1, messageService.getSharedPayloadCount());
+        assertEquals(List.of("b", "a"), subscriptions(index.search(Map.of(Field.LINE_REF, "NSB:Line:L14"), Long.MIN_VALUE, Long.MAX_VALUE, 10)));
+        assertEquals(List.of("b", "a"), subscriptions(index.search(Map.of(Field.STOP_REF, "NSR:Quay:1", Field.TYPE, "ET"), Long.MIN_VALUE, Long.MAX_VALUE, 10)));
+        assertEquals("parsed once", 1, registry.get("ukur.ingest.stage").tag("stage", "unmarshal").timer().count());
+
+        messageService.removeMessages("a");
+        messageService.addPushMessage("c", payload);
+        assertEquals("parsed again when the first messages are gone", 2, registry.get("ukur.ingest.stage").tag("stage", "unmarshal").timer().count());
+        assertEquals(List.of("c", "b"), subscriptions(index.search(Map.of(Field.LINE_REF, "NSB:Line:L14"), Long.MIN_VALUE, Long.MAX_VALUE, 10)));
+    }
+
+    /**
+     * Run with: mvn test -Dtest=MessageIndexTest -Dbenchmark=true
+     */
+    @Test
+    public void benchmarkSearch() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        int subscriptions = 200;
+        int perSubscription = 500;
+        MessageService messageService = MessageService.options().ingestMode("stax")
+                .retention(new RetentionPolicy(perSubscription, 0, 0, Long.MAX_VALUE, false)).build();
+        MessageIndex index = new MessageIndex(messageService, new StopPlaceService(Map.of()), true);
+        index.start();
+        long start = System.nanoTime();
+        for (int i = 0; i < subscriptions * perSubscription; i++) {
+            messageService.addPushMessage("subscription-" + (i % subscriptions),
+                    journey("NSB:Line:L" + (i % 50), "NSR:Quay:" + (i % 1000), "NSR:Quay:" + ((i + 1) % 1000), "NSR:Quay:" + ((i + 2) % 1000)));
+        }
+        long ingestMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int queries = 100_000;
+        int found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            found += index.search(Map.of(Field.LINE_REF, "NSB:Line:L" + (i % 50), Field.STOP_REF, "NSR:Quay:" + (i % 1000), Field.TYPE, "ET"),
+                    Long.MIN_VALUE, Long.MAX_VALUE, 10).getTotal();
+        }
+        long nanos = System.nanoTime() - start;
+        logger.info("Indexed {} messages with {} terms in {} ms, line+stop+type search {} us/operation",
+                index.size(), index.termCount(), ingestMillis, String.format("%.2f", nanos / 1000.0 / queries));
+        assertTrue(found > 0);
+    }
+
+    private static List<String> subscriptions(MessageSearchResult result) {
+        return result.getHits().stream().map(MessageSearchResult.Hit::getSubscriptionId).toList();
+    }
+
+    private static byte[] journey(String lineRef, String... stopPointRefs) {
+        StringBuilder xml = new StringBuilder("<EstimatedVehicleJourney xmlns=\"http://www.siri.org.uk/siri\"><LineRef>")
+                .append(lineRef).append("</LineRef><EstimatedCalls>");
+        for (String stopPointRef : stopPointRefs) {
+            xml.append("<EstimatedCall><StopPointRef>").append(stopPointRef).append("</StopPointRef></EstimatedCall>");
+        }
+        return xml.append("</EstimatedCalls></EstimatedVehicleJourney>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] situation(String number, String lineRef, String stopPointRef) {
+        return ("<PtSituationElement xmlns=\"http://www.siri.org.uk/siri\">" +
+                "<ParticipantRef>RUT</ParticipantRef><SituationNumber>" + number + "</SituationNumber>" +
+                "<Affects><Networks><AffectedNetwork><AffectedLine><LineRef>" + lineRef + "</LineRef></AffectedLine></AffectedNetwork></Networks>" +
+                "<StopPoints><AffectedStopPoint><StopPointRef>" + stopPointRef + "</StopPointRef></AffectedStopPoint></StopPoints>" +
+                "</Affects></PtSituationElement>").getBytes(StandardCharsets.UTF_8);
+    }
+}
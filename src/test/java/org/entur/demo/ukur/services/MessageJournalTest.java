@@ -0,0 +1,210 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.CompressedXml;
+import org.entur.demo.ukur.entities.MessageTypeEnum;
+import org.entur.demo.ukur.entities.ReceivedMessage;
+import org.entur.demo.ukur.services.MessageIndex.Field;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.entur.demo.ukur.services.MessageServiceTest.etBatch;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageJournalTest {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<MessageJournal> journals = new ArrayList<>();
+
+    @After
+    public void stop() {
+        journals.forEach(MessageJournal::stop);
+    }
+
+    @Test
+    public void messagesSurviveRestart() throws IOException {
+        MessageService messageService = start(1_000_000).messageService;
+        messageService.addPushMessage("ET", etBatch(3));
+        messageService.addPushMessage("SX", SiriStaxReaderTest.SX_DELIVERY.getBytes(StandardCharsets.UTF_8));
+        messageService.addPushMessage("GONE", etBatch(1));
+        messageService.removeMessages("GONE");
+        List<ReceivedMessage> before = new ArrayList<>(messageService.getMessages("ET"));
+        restart();
+
+        MessageService restarted = start(1_000_000).messageService;
+        assertEquals(3, restarted.getMessageCount("ET"));
+        assertEquals(1, restarted.getMessageCount("SX"));
+        assertEquals(0, restarted.getMessageCount("GONE"));
+        List<ReceivedMessage> after = new ArrayList<>(restarted.getMessages("ET"));
+        for (int i = 0; i < before.size(); i++) {
+            assertEquals(before.get(i).getRawXmlString(), after.get(i).getRawXmlString());
+            assertEquals(before.get(i).getHumanReadable(), after.get(i).getHumanReadable());
+            assertEquals(before.get(i).getReceivedMillis(), after.get(i).getReceivedMillis());
+            assertEquals(before.get(i).getDeliveryDelay(), after.get(i).getDeliveryDelay());
+            assertEquals(MessageTypeEnum.ET, after.get(i).getType());
+        }
+        ReceivedMessage situation = restarted.getMessages("SX").iterator().next();
+        assertEquals(MessageTypeEnum.SX, situation.getType());
+        assertNotNull(situation.getHumanReadable());
+        assertNotNull(restarted.getLastMessageReceived("ET"));
+    }
+
+    @Test
+    public void snapshotReplacesOlderSegments() throws IOException {
+        Started started = start(2_000);
+        for (int i = 0; i < 20; i++) {
+            started.messageService.addPushMessage("ET", etBatch(2));
+        }
+        assertTrue(files(".log") > 1);
+        started.journal.snapshot();
+        assertEquals(1, files(".snap"));
+        assertEquals(1, files(".log"));
+        started.messageService.addPushMessage("ET", etBatch(1));
+        restart();
+
+        MessageService restarted = start(2_000).messageService;
+        assertEquals(41, restarted.getMessageCount("ET"));
+        assertEquals("NSB:Line:L0 has deviations", restarted.getMessages("ET").iterator().next().getHumanReadable());
+    }
+
+    @Test
+    public void ignoresIncompleteLastRecord() throws IOException {
+        MessageService messageService = start(1_000_000).messageService;
+        messageService.addPushMessage("ET", etBatch(1));
+        messageService.addPushMessage("ET", etBatch(1));
+        restart();
+        Path segment;
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            segment = files.filter(f -> f.toString().endsWith(".log")).findFirst().orElseThrow();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(file.length() - 10); //as if we crashed while writing the last record
+        }
+        assertEquals(1, start(1_000_000).messageService.getMessageCount("ET"));
+    }
+
+    @Test
+    public void ignoresAppendsAfterStop() throws IOException {
+        Started started = start(1_000_000);
+        started.messageService.addPushMessage("ET", etBatch(1));
+        started.journal.stop();
+        CompressedXml body = CompressedXml.compress(etBatch(1), null);
+        ReceivedMessage late = new ReceivedMessage(body);
+        late.setType(MessageTypeEnum.ET);
+        started.journal.appendDelivery("ET", List.of(late), body); //as an ingest worker that still had the journal
+        started.journal.snapshot();
+        restart();
+
+        assertEquals(1, start(1_000_000).messageService.getMessageCount("ET"));
+    }
+
+    /**
+     * Run with: mvn test -Dtest=MessageJournalTest -Dbenchmark=true
+     * <p>
+     * On one core: appending takes about 0.5 s, replaying about 11 s as every delivery is parsed again.
+     */
+    @Test
+    public void benchmarkReplay() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        int subscriptions = 10_000;
+        int deliveries = 100_000;
+        int journeys = 10;
+        Started started = start(64 * 1024 * 1024);
+        CompressedXml body = CompressedXml.compress(etBatch(journeys), null);
+        long start = System.currentTimeMillis();
+        for (int d = 0; d < deliveries; d++) {
+            List<ReceivedMessage> messages = new ArrayList<>();
+            for (int i = 0; i < journeys; i++) {
+                ReceivedMessage message = new ReceivedMessage(body);
+                message.setType(MessageTypeEnum.ET);
+                message.setDeliveryIndex(i);
+                messages.add(message);
+            }
+            started.journal.appendDelivery("subscription-" + (d % subscriptions), messages, body);
+        }
+        logger.info("Appended {} messages in {} ms", deliveries * journeys, System.currentTimeMillis() - start);
+        restart();
+
+        start = System.currentTimeMillis();
+        MessageService restarted = start(64 * 1024 * 1024).messageService;
+        logger.info("Replayed {} messages in {} ms", deliveries * journeys, System.currentTimeMillis() - start);
+        assertEquals(100, restarted.getMessageCount("subscription-0"));
+    }
+
+    @Test
+    public void restoredMessagesAreIndexed() throws IOException {
+        MessageService messageService = start(1_000_000).messageService;
+        messageService.addPushMessage("ET", etBatch(3));
+        messageService.addPushMessage("SX", SiriStaxReaderTest.SX_DELIVERY.getBytes(StandardCharsets.UTF_8));
+        restart();
+
+        RetentionPolicy retention = new RetentionPolicy(100, 0, 0, 0, false);
+        MessageService restarted = MessageService.options().ingestMode("stax").retention(retention).build();
+        MessageIndex index = new MessageIndex(restarted, new StopPlaceService(Map.of()), true);
+        index.start();
+        MessageJournal journal = new MessageJournal(restarted, retention, true, folder.getRoot().getPath(), 1_000_000, 10);
+        journal.start();
+        journals.add(journal);
+        assertEquals(3, index.search(Map.of(Field.TYPE, "ET"), Long.MIN_VALUE, Long.MAX_VALUE, 10).getTotal());
+        assertEquals(1, index.search(Map.of(Field.TYPE, "SX"), Long.MIN_VALUE, Long.MAX_VALUE, 10).getTotal());
+        assertNotNull(restarted.getMessages("ET").iterator().next().getHumanReadable());
+    }
+
+    private Started start(long segmentBytes) throws IOException {
+        RetentionPolicy retention = new RetentionPolicy(100, 0, 0, 0, false);
+        MessageService messageService = MessageService.options().ingestMode("stax").retention(retention).build();
+        MessageJournal journal = new MessageJournal(messageService, retention, true, folder.getRoot().getPath(), segmentBytes, 10);
+        journal.start();
+        journals.add(journal);
+        return new Started(messageService, journal);
+    }
+
+    private void restart() {
+        stop();
+        journals.clear();
+    }
+
+    private long files(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.filter(f -> f.toString().endsWith(suffix)).count();
+        }
+    }
+
+    private record Started(MessageService messageService, MessageJournal journal) {
+    }
+}
@@ -15,19 +15,30 @@
 
 package org.entur.demo.ukur.services;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.entur.demo.ukur.entities.MessagePage;
 import org.entur.demo.ukur.entities.MessageTypeEnum;
 import org.entur.demo.ukur.entities.ReceivedMessage;
+import org.entur.demo.ukur.entities.Subscription;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 import uk.org.siri.siri20.EstimatedVehicleJourney;
+import tools.jackson.databind.json.JsonMapper;
 import uk.org.siri.siri20.PtSituationElement;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.entur.demo.ukur.services.MessageService.MAX_SIZE_PER_SUBSCRIPTION;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(MockitoJUnitRunner.class)
 public class MessageServiceTest {
@@ -35,8 +46,7 @@ public class MessageServiceTest {
     @Mock @SuppressWarnings("unused")
     private SubscriptionService subscriptionServiceMock;
 
-    @InjectMocks
-    private MessageService messageService;
+    private final MessageService messageService = MessageService.options().build();
 
     @Test
     public void verifyEviction() {
@@ -62,6 +72,315 @@ public class MessageServiceTest {
         assertNotNull(message.getXmlString());
     }
 
+    @Test
+    public void keepsRawPayloadAndFormatsOnDemand() {
+        String subscriptionId = "RAW-1";
+        String xml = "<PtSituationElement xmlns=\"http://www.siri.org.uk/siri\"><Description xml:lang=\"EN\">Delayed</Description></PtSituationElement>";
+        messageService.addPushMessage(subscriptionId, xml.getBytes(StandardCharsets.UTF_8));
+        ReceivedMessage message = messageService.getMessages(subscriptionId).iterator().next();
+        assertEquals(xml, message.getRawXmlString());
+        assertTrue(message.getXmlString().contains("\n"));
+        assertEquals("Delayed", message.getHumanReadable());
+    }
+
+    @Test
+    public void batchIsFannedOut() {
+        for (String mode : new String[]{"jaxb", "stax"}) {
+            MessageService service = MessageService.options().ingestMode(mode).maxBatchSize(10).build();
+            service.addPushMessage("BATCH-1", etBatch(3));
+            assertEquals(3, service.getMessageCount("BATCH-1"));
+            for (ReceivedMessage message : service.getMessages("BATCH-1")) {
+                assertEquals(MessageTypeEnum.ET, message.getType());
+                assertTrue(message.getHumanReadable().startsWith("NSB:Line:L"));
+                assertNotNull(message.getDeliveryDelay());
+            }
+        }
+    }
+
+    @Test
+    public void pagesWithCursorAndSinceToken() {
+        String subscriptionId = "PAGE-1";
+        assertEquals(-1, messageService.getMessagePage(subscriptionId, null, null, 10).getLatest());
+        messageService.addPushMessage(subscriptionId, etBatch(5));
+
+        MessagePage first = messageService.getMessagePage(subscriptionId, null, null, 2);
+        assertEquals(5, first.getTotal());
+        assertEquals(List.of(4L, 3L), sequences(first));
+        assertEquals(4, first.getLatest());
+        MessagePage last = messageService.getMessagePage(subscriptionId, 1L, null, 2);
+        assertEquals(List.of(0L), sequences(last));
+        assertNull(last.getOlder());
+        assertEquals(List.of(2L, 1L), sequences(messageService.getMessagePage(subscriptionId, first.getOlder(), null, 2)));
+
+        assertTrue(messageService.getMessagePage(subscriptionId, null, first.getLatest(), 10).getMessages().isEmpty());
+        messageService.addPushMessage(subscriptionId, etBatch(2));
+        MessagePage news = messageService.getMessagePage(subscriptionId, null, first.getLatest(), 10);
+        assertEquals(List.of(5L, 6L), sequences(news));
+        assertEquals(6, news.getLatest());
+
+        messageService.removeMessages(subscriptionId);
+        messageService.addPushMessage(subscriptionId, etBatch(1));
+        assertEquals(List.of(0L), sequences(messageService.getMessagePage(subscriptionId, null, news.getLatest(), 10)));
+    }
+
+    @Test
+    public void versionChangesOnlyWhenMessagesChange() {
+        String subscriptionId = "VERSION-1";
+        assertEquals(0, messageService.getVersion(subscriptionId));
+        messageService.addPushMessage(subscriptionId, new PtSituationElement());
+        long added = messageService.getVersion(subscriptionId);
+        assertTrue(added > 0);
+        messageService.getMessagePage(subscriptionId, null, null, 10);
+        assertEquals(added, messageService.getVersion(subscriptionId));
+        assertTrue(messageService.getLastModifiedMillis(subscriptionId) > 0);
+
+        messageService.addPushMessage("VERSION-2", new PtSituationElement());
+        assertEquals(added, messageService.getVersion(subscriptionId));
+        messageService.removeMessages(subscriptionId);
+        long removed = messageService.getVersion(subscriptionId);
+        assertTrue(removed > added);
+        messageService.addPushMessage(subscriptionId, new PtSituationElement());
+        assertTrue(messageService.getVersion(subscriptionId) > removed);
+    }
+
+    @Test
+    public void goesThroughMessagesFilteredByTypeAndTime() {
+        String subscriptionId = "EXPORT-1";
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 80; i++) {
+            messageService.addPushMessage(subscriptionId, i % 4 == 0 ? new EstimatedVehicleJourney() : new PtSituationElement());
+        }
+        List<ReceivedMessage> all = new ArrayList<>();
+        messageService.forEachMessage(subscriptionId, null, Long.MIN_VALUE, Long.MAX_VALUE, all::add);
+        assertEquals(80, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(i, all.get(i).getSequence());
+        }
+        List<ReceivedMessage> journeys = new ArrayList<>();
+        messageService.forEachMessage(subscriptionId, MessageTypeEnum.ET, Long.MIN_VALUE, Long.MAX_VALUE, journeys::add);
+        assertEquals(20, journeys.size());
+        assertTrue(journeys.stream().allMatch(m -> m.getType() == MessageTypeEnum.ET));
+
+        List<ReceivedMessage> none = new ArrayList<>();
+        messageService.forEachMessage(subscriptionId, null, Long.MIN_VALUE, start, none::add);
+        messageService.forEachMessage("unknown", null, Long.MIN_VALUE, Long.MAX_VALUE, none::add);
+        assertTrue(none.isEmpty());
+        assertTrue(messageService.getSubscriptionIds().contains(subscriptionId));
+    }
+
+    private static List<Long> sequences(MessagePage page) {
+        return page.getMessages().stream().map(ReceivedMessage::getSequence).toList();
+    }
+
+    @Test
+    public void compressedXmlIsSmallerAndDecompressedOnRead() {
+        long previous = Long.MAX_VALUE;
+        for (String compression : new String[]{"none", "deflate", "dictionary", "delta"}) {
+            MessageService service = MessageService.options().ingestMode("stax").compression(compression).build();
+            for (int i = 0; i < 10; i++) {
+                service.addPushMessage("COMPRESSED", SiriStaxReaderTest.ET_DELIVERY.getBytes(StandardCharsets.UTF_8));
+            }
+            ReceivedMessage message = service.getMessages("COMPRESSED").iterator().next();
+            assertEquals(SiriStaxReaderTest.ET_DELIVERY, message.getRawXmlString());
+            assertTrue(compression + " should use less memory", service.getStoredBytes() < previous);
+            previous = service.getStoredBytes();
+        }
+    }
+
+    @Test
+    public void humanReadableIsBuiltWhenAskedForOrInTheBackground() throws InterruptedException {
+        messageService.addPushMessage("LAZY", etBatch(1));
+        ReceivedMessage message = messageService.getMessages("LAZY").iterator().next();
+        assertFalse(message.isHumanReadableBuilt());
+        String text = message.getHumanReadable();
+        assertEquals("NSB:Line:L0 has deviations", text);
+        assertTrue(message.isHumanReadableBuilt());
+        assertSame(text, message.getHumanReadable());
+
+        MessageService precomputing = MessageService.options().ingestMode("stax").precomputeSummaries(true).build();
+        try {
+            precomputing.addPushMessage("EAGER", etBatch(3));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!precomputing.getMessages("EAGER").stream().allMatch(ReceivedMessage::isHumanReadableBuilt)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(precomputing.getMessages("EAGER").stream().allMatch(ReceivedMessage::isHumanReadableBuilt));
+        } finally {
+            precomputing.stop();
+        }
+    }
+
+    @Test
+    public void retainsByCountAndBytesPerSubscription() {
+        MessageService service = MessageService.options().ingestMode("stax")
+                .retention(new RetentionPolicy(3, 0, 0, 0, false)).compression("none").build();
+        service.addPushMessage("COUNT", etBatch(5));
+        assertEquals(3, service.getMessageCount("COUNT"));
+
+        service = MessageService.options().ingestMode("stax")
+                .retention(new RetentionPolicy(100, 0, 2000, 0, false)).compression("none").build();
+        for (int i = 0; i < 10; i++) {
+            service.addPushMessage("BYTES", etBatch(1));
+        }
+        int count = service.getMessageCount("BYTES");
+        assertTrue(count > 0 && count < 10);
+        assertTrue(service.getStoredBytes() <= 2000);
+        assertEquals(9, service.getMessages("BYTES").iterator().next().getSequence());
+    }
+
+    @Test
+    public void evictsAcrossSubscriptionsWithinTotalBudget() {
+        for (boolean leastRecentlyViewed : new boolean[]{false, true}) {
+            MessageService service = MessageService.options().ingestMode("stax")
+                    .retention(new RetentionPolicy(100, 0, 0, 10_000, leastRecentlyViewed)).compression("none").build();
+            for (int i = 0; i < 5; i++) {
+                service.addPushMessage("QUIET", etBatch(1));
+            }
+            service.getMessages("QUIET");
+            for (int i = 0; i < 100; i++) {
+                service.addPushMessage("NOISY", etBatch(1));
+            }
+            assertTrue(service.getStoredBytes() <= 10_000);
+            assertTrue(service.getMessageCount("NOISY") < 100);
+            if (leastRecentlyViewed) {
+                assertEquals("viewed subscription is evicted last", 5, service.getMessageCount("QUIET"));
+            } else {
+                assertEquals("the oldest messages are evicted first", 0, service.getMessageCount("QUIET"));
+            }
+            service.removeMessages("NOISY");
+            service.removeMessages("QUIET");
+            assertEquals(0, service.getStoredBytes());
+        }
+    }
+
+    @Test(expected = BatchTooLargeException.class)
+    public void tooLargeBatchIsRejected() {
+        MessageService.options().ingestMode("stax").maxBatchSize(2).build().addPushMessage("BATCH-2", etBatch(3));
+    }
+
+    @Test(expected = BatchTooLargeException.class)
+    public void tooLargeBatchIsRejectedBeforeQueued() {
+        MessageService service = MessageService.options().ingestMode("stax").maxBatchSize(2).build();
+        service.check(etBatch(2));
+        service.check(etBatch(3));
+    }
+
+    @Test
+    public void multiplexedMessagesShareXmlAndText() {
+        MessageService messageService = MessageService.options().ingestMode("stax").build();
+        messageService.addMultiplexedPushMessage(etBatch(3), pushMessage ->
+                ((EstimatedVehicleJourney) pushMessage).getLineRef().getValue().endsWith("L1") ? List.of("a") : List.of("a", "b"));
+        assertEquals(3, messageService.getMessageCount("a"));
+        assertEquals(2, messageService.getMessageCount("b"));
+        ReceivedMessage a = messageService.getMessages("a").iterator().next();
+        ReceivedMessage b = messageService.getMessages("b").iterator().next();
+        assertSame(a.getCompressedXml(), b.getCompressedXml());
+        assertEquals("NSB:Line:L2 has deviations", b.getHumanReadable());
+        assertSame(a.getHumanReadable(), b.getHumanReadable());
+    }
+
+    @Test
+    public void duplicatePayloadsAreStoredOnce() {
+        MessageService messageService = MessageService.options().ingestMode("stax")
+                .retention(new RetentionPolicy(2, 0, 0, Long.MAX_VALUE, false)).dedup(true).build();
+        List<Object> seen = new ArrayList<>();
+        messageService.addPushMessageListener(seen::add);
+        messageService.addPushMessage("a", etBatch(2));
+        messageService.addPushMessage("b", etBatch(2));
+        assertEquals(2, seen.size());
+        assertEquals(1, messageService.getSharedPayloadCount());
+        List<ReceivedMessage> a = messageService.getMessagePage("a", null, null, 10).getMessages();
+        List<ReceivedMessage> b = messageService.getMessagePage("b", null, null, 10).getMessages();
+        assertEquals(2, b.size());
+        assertSame(a.get(0).getCompressedXml(), b.get(0).getCompressedXml());
+        assertEquals("NSB:Line:L1 has deviations", b.get(0).getHumanReadable());
+        assertSame(a.get(0).getHumanReadable(), b.get(0).getHumanReadable());
+        assertEquals(MessageTypeEnum.ET, b.get(1).getType());
+        assertNotNull(b.get(1).getDeliveryDelay());
+
+        messageService.removeMessages("a");
+        assertEquals(1, messageService.getSharedPayloadCount());
+        messageService.addPushMessage("b", etBatch(1)); //pushes the oldest one out of b
+        assertEquals(2, messageService.getSharedPayloadCount());
+        messageService.addPushMessage("b", etBatch(1));
+        assertEquals(1, messageService.getSharedPayloadCount());
+        messageService.clearAll();
+        assertEquals(0, messageService.getSharedPayloadCount());
+    }
+
+    @Test
+    public void recordsIngestMetrics() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MessageService service = MessageService.options().ingestMode("stax").metrics(new IngestMetrics(registry)).build();
+        service.start();
+        service.addPushMessage("metrics", etBatch(3));
+        assertEquals(1, registry.get("ukur.ingest.stage").tag("stage", "unmarshal").timer().count());
+        assertEquals(1, registry.get("ukur.ingest.stage").tag("stage", "compress").timer().count());
+        assertEquals(3.0, registry.get("ukur.messages.stored").tag("subscription", "metrics").tag("type", "ET").counter().count(), 0);
+        assertEquals(0.0, registry.get("ukur.messages.stored").tag("subscription", "metrics").tag("type", "SX").counter().count(), 0);
+        assertEquals(3.0, registry.get("ukur.store.messages").gauge().value(), 0);
+        assertEquals(1, registry.get("ukur.push.delay").timer().count());
+    }
+
+    @Test
+    public void recordsDelayOfPayloadsStoredAgain() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MessageService service = MessageService.options().ingestMode("stax").dedup(true).metrics(new IngestMetrics(registry)).build();
+        service.addPushMessage("a", etBatch(2));
+        service.addPushMessage("b", etBatch(2));
+        assertEquals(1, registry.get("ukur.ingest.stage").tag("stage", "unmarshal").timer().count());
+        assertEquals(2, registry.get("ukur.push.delay").timer().count());
+    }
+
+    @Test
+    public void removesAndCapsTaggedMeters() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        IngestMetrics metrics = new IngestMetrics(registry, null, 1);
+        metrics.messageStored("first", MessageTypeEnum.ET);
+        metrics.messageStored("second", MessageTypeEnum.ET);
+        metrics.pushReceived("push-1", "accepted", 100);
+        metrics.pushReceived("push-2", "accepted", 100);
+        assertEquals(1.0, registry.get("ukur.messages.stored").tag("subscription", "other").tag("type", "ET").counter().count(), 0);
+        assertEquals(1.0, registry.get("ukur.push.received").tag("pushId", "other").counter().count(), 0);
+
+        Subscription subscription = new Subscription();
+        subscription.setId("first");
+        subscription.setPushId("push-1");
+        metrics.removeSubscription(subscription);
+        assertNull(registry.find("ukur.messages.stored").tag("subscription", "first").counter());
+        assertNull(registry.find("ukur.push.received").tag("pushId", "push-1").counter());
+        metrics.messageStored("third", MessageTypeEnum.SX);
+        assertEquals(1.0, registry.get("ukur.messages.stored").tag("subscription", "third").tag("type", "SX").counter().count(), 0);
+    }
+
+    static byte[] etBatch(int journeys) {
+        StringBuilder xml = new StringBuilder("<Siri xmlns=\"http://www.siri.org.uk/siri\" version=\"2.0\"><ServiceDelivery>")
+                .append("<ResponseTimestamp>2018-02-07T10:30:00+01:00</ResponseTimestamp>")
+                .append("<EstimatedTimetableDelivery version=\"2.0\"><EstimatedJourneyVersionFrame>");
+        for (int i = 0; i < journeys; i++) {
+            xml.append("<EstimatedVehicleJourney><LineRef>NSB:Line:L").append(i).append("</LineRef></EstimatedVehicleJourney>");
+        }
+        xml.append("</EstimatedJourneyVersionFrame></EstimatedTimetableDelivery></ServiceDelivery></Siri>");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void showsTheXmlOfEachMessageInABatch() {
+        MessageService service = MessageService.options().ingestMode("stax").build();
+        service.addPushMessage("BATCH-XML", etBatch(3));
+        for (ReceivedMessage message : service.getMessages("BATCH-XML")) {
+            String xml = service.getMessageXml("BATCH-XML", message.getSequence());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i == message.getDeliveryIndex(), xml.contains("NSB:Line:L" + i + "<"));
+            }
+            assertTrue(xml.contains("ResponseTimestamp"));
+            assertFalse(JsonMapper.builder().build().writeValueAsString(message).contains("Siri"));
+        }
+        assertNull(service.getMessageXml("BATCH-XML", 3));
+        assertNull(service.getMessageXml("NONE", 0));
+    }
+
     @Test
     public void estimatedVehicleJourney() {
         String subscriptionId = "ET-1";
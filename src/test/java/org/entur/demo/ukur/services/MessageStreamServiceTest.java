@@ -0,0 +1,166 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.Subscription;
+import org.junit.Test;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.entur.demo.ukur.services.MessageServiceTest.etBatch;
+import static org.junit.Assert.*;
+
+public class MessageStreamServiceTest {
+
+    private final MessageService messageService = MessageService.options().ingestMode("stax").build();
+
+    @Test
+    public void sendsNewMessagesToTheSubscriptionsViewers() throws Exception {
+        MessageStreamService streams = streams(3, 10, RecordingEmitter::new);
+        RecordingEmitter first = (RecordingEmitter) streams.open("a", null);
+        RecordingEmitter second = (RecordingEmitter) streams.open("a", null);
+        RecordingEmitter other = (RecordingEmitter) streams.open("b", null);
+        assertEquals(3, streams.getViewerCount());
+        assertNull("too many viewers", streams.open("c", null));
+
+        messageService.addPushMessage("a", etBatch(2));
+        first.await(2);
+        second.await(2);
+        assertTrue(first.events.get(0).contains("event:message"));
+        assertTrue(first.events.get(0).contains("id:0"));
+        assertTrue(first.events.get(1).contains("NSB:Line:L1 has deviations"));
+        assertEquals(first.events, second.events);
+        assertTrue(other.events.isEmpty());
+
+        first.complete();
+        first.closeViewer();
+        assertEquals(2, streams.getViewerCount());
+        assertNotNull(streams.open("c", null));
+    }
+
+    @Test
+    public void forgetsSubscriptionsWithoutViewers() {
+        MessageStreamService streams = streams(10, 10, RecordingEmitter::new);
+        RecordingEmitter first = (RecordingEmitter) streams.open("a", null);
+        RecordingEmitter second = (RecordingEmitter) streams.open("a", null);
+        streams.open("b", null);
+        first.closeViewer();
+        assertEquals(2, streams.getStreamedSubscriptionCount());
+        second.closeViewer();
+        assertEquals(1, streams.getStreamedSubscriptionCount());
+
+        Subscription removed = new Subscription();
+        removed.setId("b");
+        streams.removeSubscription(removed);
+        assertEquals(0, streams.getStreamedSubscriptionCount());
+        assertEquals(0, streams.getViewerCount());
+    }
+
+    @Test
+    public void reconnectingViewerGetsWhatItMissed() throws Exception {
+        messageService.addPushMessage("a", etBatch(3));
+        MessageStreamService streams = streams(10, 10, RecordingEmitter::new);
+        RecordingEmitter viewer = (RecordingEmitter) streams.open("a", 0L);
+        viewer.await(2);
+        assertTrue(viewer.events.get(0).contains("id:1"));
+        assertTrue(viewer.events.get(1).contains("id:2"));
+    }
+
+    @Test
+    public void slowViewerIsToldToReloadInsteadOfHoldingMessages() throws Exception {
+        CountDownLatch unblock = new CountDownLatch(1);
+        MessageStreamService streams = streams(10, 2, () -> new RecordingEmitter(unblock));
+        RecordingEmitter slow = (RecordingEmitter) streams.open("a", null);
+        messageService.addPushMessage("a", etBatch(1));
+        slow.sending.await(5, TimeUnit.SECONDS); //the first message is being sent and the queue is empty
+        for (int i = 0; i < 5; i++) {
+            messageService.addPushMessage("a", etBatch(1));
+        }
+        unblock.countDown();
+        slow.await(2);
+        assertTrue(slow.events.get(0).contains("id:0"));
+        assertTrue(slow.events.get(1).contains("event:reset"));
+        Thread.sleep(100);
+        assertTrue("at most the queue capacity after the reset", slow.events.size() <= 4);
+    }
+
+    private MessageStreamService streams(int maxViewers, int queueCapacity, Supplier<SseEmitter> emitters) {
+        MessageStreamService streams = new MessageStreamService(messageService, null, JsonMapper.builder().build(), queueCapacity, maxViewers, 1) {
+            @Override
+            SseEmitter createEmitter() {
+                return emitters.get();
+            }
+        };
+        streams.start();
+        return streams;
+    }
+
+    private static class RecordingEmitter extends SseEmitter {
+        private final List<String> events = new CopyOnWriteArrayList<>();
+        private final CountDownLatch sending = new CountDownLatch(1);
+        private final CountDownLatch unblock;
+        private Runnable onCompletion;
+
+        RecordingEmitter() {
+            this(new CountDownLatch(0));
+        }
+
+        RecordingEmitter(CountDownLatch unblock) {
+            this.unblock = unblock;
+        }
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            sending.countDown();
+            try {
+                unblock.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            StringBuilder event = new StringBuilder();
+            for (ResponseBodyEmitter.DataWithMediaType data : builder.build()) {
+                event.append(data.getData());
+            }
+            events.add(event.toString());
+        }
+
+        @Override
+        public synchronized void onCompletion(Runnable callback) {
+            this.onCompletion = callback;
+            super.onCompletion(callback);
+        }
+
+        void closeViewer() {
+            onCompletion.run(); //as the servlet container does when the response is done
+        }
+
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (events.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(events.size() + " of " + count + " events", events.size() >= count);
+        }
+    }
+}
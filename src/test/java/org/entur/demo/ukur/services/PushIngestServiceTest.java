@@ -0,0 +1,128 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.entur.demo.ukur.entities.IngestStatistics;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PushIngestServiceTest {
+
+    private static final byte[] PAYLOAD = new byte[0];
+
+    @Mock
+    private MessageService messageServiceMock;
+
+    private PushIngestService pushIngestService;
+
+    @After
+    public void stop() {
+        if (pushIngestService != null) {
+            pushIngestService.stop();
+        }
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await();
+            return null;
+        }).when(messageServiceMock).addPushMessage(anyString(), any(byte[].class));
+        pushIngestService = new PushIngestService(messageServiceMock, new IngestMetrics(), true, 1, 2);
+
+        assertTrue(pushIngestService.submit("sub", PAYLOAD));
+        assertTrue(started.await(5, TimeUnit.SECONDS)); //the worker is now busy with the first message
+        assertTrue(pushIngestService.submit("sub", PAYLOAD));
+        assertTrue(pushIngestService.submit("sub", PAYLOAD));
+        assertFalse(pushIngestService.submit("sub", PAYLOAD));
+
+        IngestStatistics statistics = pushIngestService.getStatistics();
+        assertEquals(2, statistics.getQueueDepth());
+        assertEquals(3, statistics.getAccepted());
+        assertEquals(1, statistics.getRejected());
+
+        release.countDown();
+        verify(messageServiceMock, timeout(5000).times(3)).addPushMessage("sub", PAYLOAD);
+    }
+
+    @Test
+    public void drainsQueueOnStop() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            Thread.sleep(50);
+            return null;
+        }).when(messageServiceMock).addPushMessage(anyString(), any(byte[].class));
+        pushIngestService = new PushIngestService(messageServiceMock, new IngestMetrics(), true, 1, 10);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(pushIngestService.submit("sub", PAYLOAD));
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        pushIngestService.stop();
+        verify(messageServiceMock, times(5)).addPushMessage("sub", PAYLOAD);
+        assertFalse(pushIngestService.submit("sub", PAYLOAD));
+    }
+
+    @Test
+    public void handlesSynchronouslyWhenNotAsync() {
+        pushIngestService = new PushIngestService(messageServiceMock, new IngestMetrics(), false, 1, 1);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(pushIngestService.submit("sub", PAYLOAD));
+        }
+        verify(messageServiceMock, times(5)).addPushMessage("sub", PAYLOAD);
+        assertEquals(5, pushIngestService.getStatistics().getProcessed());
+    }
+
+    @Test
+    public void countsFailures() {
+        doAnswer(invocation -> {
+            throw new IllegalArgumentException("bad payload");
+        }).when(messageServiceMock).addPushMessage(anyString(), any(byte[].class));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        pushIngestService = new PushIngestService(messageServiceMock, new IngestMetrics(registry), true, 2, 10);
+        pushIngestService.start();
+        assertTrue(pushIngestService.submit("sub", PAYLOAD));
+        verify(messageServiceMock, timeout(5000)).addPushMessage("sub", PAYLOAD);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pushIngestService.getStatistics().getFailed() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+        assertEquals(1, pushIngestService.getStatistics().getFailed());
+        assertEquals(1, registry.get("ukur.ingest.failed").functionCounter().count(), 0);
+    }
+}
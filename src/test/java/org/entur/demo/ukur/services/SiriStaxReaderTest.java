@@ -0,0 +1,208 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.MessageTypeEnum;
+import org.entur.demo.ukur.entities.ReceivedMessage;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SiriStaxReaderTest {
+
+    static final String ET_DELIVERY = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n" +
+            "<Siri xmlns=\"http://www.siri.org.uk/siri\" version=\"2.0\">\n" +
+            "  <ServiceDelivery>\n" +
+            "    <ResponseTimestamp>2018-02-07T10:30:00+01:00</ResponseTimestamp>\n" +
+            "    <ProducerRef>ENT</ProducerRef>\n" +
+            "    <EstimatedTimetableDelivery version=\"2.0\">\n" +
+            "      <ResponseTimestamp>2018-02-07T10:30:00+01:00</ResponseTimestamp>\n" +
+            "      <EstimatedJourneyVersionFrame>\n" +
+            "        <RecordedAtTime>2018-02-07T10:30:00+01:00</RecordedAtTime>\n" +
+            "        <EstimatedVehicleJourney>\n" +
+            "          <LineRef>NSB:Line:R10</LineRef>\n" +
+            "          <DirectionRef>Lillehammer</DirectionRef>\n" +
+            "          <DatedVehicleJourneyRef>313:2018-02-07</DatedVehicleJourneyRef>\n" +
+            "          <OperatorRef>NSB</OperatorRef>\n" +
+            "          <RecordedCalls>\n" +
+            "            <RecordedCall>\n" +
+            "              <StopPointRef>NSR:Quay:697</StopPointRef>\n" +
+            "              <StopPointName>Asker</StopPointName>\n" +
+            "              <AimedDepartureTime>2018-02-07T10:09:00+01:00</AimedDepartureTime>\n" +
+            "              <ActualDepartureTime>2018-02-07T10:12:00+01:00</ActualDepartureTime>\n" +
+            "            </RecordedCall>\n" +
+            "          </RecordedCalls>\n" +
+            "          <EstimatedCalls>\n" +
+            "            <EstimatedCall>\n" +
+            "              <StopPointRef>NSR:Quay:571</StopPointRef>\n" +
+            "              <StopPointName>Oslo S</StopPointName>\n" +
+            "              <AimedArrivalTime>2018-02-07T10:31:00+01:00</AimedArrivalTime>\n" +
+            "              <ExpectedArrivalTime>2018-02-07T10:48:34+01:00</ExpectedArrivalTime>\n" +
+            "              <ArrivalStatus>delayed</ArrivalStatus>\n" +
+            "              <ArrivalPlatformName>11</ArrivalPlatformName>\n" +
+            "              <ArrivalStopAssignment>\n" +
+            "                <AimedQuayRef>NSR:Quay:570</AimedQuayRef>\n" +
+            "                <ExpectedQuayRef>NSR:Quay:571</ExpectedQuayRef>\n" +
+            "              </ArrivalStopAssignment>\n" +
+            "              <Extensions>\n" +
+            "                <StopsAtAirport>true</StopsAtAirport>\n" +
+            "              </Extensions>\n" +
+            "            </EstimatedCall>\n" +
+            "          </EstimatedCalls>\n" +
+            "        </EstimatedVehicleJourney>\n" +
+            "      </EstimatedJourneyVersionFrame>\n" +
+            "    </EstimatedTimetableDelivery>\n" +
+            "  </ServiceDelivery>\n" +
+            "</Siri>";
+
+    static final String SX_DELIVERY = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<Siri xmlns=\"http://www.siri.org.uk/siri\" version=\"2.0\">\n" +
+            "  <ServiceDelivery>\n" +
+            "    <ResponseTimestamp>2018-02-02T12:20:00+01:00</ResponseTimestamp>\n" +
+            "    <SituationExchangeDelivery>\n" +
+            "      <Situations>\n" +
+            "        <PtSituationElement>\n" +
+            "          <CreationTime>2018-02-02T12:19:31+01:00</CreationTime>\n" +
+            "          <ParticipantRef>NSB</ParticipantRef>\n" +
+            "          <SituationNumber>status-168267394</SituationNumber>\n" +
+            "          <Summary xml:lang=\"NO\">Innstilt</Summary>\n" +
+            "          <Description xml:lang=\"NO\">Vennligst ta neste eller andre tog.</Description>\n" +
+            "          <Description xml:lang=\"EN\">Passengers are requested to take the next train.</Description>\n" +
+            "        </PtSituationElement>\n" +
+            "      </Situations>\n" +
+            "    </SituationExchangeDelivery>\n" +
+            "  </ServiceDelivery>\n" +
+            "</Siri>";
+
+    private static final String HEARTBEAT = "<Siri xmlns=\"http://www.siri.org.uk/siri\" version=\"2.0\">\n" +
+            "  <HeartbeatNotification>\n" +
+            "    <RequestTimestamp>2018-02-02T12:20:00+01:00</RequestTimestamp>\n" +
+            "    <Status>true</Status>\n" +
+            "  </HeartbeatNotification>\n" +
+            "</Siri>";
+
+    private final MessageService jaxbService = MessageService.options().build();
+    private final MessageService staxService = MessageService.options().ingestMode("stax").build();
+
+    @Test
+    public void estimatedTimetableDeliveryGivesSameResult() {
+        ReceivedMessage stax = assertSameResult(ET_DELIVERY);
+        assertEquals(MessageTypeEnum.ET, stax.getType());
+        assertTrue(stax.getHumanReadable().startsWith("NSB:Line:R10 towards Lillehammer from Asker"));
+        assertTrue(stax.getHumanReadable().endsWith("is delayed and expected to arrive " + localTime("2018-02-07T10:48:34+01:00") + " with new track platform 11"));
+        assertNotNull(stax.getDeliveryDelay());
+    }
+
+    @Test
+    public void situationExchangeDeliveryGivesSameResult() {
+        ReceivedMessage stax = assertSameResult(SX_DELIVERY);
+        assertEquals(MessageTypeEnum.SX, stax.getType());
+        assertEquals("Passengers are requested to take the next train.", stax.getHumanReadable());
+    }
+
+    @Test
+    public void heartbeatGivesSameResult() {
+        ReceivedMessage stax = assertSameResult(HEARTBEAT);
+        assertEquals(MessageTypeEnum.Heartbeat, stax.getType());
+    }
+
+    @Test
+    public void keepsRawPayload() {
+        String subscriptionId = UUID.randomUUID().toString();
+        staxService.addPushMessage(subscriptionId, SX_DELIVERY.getBytes(StandardCharsets.UTF_8));
+        assertEquals(SX_DELIVERY, staxService.getMessages(subscriptionId).iterator().next().getXmlString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedPayload() {
+        staxService.addPushMessage("malformed", "<Siri><ServiceDelivery>".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidTime() {
+        new SiriStaxReader().read(("<PtSituationElement xmlns=\"http://www.siri.org.uk/siri\">" +
+                "<CreationTime>yesterday</CreationTime></PtSituationElement>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void cutsDeliveryDownToOneElement() {
+        String xml = "<Siri xmlns=\"http://www.siri.org.uk/siri\"><ServiceDelivery>" +
+                "<EstimatedTimetableDelivery><EstimatedJourneyVersionFrame>" +
+                "<EstimatedVehicleJourney><LineRef>L1</LineRef></EstimatedVehicleJourney>" +
+                "<EstimatedVehicleJourney><LineRef>L2</LineRef></EstimatedVehicleJourney>" +
+                "</EstimatedJourneyVersionFrame></EstimatedTimetableDelivery>" +
+                "<SituationExchangeDelivery><Situations><PtSituationElement><SituationNumber>S1</SituationNumber></PtSituationElement></Situations></SituationExchangeDelivery>" +
+                "</ServiceDelivery></Siri>";
+        SiriStaxReader reader = new SiriStaxReader();
+        String situation = reader.element(xml, 0);
+        assertTrue(situation.contains("S1"));
+        assertFalse(situation.contains("L1") || situation.contains("L2"));
+        String second = reader.element(xml, 2);
+        assertTrue(second.contains("<LineRef>L2</LineRef>"));
+        assertFalse(second.contains("L1") || second.contains("S1"));
+        assertTrue(second.contains("xmlns=\"http://www.siri.org.uk/siri\""));
+        assertEquals(SX_DELIVERY, reader.element(SX_DELIVERY, 0));
+    }
+
+    @Test
+    public void checksWithoutReading() {
+        SiriStaxReader reader = new SiriStaxReader();
+        assertEquals(1, reader.check(SX_DELIVERY.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(0, reader.check(HEARTBEAT.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(3, reader.check(MessageServiceTest.etBatch(3)));
+        assertEquals(2, reader.check(("<siri:Siri xmlns:siri=\"http://www.siri.org.uk/siri\"><siri:PtSituationElement/>" +
+                "<siri:EstimatedVehicleJourney >x</siri:EstimatedVehicleJourney><EstimatedVehicleJourneys/>" +
+                "<PtSituationElementRef/></siri:Siri>").getBytes(StandardCharsets.UTF_8)));
+        assertEquals(0, reader.check("<Siri><ServiceDelivery>".getBytes(StandardCharsets.UTF_8))); //found when it is read
+        assertRejected(reader, "<Other/>");
+        assertRejected(reader, "not xml");
+    }
+
+    private static void assertRejected(SiriStaxReader reader, String xml) {
+        try {
+            reader.check(xml.getBytes(StandardCharsets.UTF_8));
+            fail("Accepted " + xml);
+        } catch (IllegalArgumentException expected) {
+            //as it can't be read
+        }
+    }
+
+    private String localTime(String isoTime) {
+        return ZonedDateTime.parse(isoTime).withZoneSameInstant(ZoneId.systemDefault()).format(DateTimeFormatter.ofPattern("HH:mm:ss"));
+    }
+
+    private ReceivedMessage assertSameResult(String xml) {
+        String subscriptionId = UUID.randomUUID().toString();
+        jaxbService.addPushMessage(subscriptionId, xml.getBytes(StandardCharsets.UTF_8));
+        staxService.addPushMessage(subscriptionId, xml.getBytes(StandardCharsets.UTF_8));
+        ReceivedMessage jaxb = jaxbService.getMessages(subscriptionId).iterator().next();
+        ReceivedMessage stax = staxService.getMessages(subscriptionId).iterator().next();
+        assertEquals(jaxb.getType(), stax.getType());
+        assertEquals(jaxb.getHumanReadable(), stax.getHumanReadable());
+        assertEquals(jaxb.getDeliveryDelay() == null, stax.getDeliveryDelay() == null);
+        return stax;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.SituationStatus;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri20.PtSituationElement;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SituationViewTest {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final SiriStaxReader reader = new SiriStaxReader();
+
+    @Test
+    public void keepsLatestVersionWithBoundedHistory() throws Exception {
+        SituationView view = new SituationView(MessageService.options().ingestMode("stax").build(), 2, 5, 24);
+        view.update(situation("1", 1, "RUT:Line:1", "NSR:Quay:1", null, null, "published"));
+        view.update(situation("1", 1, "RUT:Line:1", "NSR:Quay:1", null, null, "published"));
+        assertEquals(0, view.get("RUT", "1").getPreviousVersions().size());
+
+        view.update(situation("1", 2, "RUT:Line:1", "NSR:Quay:1", null, null, "published"));
+        view.update(situation("1", 3, "RUT:Line:2", "NSR:Quay:1", null, null, "published"));
+        view.update(situation("1", 4, "RUT:Line:2", "NSR:Quay:1", null, null, "published"));
+        view.update(situation("1", 3, "RUT:Line:1", "NSR:Quay:1", null, null, "published"));
+        SituationStatus status = view.get("RUT", "1");
+        assertEquals(4, status.getVersion());
+        assertEquals(List.of(3L, 2L), status.getPreviousVersions().stream().map(SituationStatus.Version::getVersion).toList());
+        assertEquals(List.of("RUT:Line:2"), status.getLineRefs());
+        assertEquals("Innstilt", status.getSummary());
+        assertEquals(1, view.size());
+
+        assertTrue("moved to another line", view.getActive("RUT:Line:1", null).isEmpty());
+        assertEquals(1, view.getActive("RUT:Line:2", null).size());
+        assertEquals(1, view.getActive(null, "NSR:Quay:1").size());
+        assertEquals(1, view.getActive(null, null).size());
+        assertNull(view.get("NSB", "1"));
+    }
+
+    @Test
+    public void activeOnlyWithinValidityAndUntilClosed() throws Exception {
+        SituationView view = new SituationView(MessageService.options().ingestMode("stax").build(), 5, 0, 24);
+        ZonedDateTime now = ZonedDateTime.now();
+        view.update(situation("past", 1, "RUT:Line:1", null, now.minusHours(2), now.minusHours(1), "open"));
+        view.update(situation("now", 1, "RUT:Line:1", null, now.minusHours(1), now.plusHours(1), "open"));
+        view.update(situation("future", 1, "RUT:Line:1", null, now.plusHours(1), null, "open"));
+        view.update(situation("closed", 1, "RUT:Line:1", null, now.minusHours(1), null, "closed"));
+        assertEquals(List.of("now"), view.getActive("RUT:Line:1", null).stream().map(SituationStatus::getSituationNumber).toList());
+
+        view.removeExpired();
+        assertEquals(2, view.size());
+        assertNull(view.get("RUT", "past"));
+        assertNull(view.get("RUT", "closed"));
+        assertNotNull(view.get("RUT", "future"));
+    }
+
+    @Test
+    public void ignoresSituationsWithoutNumber() throws Exception {
+        SituationView view = new SituationView(MessageService.options().ingestMode("stax").build(), 5, 5, 24);
+        view.update((PtSituationElement) reader.read(("<PtSituationElement xmlns=\"http://www.siri.org.uk/siri\">" +
+                "<ParticipantRef>RUT</ParticipantRef></PtSituationElement>").getBytes(StandardCharsets.UTF_8)));
+        assertEquals(0, view.size());
+    }
+
+    /**
+     * Run with: mvn test -Dtest=SituationViewTest -Dbenchmark=true
+     */
+    @Test
+    public void benchmarkRepublishing() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        SituationView view = new SituationView(MessageService.options().ingestMode("stax").build(), 5, 5, 24);
+        int situations = 2_000;
+        PtSituationElement[] published = new PtSituationElement[situations];
+        for (int i = 0; i < situations; i++) {
+            published[i] = situation(Integer.toString(i), 1, "RUT:Line:" + (i % 100), "NSR:Quay:" + i, null, null, "published");
+        }
+        int rounds = 500;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (PtSituationElement situation : published) {
+                view.update(situation);
+            }
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < 10_000; i++) {
+            found += view.getActive("RUT:Line:" + (i % 100), null).size();
+        }
+        long queryMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        logger.info("{} situations published {} times in {} ms ({} updates/s), keeps {}, active for line {} us/operation",
+                situations, rounds, millis, situations * rounds * 1000L / Math.max(1, millis), view.size(), queryMicros / 10_000.0);
+        assertEquals(situations, view.size());
+        assertEquals(200_000, found);
+    }
+
+    private PtSituationElement situation(String number, int version, String lineRef, String stopPointRef,
+                                         ZonedDateTime start, ZonedDateTime end, String progress) throws Exception {
+        String xml = "<PtSituationElement xmlns=\"http://www.siri.org.uk/siri\">" +
+                "<CreationTime>2018-02-02T12:19:31+01:00</CreationTime>" +
+                "<ParticipantRef>RUT</ParticipantRef><SituationNumber>" + number + "</SituationNumber>" +
+                "<Version>" + version + "</Version><Progress>" + progress + "</Progress>" +
+                (start == null ? "" : "<ValidityPeriod><StartTime>" + start.toOffsetDateTime() + "</StartTime>" +
+                        (end == null ? "" : "<EndTime>" + end.toOffsetDateTime() + "</EndTime>") + "</ValidityPeriod>") +
+                "<Summary xml:lang=\"NO\">Innstilt</Summary>" +
+                "<Affects><Networks><AffectedNetwork><AffectedLine><LineRef>" + lineRef + "</LineRef></AffectedLine></AffectedNetwork></Networks>" +
+                (stopPointRef == null ? "" : "<StopPoints><AffectedStopPoint><StopPointRef>" + stopPointRef + "</StopPointRef></AffectedStopPoint></StopPoints>") +
+                "</Affects></PtSituationElement>";
+        return (PtSituationElement) reader.read(xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.DeviationType;
+import org.entur.demo.ukur.entities.Subscription;
+import org.entur.demo.ukur.entities.SubscriptionTypeEnum;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.PtSituationElement;
+import uk.org.siri.siri20.Siri;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionMatcherTest {
+
+    private static final String SX_AFFECTS = "<PtSituationElement xmlns=\"http://www.siri.org.uk/siri\">" +
+            "<ParticipantRef>RUT</ParticipantRef><SituationNumber>RUT:SituationNumber:1</SituationNumber>" +
+            "<Affects><Networks><AffectedNetwork><AffectedLine><LineRef>RUT:Line:1</LineRef></AffectedLine></AffectedNetwork></Networks>" +
+            "<StopPoints><AffectedStopPoint><StopPointRef>NSR:Quay:11</StopPointRef></AffectedStopPoint></StopPoints></Affects>" +
+            "</PtSituationElement>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final SiriStaxReader reader = new SiriStaxReader();
+
+    @Test
+    public void matchesJourneysLikeUkur() {
+        SubscriptionMatcher.Journey journey = SubscriptionMatcher.Journey.of(journey());
+        assertEquals("NSB", journey.codespace());
+        assertEquals(List.of("NSR:Quay:697", "NSR:Quay:571"), journey.calls().stream().map(SubscriptionMatcher.Call::stopPointRef).toList());
+
+        assertTrue(SubscriptionMatcher.matches(stops("NSR:Quay:697", "NSR:Quay:571"), journey));
+        assertFalse("wrong direction", SubscriptionMatcher.matches(stops("NSR:Quay:571", "NSR:Quay:697"), journey));
+        assertFalse(SubscriptionMatcher.matches(stops("NSR:Quay:697", "NSR:Quay:1"), journey));
+
+        Subscription delayed = stops("NSR:Quay:697", "NSR:Quay:571");
+        delayed.setDeviationType(DeviationType.DELAYED);
+        delayed.setMinimumDelay("PT15M");
+        assertTrue(SubscriptionMatcher.matches(delayed, journey));
+        delayed.setMinimumDelay("PT30M");
+        assertFalse("delayed about 17 minutes", SubscriptionMatcher.matches(delayed, journey));
+        delayed.setDeviationType(DeviationType.TRACK_CHANGE);
+        assertTrue(SubscriptionMatcher.matches(delayed, journey));
+        delayed.setDeviationType(DeviationType.CANCELED);
+        assertFalse(SubscriptionMatcher.matches(delayed, journey));
+        delayed.setPushAllData(true);
+        assertTrue(SubscriptionMatcher.matches(delayed, journey));
+
+        Subscription line = new Subscription();
+        line.addLineRef("NSB:Line:R10");
+        assertTrue(SubscriptionMatcher.matches(line, journey));
+        line.setType(SubscriptionTypeEnum.SX);
+        assertFalse(SubscriptionMatcher.matches(line, journey));
+        Subscription codespace = new Subscription();
+        codespace.addCodespace("RUT");
+        assertFalse(SubscriptionMatcher.matches(codespace, journey));
+    }
+
+    @Test
+    public void matchesSituationsByParticipantLineAndStop() {
+        SubscriptionMatcher.Situation situation = SubscriptionMatcher.Situation.of(
+                (PtSituationElement) reader.read(SX_AFFECTS.getBytes(StandardCharsets.UTF_8)));
+        Subscription codespace = new Subscription();
+        codespace.addCodespace("RUT");
+        assertTrue(SubscriptionMatcher.matches(codespace, situation));
+        Subscription line = new Subscription();
+        line.addLineRef("RUT:Line:2");
+        assertFalse(SubscriptionMatcher.matches(line, situation));
+        line.addLineRef("RUT:Line:1");
+        assertTrue(SubscriptionMatcher.matches(line, situation));
+        assertTrue(SubscriptionMatcher.matches(stops("NSR:Quay:1", "NSR:Quay:11"), situation));
+        Subscription et = stops("NSR:Quay:1", "NSR:Quay:11");
+        et.setType(SubscriptionTypeEnum.ET);
+        assertFalse(SubscriptionMatcher.matches(et, situation));
+    }
+
+    @Test
+    public void onlyMatchesAmongTheGivenSubscriptions() {
+        SubscriptionRegistry registry = new SubscriptionRegistry();
+        Subscription first = stops("NSR:Quay:697", "NSR:Quay:571");
+        first.setPushId("1");
+        Subscription second = stops("NSR:Quay:697", "NSR:Quay:571");
+        second.setPushId("2");
+        Subscription other = stops("NSR:Quay:1", "NSR:Quay:2");
+        other.setPushId("3");
+        registry.put(first);
+        registry.put(second);
+        registry.put(other);
+        SubscriptionMatcher matcher = new SubscriptionMatcher(registry, new StopPlaceService(Map.of()));
+        assertEquals(List.of(first, second), matcher.match(journey(), Set.of("1", "2", "3")));
+        assertEquals(List.of(second), matcher.match(journey(), Set.of("2", "3")));
+        Object heartbeat = new Object();
+        assertEquals(2, matcher.match(heartbeat, Set.of("2", "3")).size());
+    }
+
+    @Test
+    public void matchesStopPlacesByTheirQuays() throws Exception {
+        File quays = folder.newFile("stop_place_quays.json");
+        Files.writeString(quays.toPath(), "{\"NSR:StopPlace:418\": [\"NSR:Quay:697\", \"NSR:Quay:698\"], " +
+                "\"NSR:StopPlace:337\": [\"NSR:Quay:571\"], \"NSR:StopPlace:1\": [\"NSR:Quay:11\"]}");
+        StopPlaceService stopPlaces = new StopPlaceService("file:" + quays.getAbsolutePath());
+        stopPlaces.reload();
+        assertEquals("NSR:StopPlace:418", stopPlaces.stopPlaceOf("NSR:Quay:698"));
+
+        SubscriptionRegistry registry = new SubscriptionRegistry();
+        Subscription askerOslo = stops("NSR:StopPlace:418", "NSR:StopPlace:337");
+        askerOslo.setPushId("1");
+        Subscription osloAsker = stops("NSR:StopPlace:337", "NSR:StopPlace:418");
+        osloAsker.setPushId("2");
+        Subscription situations = stops("NSR:StopPlace:1", "NSR:StopPlace:2");
+        situations.setPushId("3");
+        registry.put(askerOslo);
+        registry.put(osloAsker);
+        registry.put(situations);
+        SubscriptionMatcher matcher = new SubscriptionMatcher(registry, stopPlaces);
+        assertEquals(List.of(askerOslo), matcher.match(journey(), Set.of("1", "2", "3")));
+        PtSituationElement situation = (PtSituationElement) reader.read(SX_AFFECTS.getBytes(StandardCharsets.UTF_8));
+        assertEquals(List.of(situations), matcher.match(situation, Set.of("1", "2", "3")));
+
+        SubscriptionMatcher withoutStopPlaces = new SubscriptionMatcher(registry, new StopPlaceService(Map.of()));
+        assertEquals(List.of(), withoutStopPlaces.match(journey(), Set.of("1", "2", "3")));
+    }
+
+    /**
+     * Run with: mvn test -Dtest=SubscriptionMatcherTest -Dbenchmark=true
+     */
+    @Test
+    public void benchmarkParseOnceMatchMany() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        int subscriptionCount = 50;
+        int deliveries = 2_000;
+        byte[] payload = SiriStaxReaderTest.ET_DELIVERY.getBytes(StandardCharsets.UTF_8);
+        SubscriptionRegistry registry = new SubscriptionRegistry();
+        Set<String> pushIds = new HashSet<>();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < subscriptionCount; i++) {
+            Subscription subscription = stops("NSR:Quay:697", "NSR:Quay:571");
+            subscription.setPushId("p" + i);
+            subscription.setId("s" + i);
+            registry.put(subscription);
+            pushIds.add(subscription.getPushId());
+            ids.add(subscription.getId());
+        }
+        SubscriptionMatcher matcher = new SubscriptionMatcher(registry, new StopPlaceService(Map.of()));
+        for (int round = 0; round < 2; round++) { //the first round warms up
+            MessageService separate = MessageService.options().ingestMode("stax").build();
+            long start = System.nanoTime();
+            for (int d = 0; d < deliveries; d++) {
+                for (String id : ids) {
+                    separate.addPushMessage(id, payload);
+                }
+            }
+            long separateNanos = System.nanoTime() - start;
+
+            MessageService multiplexed = MessageService.options().ingestMode("stax").build();
+            start = System.nanoTime();
+            for (int d = 0; d < deliveries; d++) {
+                multiplexed.addMultiplexedPushMessage(payload, pushMessage -> matcher.match(pushMessage, pushIds).stream().map(Subscription::getId).toList());
+            }
+            long multiplexedNanos = System.nanoTime() - start;
+            assertEquals(separate.getMessageCount("s0"), multiplexed.getMessageCount("s0"));
+            logger.info("{} deliveries to {} overlapping subscriptions: {} ms as separate pushes, {} ms parsed once and matched",
+                    deliveries, subscriptionCount, separateNanos / 1_000_000, multiplexedNanos / 1_000_000);
+        }
+    }
+
+    private EstimatedVehicleJourney journey() {
+        Siri siri = (Siri) reader.read(SiriStaxReaderTest.ET_DELIVERY.getBytes(StandardCharsets.UTF_8));
+        return siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().get(0);
+    }
+
+    private static Subscription stops(String from, String to) {
+        Subscription subscription = new Subscription();
+        subscription.addFromStopPoint(from);
+        subscription.addToStopPoint(to);
+        return subscription;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.Subscription;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionRegistryTest {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Test
+    public void indexesAndKeepsSorted() {
+        SubscriptionRegistry registry = new SubscriptionRegistry();
+        Subscription l14 = subscription("b-2", "id-2", "NSB:Line:L14", "NSB", "NSR:StopPlace:418");
+        Subscription l13 = subscription("b-1", "id-1", "NSB:Line:L13", "NSB", "NSR:StopPlace:337");
+        Subscription ruter = subscription("a-9", "id-9", "RUT:Line:1", "RUT", "NSR:StopPlace:337");
+        registry.put(l14);
+        registry.put(l13);
+        registry.put(ruter);
+
+        assertEquals(List.of(ruter, l13, l14), new ArrayList<>(registry.list()));
+        assertSame(l13, registry.byId("id-1"));
+        assertSame(l14, registry.byPushId("b-2"));
+        assertEquals(List.of(l14), registry.withLineRef("NSB:Line:L14"));
+        assertEquals(List.of(l13, l14), registry.withCodespace("NSB"));
+        assertEquals(List.of(ruter, l13), registry.withStopPoint("NSR:StopPlace:337"));
+        assertEquals(List.of(), registry.withLineRef("unknown"));
+
+        Subscription renamed = subscription("b-1", "id-1b", "NSB:Line:L1", "NSB", "NSR:StopPlace:1");
+        assertTrue(registry.replace(renamed));
+        assertNull(registry.byId("id-1"));
+        assertSame(renamed, registry.byId("id-1b"));
+        assertEquals(List.of(), registry.withLineRef("NSB:Line:L13"));
+        assertEquals(List.of(ruter), registry.withStopPoint("NSR:StopPlace:337"));
+
+        registry.remove("b-2");
+        assertNull(registry.byId("id-2"));
+        assertEquals(List.of(renamed), registry.withCodespace("NSB"));
+        assertEquals(2, registry.size());
+        assertEquals(false, registry.replace(subscription("b-2", "id-2", "x", "y", "z")));
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void concurrentWritersKeepIndexesConsistent() throws Exception {
+        SubscriptionRegistry registry = new SubscriptionRegistry();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int w = 0; w < 4; w++) {
+            int writer = w;
+            executor.execute(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    String pushId = writer + "-" + i;
+                    registry.put(subscription(pushId, "id-" + pushId, "Line:" + (i % 10), "C" + writer, "Stop:" + i));
+                    if (i % 2 == 0) {
+                        registry.remove(pushId);
+                    }
+                }
+            });
+        }
+        for (int r = 0; r < 1000; r++) {
+            for (Subscription subscription : registry.list()) {
+                subscription.getId(); //iterating while writers modify must not fail
+            }
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(2000, registry.size());
+        assertEquals(500, registry.withCodespace("C0").size());
+        assertEquals(0, registry.withLineRef("Line:0").size());
+        assertEquals(400, registry.withLineRef("Line:1").size());
+    }
+
+    /**
+     * Run with: mvn test -Dtest=SubscriptionRegistryTest -Dbenchmark=true
+     */
+    @Test
+    public void benchmarkWith10kSubscriptions() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        int count = 10_000;
+        SubscriptionRegistry registry = new SubscriptionRegistry();
+        List<Subscription> unindexed = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Subscription subscription = subscription("base-" + i, "id-" + i, "Line:" + (i % 500), "C" + (i % 20), "Stop:" + (i % 2000));
+            registry.put(subscription);
+            unindexed.add(subscription);
+        }
+        int lookups = 100_000;
+        benchmark("linear get(id)", lookups, i -> {
+            String id = "id-" + (i % count);
+            for (Subscription subscription : unindexed) {
+                if (id.equals(subscription.getId())) {
+                    break;
+                }
+            }
+        });
+        benchmark("indexed get(id)", lookups, i -> registry.byId("id-" + (i % count)));
+        benchmark("linear lineRef filter", 1_000, i -> unindexed.stream().filter(s -> s.getLineRefs().contains("Line:" + (i % 500))).toList());
+        benchmark("indexed lineRef lookup", 1_000, i -> registry.withLineRef("Line:" + (i % 500)));
+        benchmark("sort per render", 200, i -> {
+            List<Subscription> sorted = new ArrayList<>(unindexed);
+            sorted.sort(null);
+        });
+        benchmark("pre-sorted render", 200, i -> {
+            for (Subscription subscription : registry.list()) {
+                subscription.getPushId();
+            }
+        });
+    }
+
+    private void benchmark(String name, int operations, Consumer<Integer> operation) {
+        for (int i = 0; i < operations; i++) { //warm up
+            operation.accept(i);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            operation.accept(i);
+        }
+        long nanos = System.nanoTime() - start;
+        logger.info("{}: {} us/operation", name, String.format("%.2f", nanos / 1000.0 / operations));
+    }
+
+    private static Subscription subscription(String pushId, String id, String lineRef, String codespace, String stopPoint) {
+        Subscription subscription = new Subscription();
+        subscription.setPushId(pushId);
+        subscription.setId(id);
+        subscription.addLineRef(lineRef);
+        subscription.addCodespace(codespace);
+        subscription.addFromStopPoint(stopPoint);
+        return subscription;
+    }
+}
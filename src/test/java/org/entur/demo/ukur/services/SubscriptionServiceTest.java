@@ -0,0 +1,300 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import org.entur.demo.ukur.entities.DeviationType;
+import org.entur.demo.ukur.entities.Subscription;
+import org.entur.demo.ukur.entities.SubscriptionTypeEnum;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import uk.org.siri.siri20.Siri;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SubscriptionServiceTest {
+
+    private static final String UKUR_URL = "http://ukur/subscription";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger ukurIds = new AtomicInteger();
+    private final AtomicInteger concurrentCalls = new AtomicInteger();
+    private final AtomicInteger maxConcurrentCalls = new AtomicInteger();
+    private final ConcurrentLinkedQueue<String> postedAddresses = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Subscription> posted = new ConcurrentLinkedQueue<>();
+
+    @Test
+    public void restoresSubscriptionsWithTheirPushAddresses() throws Exception {
+        String registry = folder.getRoot().toPath().resolve("subscriptions.json").toString();
+        SubscriptionService first = new SubscriptionService(UKUR_URL, "http://demo/push", ukur(0), registry, 4);
+        first.restore();
+        List<Subscription> added = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Subscription subscription = new Subscription();
+            subscription.setName("Subscription " + i);
+            subscription.addLineRef("NSB:Line:L" + i);
+            assertTrue(first.add(subscription));
+        }
+        added.addAll(first.list());
+        first.remove(added.get(2).getId());
+        postedAddresses.clear();
+
+        SubscriptionService restarted = new SubscriptionService(UKUR_URL, "http://demo/push", ukur(0), registry, 4);
+        restarted.restore();
+        for (Subscription subscription : added.subList(0, 2)) {
+            Subscription restored = restarted.getByPushId(subscription.getPushId());
+            assertNotNull("accepts pushes before re-registration is done", restored);
+            assertEquals(subscription.getName(), restored.getName());
+            assertEquals(subscription.getLineRefs(), restored.getLineRefs());
+        }
+        assertNull(restarted.getByPushId(added.get(2).getPushId()));
+        restarted.getReconciliation().get(10, TimeUnit.SECONDS);
+        assertTrue(restarted.isReady());
+        assertEquals(2, restarted.list().size());
+        assertEquals(2, postedAddresses.size());
+        for (Subscription subscription : added.subList(0, 2)) {
+            assertTrue(postedAddresses.contains("http://demo/push/" + subscription.getPushId()));
+        }
+
+        Subscription another = new Subscription();
+        another.setName("Added after restart");
+        restarted.add(another);
+        assertEquals(3, restarted.list().stream().map(Subscription::getPushId).distinct().count());
+    }
+
+    @Test
+    public void onlyAddsAgainWhatUkurHasLost() throws Exception {
+        String registry = folder.getRoot().toPath().resolve("subscriptions.json").toString();
+        SubscriptionService first = new SubscriptionService(UKUR_URL, "http://demo/push", ukur(0), registry, 4);
+        for (int i = 0; i < 2; i++) {
+            Subscription subscription = new Subscription();
+            subscription.setName("Subscription " + i);
+            assertTrue(first.add(subscription));
+        }
+        List<Subscription> added = new ArrayList<>(first.list());
+        posted.clear();
+
+        RestTemplate ukur = ukur(0);
+        when(ukur.getForObject(URI.create(UKUR_URL + "/" + added.get(0).getId()), Subscription.class)).thenReturn(added.get(0));
+        when(ukur.getForObject(URI.create(UKUR_URL + "/" + added.get(1).getId()), Subscription.class))
+                .thenThrow(HttpClientErrorException.create(HttpStatus.NOT_FOUND, "Not Found", null, null, null));
+        SubscriptionService restarted = new SubscriptionService(UKUR_URL, "http://demo/push", ukur, registry, 4);
+        restarted.restore();
+        restarted.getReconciliation().get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(added.get(1).getId()), posted.stream().map(Subscription::getId).toList());
+        assertEquals(added.get(1).getId(), restarted.getByPushId(added.get(1).getPushId()).getId());
+        assertEquals(2, restarted.list().size());
+    }
+
+    @Test
+    public void reRegistersInParallelWithBoundedConcurrency() throws Exception {
+        String registry = folder.getRoot().toPath().resolve("subscriptions.json").toString();
+        SubscriptionService first = new SubscriptionService(UKUR_URL, "http://demo/push", ukur(0), registry, 4);
+        for (int i = 0; i < 40; i++) {
+            Subscription subscription = new Subscription();
+            subscription.setName("Subscription " + i);
+            first.add(subscription);
+        }
+
+        SubscriptionService restarted = new SubscriptionService(UKUR_URL, "http://demo/push", ukur(50), registry, 8);
+        long start = System.currentTimeMillis();
+        restarted.restore();
+        assertFalse(restarted.isReady());
+        restarted.getReconciliation().get(10, TimeUnit.SECONDS);
+        long millis = System.currentTimeMillis() - start;
+        assertEquals(8, maxConcurrentCalls.get());
+        assertTrue("40 calls of 50 ms with 8 in parallel took " + millis + " ms", millis < 40 * 50);
+        assertEquals(40, restarted.list().size());
+    }
+
+    @Test
+    public void multiplexesOverlappingSubscriptionsOnSharedUpstreams() throws Exception {
+        RestTemplate ukur = ukur(0);
+        SubscriptionService service = new SubscriptionService(UKUR_URL, "http://demo/push", ukur, null, 4, true, new StopPlaceService(Map.of()));
+        Subscription delayed = stops("NSR:Quay:697", "NSR:Quay:571");
+        delayed.setMinimumDelay("PT30M");
+        delayed.setDeviationType(DeviationType.DELAYED);
+        Subscription any = stops("NSR:Quay:697", "NSR:Quay:571");
+        Subscription stopPlaces = stops("NSR:StopPlace:418", "NSR:StopPlace:337");
+        assertTrue(service.add(delayed));
+        assertTrue(service.add(any));
+        assertTrue(service.add(stopPlaces));
+        assertEquals("the first two share an upstream subscription", 2, postedAddresses.size());
+        assertEquals(3, service.list().size());
+
+        String upstreamPushId = postedAddresses.peek().substring("http://demo/push/".length());
+        assertTrue(service.isUpstream(upstreamPushId));
+        assertNull(service.getByPushId(upstreamPushId));
+        Siri siri = (Siri) new SiriStaxReader().read(SiriStaxReaderTest.ET_DELIVERY.getBytes(StandardCharsets.UTF_8));
+        Object journey = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().get(0);
+        assertEquals("delayed less than 30 minutes", List.of(any.getId()), service.match(upstreamPushId, journey));
+
+        service.remove(any.getId());
+        verify(ukur, never()).delete(any(URI.class));
+        service.remove(delayed.getId());
+        verify(ukur, times(1)).delete(any(URI.class));
+        assertFalse(service.isUpstream(upstreamPushId));
+        assertEquals(List.of(stopPlaces), new ArrayList<>(service.list()));
+    }
+
+    @Test
+    public void upstreamSubscriptionsAreOnlyForTheTypesAskedFor() {
+        SubscriptionService service = new SubscriptionService(UKUR_URL, "http://demo/push", ukur(0), null, 4, true, new StopPlaceService(Map.of()));
+        Subscription situations = codespace("RUT", SubscriptionTypeEnum.SX);
+        Subscription journeys = codespace("RUT", SubscriptionTypeEnum.ET);
+        Subscription moreSituations = codespace("RUT", SubscriptionTypeEnum.SX);
+        assertTrue(service.add(situations));
+        assertTrue(service.add(journeys));
+        assertTrue(service.add(moreSituations));
+        assertEquals(List.of(SubscriptionTypeEnum.SX, SubscriptionTypeEnum.ET), posted.stream().map(Subscription::getType).toList());
+        assertEquals(List.of("Upstream codespace:RUT/SX", "Upstream codespace:RUT/ET"), posted.stream().map(Subscription::getName).toList());
+    }
+
+    @Test
+    public void subscriptionsWithoutFiltersShareACatchAllUpstream() throws Exception {
+        String registry = folder.getRoot().toPath().resolve("subscriptions.json").toString();
+        RestTemplate ukur = ukur(0);
+        SubscriptionService service = new SubscriptionService(UKUR_URL, "http://demo/push", ukur, registry, 4, true, new StopPlaceService(Map.of()));
+        Subscription first = new Subscription();
+        first.setName("Everything");
+        Subscription second = new Subscription();
+        second.setName("Everything again");
+        assertTrue(service.add(first));
+        assertTrue(service.add(second));
+        assertEquals(List.of("Upstream all"), posted.stream().map(Subscription::getName).toList());
+
+        posted.clear();
+        SubscriptionService restarted = new SubscriptionService(UKUR_URL, "http://demo/push", ukur(0), registry, 4, true, new StopPlaceService(Map.of()));
+        restarted.restore();
+        restarted.getReconciliation().get(10, TimeUnit.SECONDS);
+        assertEquals("only the upstream is known by Ukur", List.of("Upstream all"), posted.stream().map(Subscription::getName).toList());
+
+        service.remove(first.getId());
+        verify(ukur, never()).delete(any(URI.class));
+        service.remove(second.getId());
+        verify(ukur).delete(URI.create(UKUR_URL + "/ukur-1"));
+    }
+
+    @Test
+    public void slowUpstreamAddsDoNotHoldUpOthers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RestTemplate ukur = mock(RestTemplate.class);
+        when(ukur.postForObject(any(URI.class), any(Subscription.class), eq(Subscription.class))).thenAnswer(invocation -> {
+            Subscription template = invocation.getArgument(1);
+            if (template.getName().contains("L1")) {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            posted.add(template);
+            Subscription returned = new Subscription();
+            returned.setId("ukur-" + ukurIds.incrementAndGet());
+            returned.setName(template.getName());
+            return returned;
+        });
+        SubscriptionService service = new SubscriptionService(UKUR_URL, "http://demo/push", ukur, null, 4, true, new StopPlaceService(Map.of()));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> slow = executor.submit(() -> service.add(line("NSB:Line:L1")));
+            Future<Boolean> waiting = executor.submit(() -> service.add(line("NSB:Line:L1")));
+            Subscription other = line("NSB:Line:L2");
+            assertTrue(service.add(other));
+            service.remove(other.getId());
+            assertFalse(slow.isDone() || waiting.isDone());
+
+            release.countDown();
+            assertTrue(slow.get(10, TimeUnit.SECONDS));
+            assertTrue(waiting.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals("the second waits for the upstream added by the first", 2, posted.size());
+        assertEquals(2, service.list().size());
+    }
+
+    private static Subscription line(String lineRef) {
+        Subscription subscription = new Subscription();
+        subscription.setName("Line " + lineRef);
+        subscription.addLineRef(lineRef);
+        return subscription;
+    }
+
+    private static Subscription codespace(String codespace, SubscriptionTypeEnum type) {
+        Subscription subscription = new Subscription();
+        subscription.setName("All " + type + " from " + codespace);
+        subscription.addCodespace(codespace);
+        subscription.setType(type);
+        return subscription;
+    }
+
+    private static Subscription stops(String from, String to) {
+        Subscription subscription = new Subscription();
+        subscription.setName(from + " to " + to);
+        subscription.addFromStopPoint(from);
+        subscription.addToStopPoint(to);
+        return subscription;
+    }
+
+    private RestTemplate ukur(long latencyMillis) {
+        RestTemplate restTemplate = mock(RestTemplate.class);
+        when(restTemplate.postForObject(any(URI.class), any(Subscription.class), eq(Subscription.class))).thenAnswer(invocation -> {
+            maxConcurrentCalls.accumulateAndGet(concurrentCalls.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(latencyMillis);
+                Subscription posted = invocation.getArgument(1);
+                postedAddresses.add(posted.getPushAddress());
+                this.posted.add(posted);
+                Subscription returned = new Subscription();
+                returned.setId(posted.getId() != null ? posted.getId() : "ukur-" + ukurIds.incrementAndGet());
+                returned.setName(posted.getName());
+                returned.setPushAddress(posted.getPushAddress());
+                posted.getLineRefs().forEach(returned::addLineRef);
+                return returned;
+            } finally {
+                concurrentCalls.decrementAndGet();
+            }
+        });
+        return restTemplate;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *  https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.demo.ukur.services;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.entur.demo.ukur.entities.Subscription;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares adding many subscriptions at once, as many concurrent requests to the subscription page would, on a
+ * Tomcat sized platform thread pool with the default client and on virtual threads with the client the virtual
+ * thread mode uses. Each add is a real HTTP call through SubscriptionService's RestTemplate to a local Ukur stub
+ * that answers after a fixed latency.
+ * Run with: mvn test -Dtest=VirtualThreadBenchmarkTest -Dbenchmark=true
+ */
+public class VirtualThreadBenchmarkTest {
+
+    private static final int CONCURRENT_ADDS = 2_000;
+    private static final int WARMUP_ADDS = 200;
+    private static final int TOMCAT_MAX_THREADS = 200;
+    private static final long UKUR_LATENCY_MILLIS = 100;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final AtomicInteger ukurIds = new AtomicInteger();
+
+    @Before
+    public void onlyWhenBenchmarking() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+    }
+
+    @Test
+    public void compareThreadModels() throws Exception {
+        run(false, Executors.newFixedThreadPool(TOMCAT_MAX_THREADS), WARMUP_ADDS);
+        run(true, Executors.newVirtualThreadPerTaskExecutor(), WARMUP_ADDS);
+        long platform = run(false, Executors.newFixedThreadPool(TOMCAT_MAX_THREADS), CONCURRENT_ADDS);
+        long virtual = run(true, Executors.newVirtualThreadPerTaskExecutor(), CONCURRENT_ADDS);
+        logger.info("Adding {} subscriptions with {} ms Ukur latency took {} ms on {} platform threads and {} ms on virtual threads ({} cpus)",
+                CONCURRENT_ADDS, UKUR_LATENCY_MILLIS, platform, TOMCAT_MAX_THREADS, virtual, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return milliseconds to add them all
+     */
+    private long run(boolean virtualThreads, ExecutorService executor, int adds) throws Exception {
+        HttpServer ukur = startUkur(adds);
+        try {
+            String ukurUrl = "http://localhost:" + ukur.getAddress().getPort() + "/subscription";
+            SubscriptionService subscriptionService = new SubscriptionService(ukurUrl, "http://demo/push",
+                    SubscriptionService.restTemplate(virtualThreads, new SimpleMeterRegistry()), null, 1);
+            AtomicInteger failed = new AtomicInteger();
+            long start = System.nanoTime();
+            for (int i = 0; i < adds; i++) {
+                Subscription subscription = new Subscription();
+                subscription.setName("Subscription " + i);
+                executor.execute(() -> {
+                    if (!subscriptionService.add(subscription)) {
+                        failed.incrementAndGet();
+                    }
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.MINUTES));
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            logger.info("{} threads: {} adds in {} ms ({} adds/s)", virtualThreads ? "virtual" : "platform", adds, millis,
+                    adds * 1000L / Math.max(1, millis));
+            assertEquals(0, failed.get());
+            assertEquals(adds, subscriptionService.list().size());
+            return millis;
+        } finally {
+            ukur.stop(0);
+        }
+    }
+
+    /**
+     * A stand-in for Ukur's subscription API that answers each post after UKUR_LATENCY_MILLIS, without limiting
+     * how many it handles at once.
+     */
+    private HttpServer startUkur(int backlog) throws IOException {
+        HttpServer ukur = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), backlog);
+        ukur.setExecutor(Executors.newCachedThreadPool()); //the server blocks in monitors and would pin virtual threads
+        ukur.createContext("/subscription", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            try {
+                Thread.sleep(UKUR_LATENCY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] response = ("{\"id\":\"ukur-" + ukurIds.incrementAndGet() + "\",\"name\":\"benchmark\"}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(response);
+            }
+        });
+        ukur.start();
+        return ukur;
+    }
+}